@@ -467,6 +467,49 @@ public class BigProductAlgebra extends GeneralAlgebra implements Algebra {
     return sgClose(elems, 0, termMap, elt, report);
   }
 
+  /**
+   * Closure of <code>elems</code> in a power, keeping the elements
+   * bit packed, ceil(log2 |A|) bits per coordinate. This uses much
+   * less memory than <code>sgClose</code> when the root algebra is small.
+   *
+   * @param elems a <code>List</code> of <code>IntArray</code>'s to be closed under the fundamental operations.
+   * @param report a reference to a <code>ProgressReport</code>; used in the GUI to display the status of the closure.
+   *               Use a <code>null</code> reference if you do not need it.
+   *
+   * @return the closure as a <code>TupleStore</code>; its
+   *         <code>asList</code> method gives it as a list of <code>IntArray</code>'s.
+   */
+  public TupleStore sgClosePacked(List<IntArray> elems, ProgressReport report) {
+    return sgClosePacked(elems, null, report);
+  }
+
+  /**
+   * Closure of <code>elems</code> in a power, keeping the bit packed
+   * elements in memory mapped files in <code>spillDir</code>, so the 
+   * closure can be larger than the heap.
+   *
+   * @param elems a <code>List</code> of <code>IntArray</code>'s to be closed under the fundamental operations.
+   * @param spillDir the directory for the files; if <code>null</code> the heap is used.
+   * @param report a reference to a <code>ProgressReport</code>; used in the GUI to display the status of the closure.
+   *               Use a <code>null</code> reference if you do not need it.
+   *
+   * @return the closure as a <code>TupleStore</code>; if it is a 
+   *         <code>MappedTupleStore</code> closing it deletes the files.
+   * @see Closer#setSpillDirectory(java.io.File)
+   */
+  public TupleStore sgClosePacked(List<IntArray> elems, java.io.File spillDir, 
+                                  ProgressReport report) {
+    if (!isPower()) {
+      throw new IllegalArgumentException("only implemented for powers");
+    }
+    Closer closer = new Closer(this, new ArrayList<IntArray>(elems));
+    closer.setProgressReport(report);
+    closer.setPackTuples(true);
+    closer.setSpillDirectory(spillDir);
+    if (closer.sgClose() == null) return null;
+    return closer.getPackedAnswer();
+  }
+
   /**
    * Closure of <code>elems</code> under the operations. (Worry about
    * nullary ops later.)
@@ -2,6 +2,10 @@ package org.uacalc.alg;
 
 import java.util.*;
 import java.util.logging.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.math.BigInteger;
@@ -17,7 +21,8 @@ import org.uacalc.alg.op.Operation;
 import org.uacalc.alg.op.OperationWithDefaultValue;
 import org.uacalc.alg.op.OperationSymbol;
 import org.uacalc.alg.op.Operations;
-import org.uacalc.alg.parallel.SingleClose;
+import org.uacalc.alg.parallel.Pool;
+import org.uacalc.group.PermutationGroup;
 
 /**
  * A class for finding the closure with configurations for several options
@@ -42,16 +47,24 @@ public class Closer {
   IntArray eltToFind;
   List<IntArray> eltsToFind;  // find all
   Map<IntArray,Integer> indecesMapOfFoundElts;
+  // the elements to find, to reject the others quickly; see setElementsToFind.
+  private TupleTargetIndex targetIndex;
+  private TargetListener targetListener;
   boolean allEltsFound = false;
   int specialEltsFound = 0;
   final static Integer minusOne = new Integer(-1);
   SmallAlgebra imageAlgebra;
   Map<IntArray,Integer> homomorphism; // actually a partial homo into imageAlg.
+  // the homomorphism during a closure, indexed like ans; it is copied 
+  // into homomorphism when that is asked for.
+  private HomomorphismTable homomorphismTable;
+  private int homomorphismFilled;  // the entries already in homomorphism
   Equation failingEquation = null; // a list of two terms
   SmallAlgebra rootAlgebra; // the root of a power algebra
   // a list of operations on the set of the root algebra; to test if they are in the clone. 
   List<Operation> operations;
   Map<Operation,Term> termMapForOperations;
+  private int operationsFound; // used in sgClosePower
   
   // blocks, values and constraintSet 
   // are used when searching for an element satisfying specify constraints.
@@ -74,6 +87,45 @@ public class Closer {
   ProgressReport report;
   private boolean suppressOutput;
   
+  // use an IntTupleSet rather than a HashSet<IntArray> to find duplicates.
+  private boolean useTupleSet = true;
+  
+  // evaluate the operations of products with the factor tables; see setUseProductTables.
+  private boolean useProductTables = true;
+  
+  // close powers in parallel; see setParallel.
+  private boolean parallel = false;
+  
+  // keep the elements of a subpower bit packed; see setPackTuples.
+  private boolean packTuples = false;
+  // if not null, the packed elements are kept in memory mapped files here.
+  private File spillDirectory;
+  TupleStore packedAnswer;
+  // if not null, powers are closed by external sorting in this directory.
+  private File externalSortDirectory;
+  private int externalSortBuffer = 1 << 20;
+  // if not null, powers are closed by worker processes sharing this directory.
+  private File shardDirectory;
+  private int shards = 2;
+  
+  // checkpoints of closures in powers; see setCheckpointFile.
+  private File checkpointFile;
+  private long checkpointInterval = 60 * 60 * 1000L;
+  private boolean resume = false;
+  
+  // the terms of the elements of a closure in a power; see setLazyTerms.
+  TermProvenance provenance;
+  private Map<IntArray,Term> provenanceMap;  // the term map to fill, or null if done
+  private boolean lazyTerms = false;
+  
+  private ClosureListener listener;
+  private boolean stoppedByListener = false;
+  
+  private int[] orbitSizes;  // see sgCloseUnderSymmetry
+  
+  private final CloserMetrics metrics = new CloserMetrics();
+  private long appCount;  // the operation applications of the current closure
+  
   static final int nCPUs = Runtime.getRuntime().availableProcessors(); 
   
   public Closer(BigProductAlgebra alg, List<IntArray> gens) {
@@ -179,7 +231,134 @@ public class Closer {
    *
    * @return a <code>Map</code> mapping <code>IntArray</code>s to <code>Term</code>s
    */
-  public Map<IntArray,Term> getTermMap() { return termMap; }
+  public Map<IntArray,Term> getTermMap() { 
+    fillTermMap();
+    return termMap; 
+  }
+  
+  /**
+   * The terms of the elements found by the last closure in a power,
+   * indexed as the answer, or null.
+   */
+  public TermProvenance getTermProvenance() { return provenance; }
+  
+  /**
+   * The term of the element with index <code>index</code> in the 
+   * closure, or null if terms are not being kept. This can be called
+   * by a <code>ClosureListener</code> while the closure is running.
+   */
+  public Term getTerm(int index) {
+    if (provenance != null && index < provenance.size()) return provenance.getTerm(index);
+    if (termMap == null || ans == null) return null;
+    return termMap.get(ans.get(index));
+  }
+  
+  public ClosureListener getClosureListener() { return listener; }
+  
+  /**
+   * Set a listener to be told about each element as it is found. It 
+   * can stop the closure early by returning false, in which case 
+   * <code>isStoppedByListener</code> is true and the closure returns
+   * the elements found so far.
+   * 
+   * @param listener  the listener, or null for none
+   */
+  public void setClosureListener(ClosureListener listener) { this.listener = listener; }
+  
+  public TargetListener getTargetListener() { return targetListener; }
+  
+  /**
+   * Set a listener to be told about each of the elements to find as it
+   * is found; see <code>setElementsToFind</code>.
+   * 
+   * @param listener  the listener, or null for none
+   */
+  public void setTargetListener(TargetListener listener) { this.targetListener = listener; }
+  
+  /**
+   * True if the last closure was stopped by the <code>ClosureListener</code>.
+   */
+  public boolean isStoppedByListener() { return stoppedByListener; }
+
+  /**
+   * The measurements of the last closure, or of the one running, which
+   * can be polled from another thread. Each pass is also recorded as
+   * a JFR event; see <code>CloserMetrics</code>.
+   */
+  public CloserMetrics getMetrics() { return metrics; }
+  
+  /**
+   * Tell the listener about the elements of <code>ans</code> from 
+   * <code>from</code> on.
+   * 
+   * @return true if the listener stopped the closure
+   */
+  private boolean notifyListener(int from) {
+    final int n = ans.size();
+    for (int j = from; j < n; j++) {
+      if (!listener.elementFound(ans.get(j), j, this)) return stopForListener();
+    }
+    return false;
+  }
+  
+  /**
+   * Tell the target listener about the elements to find already found,
+   * the generators among them.
+   */
+  private void notifyTargetListener() {
+    if (targetListener == null || targetIndex == null) return;
+    for (int t = 0; t < targetIndex.size(); t++) {
+      final int index = targetIndex.foundAt(t);
+      if (index >= 0) targetListener.targetFound(eltsToFind.get(t), t, index, this);
+    }
+  }
+  
+  /**
+   * If <code>v</code>, the <code>index</code>th element of the closure,
+   * is one of the elements to find not found before, record it and 
+   * tell the target listener. Most elements are rejected by the Bloom
+   * filter of <code>targetIndex</code>, in a time not depending on the
+   * length of <code>v</code>.
+   * 
+   * @return true if <code>v</code> is newly found
+   */
+  private boolean newTarget(IntArray v, int index) {
+    final int t = targetIndex.markFound(v.getArray(), index);
+    if (t < 0) return false;
+    indecesMapOfFoundElts.put(v, index);
+    specialEltsFound++;
+    if (targetListener != null) targetListener.targetFound(v, t, index, this);
+    return true;
+  }
+  
+  private boolean stopForListener() {
+    stoppedByListener = true;
+    if (report != null) {
+      report.setSize(ans.size());
+      report.addEndingLine("closing stopped by the listener at size " + ans.size());
+    }
+    return true;
+  }
+  
+  public boolean isLazyTerms() { return lazyTerms; }
+  
+  /**
+   * Closures in powers record the terms of the new elements in a
+   * <code>TermProvenance</code>, which keeps only the operation and
+   * the indices of the arguments of each element. If
+   * <code>lazyTerms</code> is false, the default, the term map is 
+   * filled with the <code>Term</code>'s at the end of the closure; 
+   * if true this is put off until <code>getTermMap</code> is called,
+   * so the terms are never made if they are only wanted for a few
+   * elements (see <code>getTermProvenance</code>) or not at all.
+   */
+  public void setLazyTerms(boolean lazyTerms) { this.lazyTerms = lazyTerms; }
+  
+  private void fillTermMap() {
+    if (provenance == null || provenanceMap == null) return;
+    provenance.fillMap(provenanceMap, ans, 0);
+    provenanceMap = null;
+  }
   
   /**
    * Initialises the <code>Map</code> that will be used to assign to each tuple in the
@@ -207,10 +386,14 @@ public class Closer {
   }
   
   // TODO add convenience methods to build these maps.
-  public Map<IntArray,Integer> getHomomorphism() { return homomorphism; }
+  public Map<IntArray,Integer> getHomomorphism() { 
+    fillHomomorphism();
+    return homomorphism; 
+  }
   
   public void setHomomorphism(Map<IntArray,Integer> homomorphism) {
     this.homomorphism = homomorphism;
+    homomorphismTable = null;
   }
   
   public void setHomomorphism(int[] algGens) {
@@ -223,6 +406,47 @@ public class Closer {
       homo.put(g, algGens[k++]);
     }
     this.homomorphism = homo;
+    homomorphismTable = null;
+  }
+  
+  /**
+   * Make <code>homomorphismTable</code> from <code>homomorphism</code>
+   * for the elements of <code>ans</code>. The constants it does not 
+   * have go to the constants of the image algebra.
+   * 
+   * @param imgOps  the operations of the image algebra, in the order
+   *                of the operations being closed under
+   */
+  private void makeHomomorphismTable(List<Operation> imgOps) {
+    final HomomorphismTable table = new HomomorphismTable(imageAlgebra, imgOps);
+    for (IntArray e : ans) {
+      Integer image = homomorphism.get(e);
+      if (image == null) {
+        final OperationSymbol sym = 
+            algebra.constantToSymbol == null ? null : algebra.constantToSymbol.get(e);
+        if (sym == null) {
+          throw new IllegalArgumentException("the homomorphism is not defined at " + e);
+        }
+        image = imageAlgebra.getOperation(sym).intValueAt(new int[0]);
+      }
+      table.add(image);
+    }
+    homomorphismTable = table;
+    homomorphismFilled = ans.size();
+  }
+  
+  /**
+   * Put the values of <code>homomorphismTable</code> at the elements
+   * found since the last time into <code>homomorphism</code>.
+   */
+  private void fillHomomorphism() {
+    final HomomorphismTable table = homomorphismTable;
+    if (table == null || ans == null || homomorphism == null) return;
+    final int n = Math.min(table.size(), ans.size());
+    for (int j = homomorphismFilled; j < n; j++) {
+      homomorphism.put(ans.get(j), table.get(j));
+    }
+    homomorphismFilled = Math.max(homomorphismFilled, n);
   }
   
   public IntArray getElementToFind() { return eltToFind; }
@@ -233,7 +457,11 @@ public class Closer {
   
   /**
    * This takes <code>e</code> and deletes duplicates, maintaining the order,
-   * before setting <code>eltsToFind</code>.
+   * before setting <code>eltsToFind</code>. The closure stops when all
+   * of them have been found. They are kept in a 
+   * <code>TupleTargetIndex</code>, so even hundreds of them cost little
+   * more than one for each new element; a <code>TargetListener</code>
+   * can be told about each as it is found.
    * 
    * @param e
    * @param gens
@@ -247,11 +475,14 @@ public class Closer {
       }
     }
     indecesMapOfFoundElts = new HashMap<IntArray,Integer>(eltsToFind.size());
+    final List<int[]> raw = new ArrayList<int[]>(eltsToFind.size());
     for (IntArray ia : eltsToFind) {
       indecesMapOfFoundElts.put(ia, minusOne);
+      raw.add(ia.getArray());
     }
+    targetIndex = new TupleTargetIndex(raw);
     for (int i = 0; i < gens.size(); i++) {
-      if (minusOne.equals(indecesMapOfFoundElts.get(gens.get(i)))) {
+      if (targetIndex.markFound(gens.get(i).getArray(), i) >= 0) {
         indecesMapOfFoundElts.put(gens.get(i), i);
         specialEltsFound++;
       }
@@ -406,7 +637,6 @@ public class Closer {
   public List<IntArray> sgClose() {
     //System.out.println("nCPU = " + nCPUs);
     //System.out.println("termMap = " + termMap);
-    //return sgCloseParallel(generators, 0, termMap);
     return sgClose(generators, 0, termMap);
   }
   
@@ -424,18 +654,14 @@ public class Closer {
    * @return a List of IntArray's.
    */
   
+  /**
+   * If true, closures in powers are done in parallel on the shared
+   * pool; see <code>setParallel</code>.
+   */
   public static boolean doParallel = false;
   
   public List<IntArray> sgClose(List<IntArray> elems, int closedMark, 
                                      final Map<IntArray,Term> termMap) {
-    if (doParallel) {
-      System.out.println("got to parallel");
-      ConcurrentMap<IntArray,Term> concurrentTermMap = new ConcurrentHashMap<>(termMap.size());
-      concurrentTermMap.putAll(termMap);
-      List<IntArray> ans = sgCloseParallel(elems, closedMark, concurrentTermMap);
-      termMap.putAll(concurrentTermMap);
-      return ans;
-    }
     if (algebra.isPower()) {
       SmallAlgebra alg = algebra.rootFactors().get(0);
       alg.makeOperationTables();
@@ -448,7 +674,18 @@ public class Closer {
       //  return null;
       //}
     }
-    
+    completed = false;
+    appCount = 0;
+    try {
+      return sgCloseGeneral(elems, closedMark, termMap);
+    }
+    finally {
+      metrics.finish(ans == null ? 0 : ans.size(), appCount, completed);
+    }
+  }
+
+  private List<IntArray> sgCloseGeneral(List<IntArray> elems, int closedMark, 
+                                        final Map<IntArray,Term> termMap) {
     if (report != null) report.addStartLine("subpower closing ...");
 
     final int numOfOps = algebra.operations().size();  
@@ -466,20 +703,28 @@ public class Closer {
     final boolean eltToFindNotNull = eltToFind == null ? false : true;
     final boolean eltsToFindNotNull = eltsToFind == null ? false : true;
     final boolean operationsNotNull = operations == null ? false : true;
+    // the homomorphism is indexed like ans so it needs the index of old elements.
+    final boolean useTupleSet = this.useTupleSet || imgOps != null;
+    final ProductOpTable[] opTables = useProductTables ? ProductOpTable.makeTables(algebra) : null;
+    final int power = algebra.getNumberOfFactors();
     
     if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
     int operationsFound = 0;
 
+    stoppedByListener = false;
+    homomorphismTable = null;
     ans = new ArrayList<IntArray>(elems);// IntArrays
     final List<int[]> rawList = new ArrayList<int[]>(); // the corresponding raw int[]
     for (IntArray ia : elems) {
       rawList.add(ia.getArray());
     }
-    final HashSet<IntArray> su = new HashSet<IntArray>(ans);
+    final HashSet<IntArray> su = useTupleSet ? null : new HashSet<IntArray>(ans);
+    final IntTupleSet tupleSet = useTupleSet ? new IntTupleSet(rawList) : null;
+    metrics.start(algebra.getNumberOfFactors(), ans.size(), tupleSet);
     //  Code to add the constants
     final List<IntArray> constants = algebra.getConstants();// add the constants, if any
     for (IntArray arr : constants) {
-      if (su.add(arr)) {
+      if (useTupleSet ? tupleSet.add(arr.getArray()) >= 0 : su.add(arr)) {
         ans.add(arr);
         rawList.add(arr.getArray());
         if (termMap != null) {
@@ -519,6 +764,10 @@ public class Closer {
         }
       }
     }
+    if (imgOps != null) makeHomomorphismTable(imgOps);
+    final boolean listenerNotNull = listener != null;
+    if (listenerNotNull && notifyListener(0)) return ans;
+    if (eltsToFindNotNull) notifyTargetListener();
 
     int currentMark = ans.size();
     int pass = 0;
@@ -528,6 +777,7 @@ public class Closer {
     //int lastPassSize = 0; // for time left
     //final int numberProjs = algebra.getNumberOfFactors(); // for time left
     while (closedMark < currentMark) {
+      metrics.startPass(pass, ans.size(), appCount);
       if (reportNotNull) timing.updatePass(ans.size());
       //lastPassSize = currPassSize;
       //currPassSize = ans.size();
@@ -577,15 +827,19 @@ public class Closer {
             arg[j] = rawList.get(argIndeces[j]);
           }
           
-          int[] vRaw = f.valueAt(arg);
+          int[] vRaw = opTables == null ? f.valueAt(arg) : opTables[i].valueAt(arg, new int[power]);
           //int[] test = f.valueAt(arg);
           IntArray v = new IntArray(vRaw);
           //IntArray testV = new IntArray(test);
            
           //System.out.println("vRaw == test is " + v.equals(new IntArray(test)));
           if (reportNotNull) timing.incrementApps();
+          if ((++appCount & 0xffff) == 0) metrics.update(ans.size(), appCount);
           //appsSoFar = appsSoFar + numberProjs;
-          if (su.add(v)) {
+          // the index of v if it is new and -(index + 1) if not; there 
+          // is no index with the HashSet, but then there is no homomorphism.
+          final int vIndex = useTupleSet ? tupleSet.add(vRaw) : (su.add(v) ? ans.size() : -1);
+          if (vIndex >= 0) {
             ans.add(v);
             rawList.add(vRaw);
             if (reportNotNull) timing.incrementNextPassSize();
@@ -616,16 +870,17 @@ public class Closer {
                 }
               }
             }
+            if (listenerNotNull && !listener.elementFound(v, ans.size() - 1, this)) {
+              stopForListener();
+              return ans;
+            }
             if (eltToFindNotNull && v.equals(eltToFind)) {
               if (reportNotNull) report.addEndingLine("closing done, found "
                                                + eltToFind + ", at " + ans.size());
               return ans;
             }
-            // the get is  likely to be null so do it in this order.
-            if (eltsToFindNotNull  && minusOne.equals(indecesMapOfFoundElts.get(v))) {
+            if (eltsToFindNotNull && newTarget(v, ans.size() - 1)) {
               final int index = ans.size() - 1;
-              indecesMapOfFoundElts.put(v, index);
-              specialEltsFound++;
               if (reportNotNull) report.addLine("found " + v + ", at " + index);
               if (specialEltsFound == eltsToFind.size()) {
                 if (reportNotNull) report.addEndingLine("closing done, found all "
@@ -645,23 +900,13 @@ public class Closer {
                 return ans;
               }
             }
-            else {
-              final int[] args = new int[arity];
-              for (int t = 0; t < arity; t++) {
-                args[t] = homomorphism.get(ans.get(argIndeces[t]));
-              }
-              homomorphism.put(v, imgOps.get(i).intValueAt(args));
-            }
+            else homomorphismTable.add(homomorphismTable.valueAt(i, argIndeces));
             
             
           }
           else {
             if (imgOps != null) {
-              final int[] args = new int[arity];
-              for (int t = 0; t < arity; t++) {
-                args[t] = homomorphism.get(ans.get(argIndeces[t]));
-              }
-              if (homomorphism.get(v).intValue() != imgOps.get(i).intValueAt(args)) {
+              if (homomorphismTable.get(-(vIndex + 1)) != homomorphismTable.valueAt(i, argIndeces)) {
                 List<Term> children = new ArrayList<Term>(arity);
                 for (int r = 0; r < arity; r++) {
                   //children.set(i, termMap.get(arg.get(i)));
@@ -706,108 +951,278 @@ if (false) {
     return ans;
   }
   
-  public List<IntArray> sgCloseParallel(List<IntArray> elems, int closedMark, 
-      ConcurrentMap<IntArray,Term> termMap) {
-    
-    System.out.println(elems);
-    System.out.println(termMap);
-    
-    if (report != null) report.addStartLine("subpower closing ...");
-
-    final int numOfOps = algebra.operations().size();  
-    List<Operation> imgOps = null;
-    if (homomorphism != null) {
-      imgOps = new ArrayList<Operation>(numOfOps);
-      for (Operation op : algebra.operations()) {
-        imgOps.add(imageAlgebra.getOperation(op.symbol()));
-      }
+  /**
+   * Closure of the generators in a power which is invariant under the
+   * group G of coordinate permutations generated by 
+   * <code>perms</code>, storing only one representative of each 
+   * G orbit: its lexicographically least member. Since the
+   * operations commute with permuting coordinates, the first 
+   * argument of each operation need only run over the representatives
+   * and the others over the orbits, so this does about 1/|G| of the 
+   * work and uses about 1/|G| of the space of <code>sgClose</code>.
+   * <p>
+   * The answer is the closure of the union of the orbits of the
+   * generators, which is the usual closure if the set of generators 
+   * is invariant under G, as are, for example, the generators of 
+   * <code>Malcev.cyclicTermIdempotent</code> under cyclic shifts. 
+   * Terms, homomorphisms, constraints, operations and lists of 
+   * elements to find are not supported and cause an 
+   * <code>IllegalStateException</code>; the element to find, the
+   * <code>ClosureListener</code> (which sees the representatives),
+   * the maximum size (of the closure, not the number of 
+   * representatives) and the progress report are.
+   * 
+   * @param perms  generators of G, permutations of the coordinates
+   * @return       the representatives; their orbit sizes are given by
+   *               <code>getOrbitSizes</code>
+   */
+  public List<IntArray> sgCloseUnderSymmetry(List<IntArray> perms) {
+    if (!algebra.isPower()) {
+      throw new IllegalArgumentException("only implemented for powers");
     }
-    
-    // these final boolean are meant to help the jit compiler.
-    final boolean reportNotNull = report == null ? false : true;
-    final boolean imgAlgNull = imgOps == null ? true : false;
-    final boolean eltToFindNotNull = eltToFind == null ? false : true;
-    final boolean eltsToFindNotNull = eltsToFind == null ? false : true;
-    final boolean operationsNotNull = operations == null ? false : true;
-    
-    if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
-    int operationsFound = 0;
-
-    ans = new ArrayList<IntArray>(elems);// IntArrays
-    final List<IntArray> constants = algebra.getConstants();// add the constants, if any
-    for (IntArray arr : constants) {
-      if (!termMap.containsKey(arr)) {
-        ans.add(arr);
-        if (termMap != null) {
-          termMap.put(arr, NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr)));
-        }
+    if (termMap != null || homomorphism != null || imageAlgebra != null 
+        || operations != null || eltsToFind != null || targetListener != null 
+        || blocks != null || values != null || constraintSet != null 
+        || congruenceForCongruenceConstraint != null) {
+      throw new IllegalStateException(
+          "only the element to find can be searched for when closing under symmetry");
+    }
+    completed = false;
+    orbitSizes = null;
+    final SmallAlgebra alg = algebra.rootFactors().get(0);
+    alg.makeOperationTables();
+    final int power = algebra.getNumberOfFactors();
+    final int algSize = alg.cardinality();
+    final List<IntArray> groupList = PermutationGroup.groupElements(perms, power);
+    final int[][] group = new int[groupList.size()][];
+    for (int i = 0; i < group.length; i++) {
+      group[i] = groupList.get(i).getArray();
+    }
+    final boolean reportNotNull = report != null;
+    if (reportNotNull) report.addStartLine("closing under a group of " + group.length 
+                                           + " coordinate permutations ...");
+    stoppedByListener = false;
+    final IntTupleSet reps = new IntTupleSet();
+    ans = new ArrayList<IntArray>();
+    // for each representative the indices of the group elements giving
+    // the distinct members of its orbit.
+    final List<int[]> orbits = new ArrayList<int[]>();
+    long total = 0;
+    final IntArray eltToFindRep = eltToFind == null ? null 
+        : new IntArray(canonicalForm(eltToFind.getArray(), group, new int[power]));
+    final List<IntArray> starts = new ArrayList<IntArray>(generators);
+    starts.addAll(algebra.getConstants());
+    for (IntArray g : starts) {
+      final int[] rep = canonicalForm(g.getArray(), group, new int[power]);
+      if (reps.add(rep) >= 0) {
+        ans.add(new IntArray(rep));
+        orbits.add(orbit(rep, group));
+        total += orbits.get(orbits.size() - 1).length;
       }
     }
-    
-    System.out.println(ans);
-    System.out.println(termMap);
-
-    ForkJoinPool pool = new ForkJoinPool();
-    AtomicInteger eltsFound = new AtomicInteger(ans.size());
+    if (listener != null && notifyListener(0)) {
+      setOrbitSizes(orbits);
+      return ans;
+    }
+    if (eltToFindRep != null && reps.contains(eltToFindRep.getArray())) {
+      eltToFind = ans.get(reps.indexOf(eltToFindRep.getArray()));
+      setOrbitSizes(orbits);
+      return ans;
+    }
+    final List<Operation> ops = alg.operations();
+    int closedMark = 0;
     int currentMark = ans.size();
     int pass = 0;
-    CloserTiming timing = null; 
-    if (reportNotNull) timing = new CloserTiming(algebra, report);
     while (closedMark < currentMark) {
-      System.out.println("closedMark: " + closedMark + ", currentMark: " + currentMark + ", pass: " + pass);
-      Collection<IntArray> noDups = new HashSet<>(ans);
-      System.out.println("ans size: " + ans.size() + ", noDups size: " + noDups.size() + ", pass: " + pass);
-      if (reportNotNull) timing.updatePass(ans.size());
-      String str = "pass: " + pass + ", size: " + ans.size();
+      final String str = "pass: " + pass + ", representatives: " + ans.size() 
+                         + ", elements: " + total;
       if (reportNotNull) {
         report.setPass(pass);
         report.setPassSize(ans.size());
         if (!suppressOutput) report.addLine(str);
       }
-      else {
-        if (!suppressOutput) System.out.println(str);
+      else if (!suppressOutput) System.out.println(str);
+      if (maxSize > 0 && total >= maxSize) {
+        setOrbitSizes(orbits);
+        return ans;
       }
       pass++;
-      if (Thread.currentThread().isInterrupted()) {
-        if (reportNotNull) report.addEndingLine("cancelled ...");
-        return null;
-      }
-      for (int i = 0; i < numOfOps; i++) {
-        System.out.println("in loop ans size: " +  ans.size());
-        Operation f = algebra.operations().get(i);
-        if (f.arity() == 0) continue;
-
-        if (Thread.currentThread().isInterrupted()) {
-          if (reportNotNull) {
-            //System.out.println("cancelled ... size = " + ans.size());
-            report.addEndingLine("cancelled ...");
-            report.setSize(ans.size());
-          }
-          return null;
+      for (Operation op : ops) {
+        final int arity = op.arity();
+        if (arity == 0) continue;
+        final int[] opTable = op.getTable();
+        final int[] repIndeces = new int[arity];
+        repIndeces[arity - 1] = closedMark;
+        final ArrayIncrementor inc = 
+            SequenceGenerator.sequenceIncrementor(repIndeces, currentMark - 1, closedMark);
+        // the position in the orbit of each argument after the first
+        final int[] orbitIndeces = new int[arity];
+        final int[][] args = new int[arity][];
+        for (int r = 1; r < arity; r++) {
+          args[r] = new int[power];
         }
-        SingleClose singleClose = new SingleClose(ans, termMap, f, closedMark, currentMark - 1, eltsFound);
-        List<List<IntArray>> results = singleClose.doOneStep(pool, Thread.currentThread(), report, timing);
-        for (List<IntArray> lst : results) {
-          System.out.println("lst size: " + lst.size());
-          ans.addAll(lst);
-          
+        final int[] arg = new int[arity];
+        final int[] v = new int[power];
+        final int[] canonical = new int[power];
+        while (true) {
+          if (Thread.currentThread().isInterrupted()) {
+            if (reportNotNull) {
+              report.setSize(ans.size());
+              report.addEndingLine("cancelled ...");
+            }
+            return null;
+          }
+          args[0] = reps.get(repIndeces[0]);
+          Arrays.fill(orbitIndeces, 0);
+          for (int r = 1; r < arity; r++) {
+            permute(reps.get(repIndeces[r]), group[orbits.get(repIndeces[r])[0]], args[r]);
+          }
+          while (true) {
+            if (opTable != null) {
+              for (int j = 0; j < power; j++) {
+                int factor = algSize;
+                int index = args[0][j];
+                for (int r = 1; r < arity; r++) {
+                  index += factor * args[r][j];
+                  factor = factor * algSize;
+                }
+                v[j] = opTable[index];
+              }
+            }
+            else {
+              for (int j = 0; j < power; j++) {
+                for (int r = 0; r < arity; r++) {
+                  arg[r] = args[r][j];
+                }
+                v[j] = op.intValueAt(arg);
+              }
+            }
+            canonicalForm(v, group, canonical);
+            if (reps.indexOf(canonical) < 0) {
+              final int[] rep = Arrays.copyOf(canonical, power);
+              reps.add(rep);
+              final IntArray repArray = new IntArray(rep);
+              ans.add(repArray);
+              final int[] orbit = orbit(rep, group);
+              orbits.add(orbit);
+              total += orbit.length;
+              if (reportNotNull) report.setSize(ans.size());
+              if (listener != null && !listener.elementFound(repArray, ans.size() - 1, this)) {
+                stopForListener();
+                setOrbitSizes(orbits);
+                return ans;
+              }
+              if (eltToFindRep != null && eltToFindRep.equals(repArray)) {
+                eltToFind = repArray;
+                if (reportNotNull) {
+                  report.addEndingLine("closing done, found " + eltToFind + ", at " + ans.size());
+                }
+                setOrbitSizes(orbits);
+                return ans;
+              }
+            }
+            // the next argument in the orbits, changing the last first
+            int r = arity - 1;
+            for ( ; r > 0; r--) {
+              final int[] orbit = orbits.get(repIndeces[r]);
+              if (++orbitIndeces[r] < orbit.length) {
+                permute(reps.get(repIndeces[r]), group[orbit[orbitIndeces[r]]], args[r]);
+                break;
+              }
+              orbitIndeces[r] = 0;
+              permute(reps.get(repIndeces[r]), group[orbit[0]], args[r]);
+            }
+            if (r == 0) break;
+          }
+          if (arity == 1) {
+            if (++repIndeces[0] >= currentMark) break;
+          }
+          else if (!inc.increment()) break;
         }
-        System.out.println("in loop ans size: " +  ans.size() + ", term map size: " + termMap.size());
       }
       closedMark = currentMark;
       currentMark = ans.size();
-      if (imgAlgNull && algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
     }
-    if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
+    setOrbitSizes(orbits);
+    if (reportNotNull) {
+      report.setSize(ans.size());
+      report.addEndingLine("done closing, representatives: " + ans.size() 
+                           + ", elements: " + total);
+    }
     completed = true;
     return ans;
   }
-    
+  
+  private void setOrbitSizes(List<int[]> orbits) {
+    orbitSizes = new int[orbits.size()];
+    for (int i = 0; i < orbitSizes.length; i++) {
+      orbitSizes[i] = orbits.get(i).length;
+    }
+  }
 
+  /**
+   * The sizes of the orbits of the representatives found by the last
+   * call to <code>sgCloseUnderSymmetry</code>, in the same order; 
+   * their sum is the size of the closure. It is null if that call was
+   * cancelled.
+   */
+  public int[] getOrbitSizes() { return orbitSizes; }
   
   /**
-   * Closure of <tt>elems</tt> under the operations. (Worry about
-   * nullary ops later.)
+   * <code>x</code> with its coordinates permuted by <code>perm</code>:
+   * its ith coordinate is <code>x[perm[i]]</code>.
+   */
+  private static int[] permute(int[] x, int[] perm, int[] dest) {
+    final int n = x.length;
+    for (int i = 0; i < n; i++) {
+      dest[i] = x[perm[i]];
+    }
+    return dest;
+  }
+  
+  /**
+   * Put the lexicographically least image of <code>x</code> under the
+   * group into <code>dest</code>.
+   */
+  private static int[] canonicalForm(int[] x, int[][] group, int[] dest) {
+    final int n = x.length;
+    System.arraycopy(x, 0, dest, 0, n);
+    for (int[] g : group) {
+      // compare x permuted by g with dest without making it
+      for (int i = 0; i < n; i++) {
+        final int a = x[g[i]];
+        if (a != dest[i]) {
+          if (a < dest[i]) permute(x, g, dest);
+          break;
+        }
+      }
+    }
+    return dest;
+  }
+  
+  /**
+   * The indices of group elements giving the distinct members of the
+   * orbit of <code>x</code>.
+   */
+  private static int[] orbit(int[] x, int[][] group) {
+    final IntTupleSet images = new IntTupleSet();
+    final int[] ans = new int[group.length];
+    int k = 0;
+    for (int i = 0; i < group.length; i++) {
+      if (images.add(permute(x, group[i], new int[x.length])) >= 0) ans[k++] = i;
+    }
+    return Arrays.copyOf(ans, k);
+  }
+  
+  public List<IntArray> sgClosePower() {
+    //System.out.println("gens = " + generators);
+    //System.out.println("termMap = " + termMap);
+    return sgClosePower(generators, 0, termMap);
+  }
+  
+  /**
+   * A fast version for powers to compute the 
+   * closure of <tt>elems</tt> under the operations. 
    *
    * @param elems a List of IntArray's
    *
@@ -818,120 +1233,289 @@ if (false) {
    *
    * @return a List of IntArray's.
    */
-  public List<IntArray> sgCloseParallel_Old(List<IntArray> elems, int closedMark, 
-                                        Map<IntArray,Term> termMap) {
-    
-    if (algebra.isPower()) {
-      SmallAlgebra alg = algebra.rootFactors().get(0);
-      alg.makeOperationTables();
-      return sgClosePower(elems, closedMark, termMap);
+  private final List<IntArray> sgClosePower(
+                     List<IntArray> elems, int closedMark, 
+                     final Map<IntArray,Term> termMap) {
+    completed = false;
+    appCount = 0;
+    final List<IntArray> lst;
+    try {
+      if (shardDirectory != null) lst = sgClosePowerSharded(elems);
+      else if (externalSortDirectory != null) lst = sgClosePowerExternal(elems, closedMark);
+      else lst = sgClosePowerAux(elems, closedMark, termMap);
     }
-    
-    if (report != null) report.addStartLine("parallel subpower closing ...");
-
-    final int numOfOps = algebra.operations().size();  
-    List<Operation> imgOps = null;
-    if (homomorphism != null) {
-      imgOps = new ArrayList<Operation>(numOfOps);
-      for (Operation op : algebra.operations()) {
-        imgOps.add(imageAlgebra.getOperation(op.symbol()));
-      }
+    finally {
+      metrics.finish(ans == null ? 0 : ans.size(), appCount, completed);
     }
-    
-    // these final boolean are meant to help the jit compiler.
-    final boolean reportNotNull = report == null ? false : true;
-    final boolean imgAlgNull = imgOps == null ? true : false;
-    final boolean eltToFindNotNull = eltToFind == null ? false : true;
-    final boolean eltsToFindNotNull = eltsToFind == null ? false : true;
-    final boolean operationsNotNull = operations == null ? false : true;
+    // cancelled: nobody gets the store, so delete its files now
+    if (lst == null) closePackedAnswer();
+    if (!lazyTerms) fillTermMap();
+    return lst;
+  }
+  
+  /**
+   * Close <code>elems</code> in a power with a <code>ShardedCloser</code>;
+   * see <code>setShardDirectory</code>.
+   */
+  private List<IntArray> sgClosePowerSharded(List<IntArray> elems) {
+    if (homomorphism != null || operations != null || eltsToFind != null || blocks != null
+        || values != null || constraintSet != null || congruenceForCongruenceConstraint != null
+        || listener != null) {
+      throw new IllegalStateException(
+          "only the element to find can be searched for when closing with shards");
+    }
+    provenance = null;
+    provenanceMap = null;
+    final ShardedCloser sharded = new ShardedCloser(algebra, elems, shardDirectory, shards);
+    sharded.setProgressReport(report);
+    sharded.setSuppressOutput(suppressOutput);
+    sharded.setElementToFind(eltToFind);
+    sharded.setMaxSize(maxSize);
+    metrics.start(algebra.getNumberOfFactors(), elems.size(), null);
+    ans = sharded.sgClose();
+    packedAnswer = sharded.getElements();
+    appCount = sharded.getApplications();
+    completed = sharded.isCompleted();
+    return ans;
+  }
 
-    elems = Collections.synchronizedList(elems);
-    ans = Collections.synchronizedList(new ArrayList<IntArray>(elems));// IntArrays
-    final List<int[]> rawList = Collections.synchronizedList(new ArrayList<int[]>()); // the corr raw int[]
-    synchronized(elems) {
-      for (Iterator<IntArray> it = elems.iterator(); it.hasNext(); ) {
-        rawList.add(it.next().getArray());
+  /**
+   * Close <code>elems</code> in a power by external sorting; see
+   * <code>setExternalSortDirectory</code>. The elements are kept in a
+   * <code>PackedTupleFile</code> in the order found and, sorted, in a
+   * second file which is merged with the sorted values of each pass.
+   */
+  private List<IntArray> sgClosePowerExternal(List<IntArray> elems, int closedMark) {
+    if (homomorphism != null || operations != null || eltsToFind != null || blocks != null
+        || values != null || constraintSet != null || congruenceForCongruenceConstraint != null) {
+      throw new IllegalStateException(
+          "only the element to find can be searched for when closing with external sorting");
+    }
+    final boolean reportNotNull = report != null;
+    if (reportNotNull) report.addStartLine("subpower closing with external sorting ...");
+    final SmallAlgebra alg = algebra.factors().get(0);
+    final int algSize = alg.cardinality();
+    final int power = algebra.getNumberOfFactors();
+    final List<Operation> ops = alg.operations();
+    final int[][] opTables = new int[ops.size()][];
+    for (int i = 0; i < ops.size(); i++) {
+      final Operation op = ops.get(i);
+      if (op instanceof OperationWithDefaultValue) {
+        opTables[i] = ((OperationWithDefaultValue)op).getTotalTable();
       }
+      else opTables[i] = op.getTable();
     }
-    termMap = new ConcurrentHashMap<IntArray,Term>(termMap);
-    //final HashSet<IntArray> su = new HashSet<IntArray>(ans);
-    int currentMark = ans.size();
-    int pass = 0;
-    CloserTiming timing = null; 
-    if (reportNotNull) timing = new CloserTiming(algebra, report);
-    //int currPassSize = 0; // for time left
-    //int lastPassSize = 0; // for time left
-    //final int numberProjs = algebra.getNumberOfFactors(); // for time left
-    while (closedMark < currentMark) {
-      if (reportNotNull) timing.updatePass(ans.size());
-      //lastPassSize = currPassSize;
-      //currPassSize = ans.size();
-      //long funcAppsNeeded = countFuncApplications(lastPassSize, currPassSize);
-      //long appsSoFar = 0;
-      String str = "pass: " + pass + ", size: " + ans.size();
-      if (reportNotNull) {
-        report.setPass(pass);
-        report.setPassSize(ans.size());
-        if (!suppressOutput) report.addLine(str);
+    provenance = null;
+    provenanceMap = null;
+    stoppedByListener = false;
+    final int argTuples = externalSortBuffer - externalSortBuffer / 2;
+    final ExternalTupleSorter sorter = 
+        new ExternalTupleSorter(externalSortDirectory, power, algSize, externalSortBuffer / 2);
+    File universe = null;
+    try {
+      final PackedTupleFile order = 
+          new PackedTupleFile(sorter.newFile("closure"), power, algSize);
+      packedAnswer = order;
+      ans = order.asList();
+      final Set<IntArray> start = new HashSet<IntArray>(elems);
+      for (IntArray arr : elems) {
+        order.append(arr.getArray());
+        sorter.add(arr.getArray());
       }
-      else {
-        if (!suppressOutput) System.out.println(str);
+      for (IntArray arr : algebra.getConstants()) {
+        if (start.add(arr)) {
+          order.append(arr.getArray());
+          sorter.add(arr.getArray());
+        }
       }
-      pass++;
-      if (Thread.currentThread().isInterrupted()) {
-        if (reportNotNull) report.addEndingLine("cancelled ...");
-        return null;
+      universe = sorter.newFile("universe");
+      sorter.merge(null, universe, null);
+      metrics.start(power, order.size(), null);
+      if (listener != null && notifyListener(0)) return ans;
+      final ExternalSink sink = new ExternalSink(order);
+      int currentMark = order.size();
+      int pass = 0;
+      while (closedMark < currentMark) {
+        metrics.startPass(pass, order.size(), appCount);
+        String str = "pass: " + pass + ", size: " + order.size();
+        if (reportNotNull) {
+          report.setPass(pass);
+          report.setPassSize(order.size());
+          if (!suppressOutput) report.addLine(str);
+        }
+        else {
+          if (!suppressOutput) System.out.println(str);
+        }
+        if (maxSize > 0 && order.size() >= maxSize) return ans;
+        pass++;
+        for (int i = 0; i < ops.size(); i++) {
+          final Operation op = ops.get(i);
+          final int arity = op.arity();
+          if (arity == 0) continue;
+          if (!applyExternal(op, opTables[i], order, closedMark, currentMark, 
+                             Math.max(1, argTuples / arity), sorter)) {
+            if (reportNotNull) {
+              report.setSize(order.size());
+              report.addEndingLine("cancelled ...");
+            }
+            return null;
+          }
+        }
+        final File merged = sorter.newFile("universe");
+        sorter.merge(universe, merged, sink);
+        universe.delete();
+        universe = merged;
+        if (reportNotNull) report.setSize(order.size());
+        if (stoppedByListener) return ans;
+        if (sink.found) {
+          if (reportNotNull) report.addEndingLine("closing done, found "
+                                                  + eltToFind + ", at " + (order.size() - 1));
+          return ans;
+        }
+        if (maxSize > 0 && order.size() >= maxSize) return ans;
+        closedMark = currentMark;
+        currentMark = order.size();
+        if (algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
       }
-      CountDownLatch latch = new CountDownLatch(nCPUs);
-      ConcurrentHashMap<IntArray,Term> map = new ConcurrentHashMap<IntArray,Term>();
-      for (int i = 0; i < nCPUs; ++i) {// create and start threads
-        new Thread(new ParallelWorker(latch, i, map, numOfOps, closedMark, currentMark, reportNotNull, rawList, timing)).start();
+      if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
+      completed = true;
+      return ans;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      sorter.close();
+      if (universe != null) universe.delete();
+    }
+  }
+
+  /**
+   * Apply <code>op</code> to the tuples of elements of 
+   * <code>answer</code> with indices less than <code>currentMark</code>,
+   * at least one of them at least <code>closedMark</code>, and add the
+   * values to <code>sorter</code>. The arguments are read in blocks of
+   * at most <code>blockSize</code> elements, each within the old or
+   * the new elements, so only blocks with a new one are read.
+   *
+   * @param opTable  the table of <code>op</code> or null
+   * @return false if cancelled
+   */
+  private boolean applyExternal(Operation op, int[] opTable, PackedTupleFile answer, 
+                                int closedMark, int currentMark, int blockSize,
+                                ExternalTupleSorter sorter) throws IOException {
+    final int arity = op.arity();
+    final int power = answer.tupleLength();
+    final int algSize = answer.base();
+    final int nOld = (closedMark + blockSize - 1) / blockSize;
+    final int nNew = (currentMark - closedMark + blockSize - 1) / blockSize;
+    final int nBlocks = nOld + nNew;
+    // block b is starts[b], ..., starts[b + 1] - 1
+    final int[] starts = new int[nBlocks + 1];
+    for (int b = 0; b < nOld; b++) {
+      starts[b] = b * blockSize;
+    }
+    for (int b = 0; b <= nNew; b++) {
+      starts[nOld + b] = Math.min(currentMark, closedMark + b * blockSize);
+    }
+    final int[] blockIndeces = new int[arity];
+    final int[] loaded = new int[arity];
+    Arrays.fill(loaded, -1);
+    final int[][][] data = new int[arity][Math.min(blockSize, currentMark)][power];
+    final int[] pos = new int[arity];
+    final int[][] argRaw = new int[arity][];
+    final int[] arg = new int[arity];
+    final int[] vRaw = new int[power];
+    while (true) {
+      boolean hasNew = false;
+      for (int r = 0; r < arity; r++) {
+        if (blockIndeces[r] >= nOld) hasNew = true;
       }
-      try {
-        latch.await();
+      if (hasNew) {
+        for (int r = 0; r < arity; r++) {
+          final int b = blockIndeces[r];
+          if (loaded[r] != b) {
+            answer.read(starts[b], starts[b + 1], data[r]);
+            loaded[r] = b;
+          }
+        }
+        Arrays.fill(pos, 0);
+        while (true) {
+          for (int r = 0; r < arity; r++) {
+            argRaw[r] = data[r][pos[r]];
+          }
+          if (opTable != null) {
+            for (int j = 0; j < power; j++) {
+              int factor = algSize;
+              int index = argRaw[0][j];
+              for (int r = 1; r < arity; r++) {
+                index += factor * argRaw[r][j];
+                factor = factor * algSize;
+              }
+              vRaw[j] = opTable[index];
+            }
+          }
+          else {
+            for (int j = 0; j < power; j++) {
+              for (int r = 0; r < arity; r++) {
+                arg[r] = argRaw[r][j];
+              }
+              vRaw[j] = op.intValueAt(arg);
+            }
+          }
+          sorter.add(vRaw);
+          if ((++appCount & 0xffff) == 0) {
+            metrics.update(answer.size(), appCount);
+            if (Thread.currentThread().isInterrupted()) return false;
+          }
+          int r = arity - 1;
+          while (r >= 0 && ++pos[r] == starts[blockIndeces[r] + 1] - starts[blockIndeces[r]]) {
+            pos[r] = 0;
+            r--;
+          }
+          if (r < 0) break;
+        }
       }
-      catch (InterruptedException e) { return null; }  // also write to the report.
-      
-      
-      System.out.println("map: " + map);
-      for (IntArray ia : map.keySet()) {
-        System.out.println("ia: " + ia + ", term: " + map.get(ia));
-        ans.add(ia);
-        rawList.add(ia.getArray());
-        termMap.put(ia, map.get(ia));
+      int r = arity - 1;
+      while (r >= 0 && ++blockIndeces[r] == nBlocks) {
+        blockIndeces[r] = 0;
+        r--;
       }
-      
-      
-      
-      closedMark = currentMark;
-      currentMark = ans.size();
-      if (imgAlgNull && algebra.cardinality() > 0 && currentMark >= algebra.cardinality()) break;
+      if (r < 0) return true;
     }
-    if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
-    completed = true;
-    return ans;
-  }
-  
-  public List<IntArray> sgClosePower() {
-    //System.out.println("gens = " + generators);
-    //System.out.println("termMap = " + termMap);
-    return sgClosePower(generators, 0, termMap);
   }
-  
+
   /**
-   * A fast version for powers to compute the 
-   * closure of <tt>elems</tt> under the operations. 
-   *
-   * @param elems a List of IntArray's
-   *
-   * @param termMap a Map from the element to the corresponding term
-   *                used to generated it. The generators should be 
-   *                already in the Map. In other words the termMap
-   *                should have the same number of entries as elems.
-   *
-   * @return a List of IntArray's.
+   * Appends the new elements found by a merge of 
+   * <code>sgClosePowerExternal</code> to the answer and looks for the
+   * element to find.
    */
-  private final List<IntArray> sgClosePower(
+  private final class ExternalSink implements ExternalTupleSorter.Sink {
+    final PackedTupleFile answer;
+    boolean found = false;
+
+    ExternalSink(PackedTupleFile answer) {
+      this.answer = answer;
+    }
+
+    public boolean accept(int[] tuple) {
+      final int index = answer.append(tuple);
+      if (listener != null || eltToFind != null) {
+        final IntArray v = new IntArray(Arrays.copyOf(tuple, tuple.length));
+        if (listener != null && !listener.elementFound(v, index, Closer.this)) {
+          stopForListener();
+          return false;
+        }
+        if (eltToFind != null && v.equals(eltToFind)) {
+          found = true;
+          return false;
+        }
+      }
+      return maxSize <= 0 || index + 1 < maxSize;
+    }
+  }
+  
+  private final List<IntArray> sgClosePowerAux(
                      List<IntArray> elems, int closedMark, 
                      final Map<IntArray,Term> termMap) {
     //System.out.println("elems: " + elems);
@@ -980,32 +1564,159 @@ if (false) {
     final boolean constraintCongruenceNotNull = congruenceForCongruenceConstraint == null ? false : true;
     
     if (operationsNotNull) termMapForOperations = new HashMap<Operation,Term>();
-    int operationsFound = 0;
+    operationsFound = 0;
+    stoppedByListener = false;
+    homomorphismTable = null;
     
     //System.out.println("got to sgClosePower, reportNotNull: " + reportNotNull);
     final int power = algebra.getNumberOfFactors();
-    ans = new ArrayList<IntArray>(elems);// IntArrays
+    // if packed the elements are only kept in packedAnswer and
+    // ans is a view of it.
+    final boolean packed = packTuples || spillDirectory != null;
+    // the homomorphism is indexed like ans so it needs the index of old elements.
+    final boolean useTupleSet = !packed && (this.useTupleSet || imgOps != null);
     final List<int[]> rawList = new ArrayList<int[]>(); // the corresponding raw int[]'s
-    for (IntArray arr : elems) {
-      rawList.add(arr.getArray());
+    if (packed) {
+      // elems may be a view of it, so it is closed once they are copied
+      final TupleStore previous = packedAnswer;
+      if (spillDirectory != null) {
+        try {
+          packedAnswer = new MappedTupleStore(spillDirectory, power, algSize);
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        if (reportNotNull) report.addLine("keeping the elements in " + spillDirectory);
+      }
+      else packedAnswer = new PackedTupleStore(power, algSize);
+      for (IntArray arr : elems) {
+        packedAnswer.append(arr.getArray());
+      }
+      ans = packedAnswer.asList();
+      if (previous instanceof MappedTupleStore) {
+        try {
+          ((MappedTupleStore)previous).close();
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
     }
-    final HashSet<IntArray> su = new HashSet<IntArray>(ans);
+    else {
+      ans = new ArrayList<IntArray>(elems);// IntArrays
+      for (IntArray arr : elems) {
+        rawList.add(arr.getArray());
+      }
+    }
+    final HashSet<IntArray> su = packed || useTupleSet ? null : new HashSet<IntArray>(ans);
+    final IntTupleSet tupleSet = useTupleSet ? new IntTupleSet(rawList) : null;
+    metrics.start(power, ans.size(), tupleSet);
     //         Code to add the constants
     final List<IntArray> constants = algebra.getConstants();// add the constants, if any
     for (IntArray arr : constants) {
-      if (su.add(arr)) {
-        ans.add(arr);
-        rawList.add(arr.getArray());
+      final boolean isNew;
+      if (packed) isNew = packedAnswer.add(arr.getArray()) >= 0;
+      else if (useTupleSet) isNew = tupleSet.add(arr.getArray()) >= 0;
+      else isNew = su.add(arr);
+      if (isNew) {
+        if (!packed) {
+          ans.add(arr);
+          rawList.add(arr.getArray());
+        }
         if (termMap != null) {
           termMap.put(arr, NonVariableTerm.makeConstantTerm(algebra.constantToSymbol.get(arr)));
         }
       }
     }
+    // the terms of the new elements are recorded in provenance and
+    // put into termMap when they are asked for.
+    provenance = null;
+    provenanceMap = null;
+    if (termMap != null) {
+      provenance = new TermProvenance(Arrays.asList(symbols));
+      provenanceMap = termMap;
+      final int n = ans.size();
+      for (int j = 0; j < n; j++) {
+        provenance.addLeaf(termMap.get(ans.get(j)));
+      }
+    }
     int currentMark = ans.size();
     int pass = 0;
+    // where the first pass starts when resuming
+    int startOp = 0;
+    int[] startArgs = null;
+    if (resume && checkpointFile != null && checkpointFile.exists()) {
+      final CloserCheckpoint cp;
+      try {
+        cp = CloserCheckpoint.read(checkpointFile);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      final int start = ans.size();
+      boolean ok = cp.power == power && cp.algSize == algSize && cp.size() >= start;
+      for (int j = 0; ok && j < start; j++) {
+        ok = Arrays.equals(cp.elements.get(j), ans.get(j).getArray());
+      }
+      if (!ok) {
+        throw new IllegalArgumentException(checkpointFile 
+                                 + " is not a checkpoint of this closure");
+      }
+      for (int j = start; j < cp.size(); j++) {
+        final int[] raw = cp.elements.get(j);
+        if (packed) packedAnswer.append(raw);
+        else {
+          final IntArray v = new IntArray(raw);
+          ans.add(v);
+          rawList.add(raw);
+          if (useTupleSet) tupleSet.add(raw);
+          else su.add(v);
+        }
+      }
+      if (provenance != null) {
+        final TermProvenance cpTerms = cp.terms;
+        for (int j = start; j < cp.size(); j++) {
+          if (cpTerms == null) provenance.addLeaf(null);
+          else if (cpTerms.isLeaf(j)) provenance.addLeaf(cpTerms.getTerm(j));
+          else {
+            final OperationSymbol sym = cpTerms.getSymbols().get(cpTerms.opIndex(j));
+            provenance.add(provenance.symbolIndex(sym), cpTerms.argIndeces(j));
+          }
+        }
+      }
+      if (homomorphism != null && cp.homomorphism != null) {
+        for (int j = start; j < cp.size(); j++) {
+          if (cp.homomorphism[j] >= 0) homomorphism.put(ans.get(j), cp.homomorphism[j]);
+        }
+      }
+      closedMark = cp.closedMark;
+      currentMark = cp.currentMark;
+      pass = cp.pass - 1;  // the pass is incremented at the start of the loop
+      startOp = cp.opIndex;
+      startArgs = cp.argIndeces;
+      final String line = "resuming from " + checkpointFile + " at pass " 
+                          + cp.pass + ", size " + ans.size();
+      if (reportNotNull) report.addLine(line);
+      else if (!suppressOutput) System.out.println(line);
+      if (eltToFindNotNull && ans.contains(eltToFind)) {
+        if (reportNotNull) {
+          report.setSize(ans.size());
+          report.addEndingLine("closing done, found " + eltToFind);
+        }
+        return ans;
+      }
+    }
+    if (imgOps != null) makeHomomorphismTable(Arrays.asList(imgOps));
+    if (listener != null && notifyListener(0)) return ans;
+    if (eltsToFindNotNull) notifyTargetListener();
+    final boolean checkpointing = checkpointFile != null;
+    long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+    int checkpointCount = 0;
     final CloserTiming timing = reportNotNull ?  new CloserTiming(algebra, report) : null;
+    final boolean parallelOK = (parallel || doParallel) && useTupleSet && nCPUs > 1;
     //vvv;
     while (closedMark < currentMark) {
+      metrics.startPass(pass, ans.size(), appCount);
       String str = "pass: " + pass + ", size: " + ans.size();
       if (reportNotNull) {
         timing.updatePass(ans.size());
@@ -1019,19 +1730,114 @@ if (false) {
       if (maxSize > 0 && ans.size() >= maxSize) return ans;
       pass++;
       // close the elements in current
-      for (int i = 0; i < k; i++) {
+      final int firstOp = startOp;
+      startOp = 0;
+      for (int i = firstOp; i < k; i++) {
         final int arity = arities[i];
         if (arity == 0) continue;  // worry about constansts later
         final int[] opTable = opTables[i];
+        if (checkpointing && startArgs == null && System.currentTimeMillis() >= nextCheckpoint) {
+          writeCheckpoint(power, algSize, pass, closedMark, currentMark, i, null, termMap);
+          nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+        }
+        if (startArgs == null && parallelOK 
+            && worthDoingInParallel(arity, closedMark, currentMark, power)) {
+          final int status = closeOpInParallel(i, opTable, ops.get(i), symbols[i], 
+              closedMark, currentMark, rawList, tupleSet, termMap, imgOps, timing);
+          if (status == STOP) return ans;
+          if (status == CANCELLED) {
+            if (reportNotNull) {
+              report.setSize(ans.size());
+              report.addEndingLine("cancelled ...");
+            }
+            return null;
+          }
+          continue;
+        }
         final int[] argIndeces = new int[arity];
         for (int r = 0; r < arity - 1; r++) {
           argIndeces[r] = 0;
         }
         argIndeces[arity - 1] = closedMark;
+        if (startArgs != null) {
+          System.arraycopy(startArgs, 0, argIndeces, 0, arity);
+          startArgs = null;
+        }
         ArrayIncrementor inc =
                     SequenceGenerator.sequenceIncrementor(
                                   argIndeces, currentMark - 1, closedMark);
+        if (opTable != null && !packed && useTupleSet) {
+          // evaluate blocks of argument tuples at once into a reused
+          // buffer, copying only the new values.
+          final PowerBatchEvaluator batch = new PowerBatchEvaluator(opTable, arity, algSize, power);
+          final int[] values = batch.values();
+          final int[] args = new int[arity];
+          boolean more = true;
+          while (more) {
+            batch.clear();
+            while (more && !batch.isFull()) {
+              batch.add(argIndeces);
+              more = inc.increment();
+            }
+            batch.evaluate(rawList);
+            for (int t = 0; t < batch.count(); t++) {
+              batch.argIndeces(t, args);
+              if (checkpointing && (++checkpointCount & 0xffff) == 0 
+                  && System.currentTimeMillis() >= nextCheckpoint) {
+                writeCheckpoint(power, algSize, pass, closedMark, currentMark, i, args, termMap);
+                nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+              }
+              if (Thread.currentThread().isInterrupted()) {
+                if (reportNotNull) {
+                  report.setSize(ans.size());
+                  report.addEndingLine("cancelled ...");
+                }
+                return null;
+              }
+              if (reportNotNull) timing.incrementApps();
+              if ((++appCount & 0xffff) == 0) metrics.update(ans.size(), appCount);
+              final int index = tupleSet.addCopy(values, t * power, power);
+              if (index >= 0) {
+                final int[] vRaw = tupleSet.get(index);
+                final IntArray v = new IntArray(vRaw);
+                ans.add(v);
+                rawList.add(vRaw);
+                if (reportNotNull) timing.incrementNextPassSize();
+                if (reportNotNull) report.setSize(ans.size());
+                if (Thread.currentThread().isInterrupted()) return null;
+                if (processNewElement(v, i, args, symbols[i], termMap, imgOps)) return ans;
+                if (Thread.currentThread().isInterrupted()) {
+                  if (reportNotNull) {
+                    report.setSize(ans.size());
+                    report.addEndingLine("cancelled ...");
+                  }
+                  return null;
+                }
+              }
+              else if (!imgAlgNull && homomorphismFails(-(index + 1), args, i, symbols[i], termMap)) {
+                return ans;
+              }
+            }
+          }
+          continue;
+        }
+        // the raw arguments; when packed, argRaw[r] is a buffer holding
+        // the unpacked element with index unpackedIndeces[r].
+        final int[][] argRaw = new int[arity][];
+        final int[] unpackedIndeces = new int[arity];
+        if (packed) {
+          for (int r = 0; r < arity; r++) {
+            argRaw[r] = new int[power];
+            unpackedIndeces[r] = -1;
+          }
+        }
+        final int[] vScratch = packed ? new int[power] : null;
         while (true) {
+          if (checkpointing && (++checkpointCount & 0xffff) == 0 
+              && System.currentTimeMillis() >= nextCheckpoint) {
+            writeCheckpoint(power, algSize, pass, closedMark, currentMark, i, argIndeces, termMap);
+            nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+          }
           if (Thread.currentThread().isInterrupted()) {
             if (reportNotNull) {
               report.setSize(ans.size());
@@ -1042,15 +1848,22 @@ if (false) {
           //for (int i = 0; i < arity; i++) {
           //  arg[i] = rawList.get(argIndeces[i]);
           //}
-          final int[] vRaw = new int[power];
+          for (int r = 0; r < arity; r++) {
+            if (!packed) argRaw[r] = rawList.get(argIndeces[r]);
+            else if (unpackedIndeces[r] != argIndeces[r]) {
+              packedAnswer.get(argIndeces[r], argRaw[r]);
+              unpackedIndeces[r] = argIndeces[r];
+            }
+          }
+          final int[] vRaw = packed ? vScratch : new int[power];
 
 //yyy;
           if (opTable != null) {
             for (int j = 0; j < power; j++) {
               int factor = algSize;
-              int index = rawList.get(argIndeces[0])[j];
+              int index = argRaw[0][j];
               for (int r = 1; r < arity; r++) {
-                index += factor * rawList.get(argIndeces[r])[j];
+                index += factor * argRaw[r][j];
                 factor = factor * algSize;
               }
               vRaw[j] = opTable[index];
@@ -1062,136 +1875,30 @@ if (false) {
             for (int j = 0; j < power; j++) {
               final int[] arg = new int[f.arity()];
               for (int r = 0; r < arity; r++) {
-                arg[r] = rawList.get(argIndeces[r])[j];
+                arg[r] = argRaw[r][j];
               }
               vRaw[j] = f.intValueAt(arg);
             }
           }
           IntArray v = new IntArray(vRaw);
           if (reportNotNull) timing.incrementApps();
-          if (su.add(v)) {
-            ans.add(v);
-            rawList.add(vRaw);
+          if ((++appCount & 0xffff) == 0) metrics.update(ans.size(), appCount);
+          // the index of v if it is new and -(index + 1) if not; there 
+          // is no index with the HashSet, but then there is no homomorphism.
+          final int index;
+          if (packed) index = packedAnswer.add(vRaw);
+          else if (useTupleSet) index = tupleSet.add(vRaw);
+          else index = su.add(v) ? ans.size() : -1;
+          if (index >= 0) {
+            if (packed) v = new IntArray(Arrays.copyOf(vRaw, power));
+            else {
+              ans.add(v);
+              rawList.add(vRaw);
+            }
             if (reportNotNull) timing.incrementNextPassSize();
             if (reportNotNull) report.setSize(ans.size());
             if (Thread.currentThread().isInterrupted()) return null;
-            if (termMap != null) {
-              List<Term> children = new ArrayList<Term>(arity);
-              for (int r = 0; r < arity; r++) {
-                //children.set(i, termMap.get(arg.get(i)));
-                children.add(termMap.get(ans.get(argIndeces[r])));
-              }
-              termMap.put(v, new NonVariableTerm(symbols[i], children));
-              //logger.fine("" + v + " from " + f.symbol() + " on " + arg);
-              if (operationsNotNull) {
-                Term term = termMap.get(v);
-                // why are recreating vars each time ???
-                List<Variable> vars = new ArrayList<Variable>(generators.size());
-                for (IntArray ia : generators) {
-                  vars.add((Variable)termMap.get(ia));
-                }
-                Operation termOp = term.interpretation(rootAlgebra, vars, true);
-                for (Operation op : operations) {
-                  if (Operations.equalValues(termOp, op)) {
-                    termMapForOperations.put(op, term);
-                    operationsFound++;
-                    if (operationsFound == operations.size()) return ans;
-                  }
-                }
-              }
-            }
-            if (eltToFindNotNull && v.equals(eltToFind)) {
-              if (reportNotNull) {
-                report.setSize(ans.size());
-                report.addEndingLine("closing done, found "
-                    + eltToFind + ", at " + ans.size());
-              }
-              return ans;
-            }
-            // the get is  likely to be null so do it in this order.
-            if (eltsToFindNotNull  && minusOne.equals(indecesMapOfFoundElts.get(v))) {
-              final int index = ans.size() - 1;
-              indecesMapOfFoundElts.put(v, index);
-              specialEltsFound++;
-              System.out.println("found " + v);
-              if (reportNotNull) report.addLine("found " + v + ", at " + index);
-              if (specialEltsFound == eltsToFind.size()) {
-                if (reportNotNull) report.addEndingLine("closing done, found all "
-                    + eltsToFind.size() + " elems ");
-                allEltsFound = true;
-                return ans;
-              }
-            }
-            // This block of code is for when we are searching for a constrained element.
-            // If blocks, values and constraintCongruence are all null, then we
-            // skip this block. Otherwise we check if each non-null constraint
-            // is satisfied. If so we set the eltToFind to be the current element
-            // and stop closing.
-            if (blocksNotNull || valuesNotNull || constraintCongruenceNotNull) {
-              boolean ok = true;
-              if (blocksNotNull && !v.satisfiesBlocksConstraint(blocks)) ok = false;
-              if (ok && valuesNotNull && !v.satisfiesValuesConstraint(values)) ok = false;
-              if (ok && constraintCongruenceNotNull 
-                     && !v.satisfiesCongruenceConstraint(getIndexForCongruenceConstraint(), 
-                                                     getCongruenceForCongruenceConstraint(), 
-                                                     getCongruenceConstraintElemIndex())) ok = false;
-              if (ok) {
-                eltToFind = v;
-                if (reportNotNull) {
-                  report.setSize(ans.size());
-                  report.addEndingLine("closing done, found "
-                      + eltToFind + ", at " + ans.size());
-                }
-                return ans;
-              }
-            }
-            /*  Old version; delete soon. 
-            System.out.println("blocksNotNull: " + blocksNotNull);
-            if (blocksNotNull) {  // this assumes that if values != null then so is blocks
-              System.out.println("got ere");
-              boolean found = false;
-              if (valuesNotNull) {  
-                if (v.satisfiesBlocksConstraint(blocks) && v.satisfiesValuesConstraint(values)) found = true;
-              }
-              else if (!constraintCongruenceNotNull) { // only the blocks contraint exists
-                System.out.println("here, v = " + v);
-                if (v.satisfiesBlocksConstraint(blocks)) found = true;
-              }
-              if (v.satisfiesBlocksConstraint(blocks) 
-                  && v.satisfiesCongruenceConstraint(getIndexForCongruenceConstraint(), 
-                                                     getCongruenceForCongruenceConstraint(), 
-                                                     getCongruenceConstraintElemIndex())) {
-                found = true;
-              }
-              if (found) {
-                eltToFind = v;
-                if (reportNotNull) {
-                  report.setSize(ans.size());
-                  report.addEndingLine("closing done, found "
-                      + eltToFind + ", at " + ans.size());
-                }
-                return ans;
-              }
-            }
-            */
-            // can't quit early if we are looking for a homomorphism
-            if (imgOps == null) {
-              final int size = ans.size();
-              if (imgAlgNull && algebra.cardinality() > 0 && size == algebra.cardinality()) {  
-                if (reportNotNull) {
-                  report.addEndingLine("found all " + size + " elements");
-                  report.setSize(ans.size());
-                }
-                return ans;
-              }
-            }
-            else {
-              final int[] args = new int[arity];
-              for (int t = 0; t < arity; t++) {
-                args[t] = homomorphism.get(ans.get(argIndeces[t]));
-              }
-              homomorphism.put(v, imgOps[i].intValueAt(args));
-            }
+            if (processNewElement(v, i, argIndeces, symbols[i], termMap, imgOps)) return ans;
             if (Thread.currentThread().isInterrupted()) {
               if (reportNotNull) {
                 report.setSize(ans.size());
@@ -1201,33 +1908,8 @@ if (false) {
             }
             
           }
-          else {
-            if (!imgAlgNull) {
-              // here
-              final int[] args = new int[arity];
-              for (int t = 0; t < arity; t++) {
-                args[t] = homomorphism.get(ans.get(argIndeces[t]));
-              }
-              if (homomorphism.get(v).intValue() != imgOps[i].intValueAt(args)) {
-                List<Term> children = new ArrayList<Term>(arity);
-                for (int r = 0; r < arity; r++) {
-                  //children.set(i, termMap.get(arg.get(i)));
-                  children.add(termMap.get(ans.get(argIndeces[r])));
-                }
-                failingEquation = new Equation(termMap.get(v),
-                    new NonVariableTerm(symbols[i], children));
-                final String line = "failing equation:\n" + failingEquation;
-                if (reportNotNull) {
-                  report.setSize(ans.size());
-                  report.addEndingLine(line);
-                }
-                else {
-                  System.out.println("failing equation:\n" + failingEquation);
-                  System.out.println("size so far: " + ans.size());
-                }
-                return ans;
-              }
-            }
+          else if (!imgAlgNull && homomorphismFails(-(index + 1), argIndeces, i, symbols[i], termMap)) {
+            return ans;
           }
           if (!inc.increment()) break;
         }
@@ -1262,98 +1944,426 @@ if (false) {
     return ans;
   }
   
-  public long countFuncApplications(int size0, int size1) {
-    BigInteger ans = BigInteger.ZERO;
-    final BigInteger s0 = BigInteger.valueOf(size0);
-    final BigInteger s1 = BigInteger.valueOf(size1);
-    for (Operation op : algebra.operations()) {
-      final int r = op.arity();
-      ans = ans.add(s1.pow(r).subtract(s0.pow(r)));
+  /**
+   * The bookkeeping done by <code>sgClosePower</code> for each new
+   * element <code>v</code>, which has already been added to 
+   * <code>ans</code>: record its term, tell the listener, test it 
+   * against the operations, elements and constraints being searched 
+   * for and extend the homomorphism.
+   * 
+   * @return true if the closing should stop with <code>ans</code> as the answer
+   */
+  private boolean processNewElement(final IntArray v, final int opIndex, 
+                                    final int[] argIndeces, final OperationSymbol sym,
+                                    final Map<IntArray,Term> termMap, 
+                                    final Operation[] imgOps) {
+    final int arity = argIndeces.length;
+    final boolean reportNotNull = report != null;
+    final boolean imgAlgNull = imgOps == null;
+    final boolean eltToFindNotNull = eltToFind != null;
+    final boolean eltsToFindNotNull = eltsToFind != null;
+    final boolean operationsNotNull = operations != null;
+    final boolean blocksNotNull = blocks != null;
+    final boolean valuesNotNull = values != null;
+    final boolean constraintCongruenceNotNull = congruenceForCongruenceConstraint != null;
+    if (provenance != null) provenance.add(opIndex, argIndeces);
+    if (listener != null && !listener.elementFound(v, ans.size() - 1, this)) {
+      return stopForListener();
     }
-    if (ans.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0) return -1;
-    return ans.longValue() * algebra.getNumberOfFactors();
+    if (provenance != null) {
+      final int index = ans.size() - 1;
+      if (operationsNotNull) {
+        Term term = provenance.getTerm(index);
+        // why are recreating vars each time ???
+        List<Variable> vars = new ArrayList<Variable>(generators.size());
+        for (IntArray ia : generators) {
+          vars.add((Variable)termMap.get(ia));
+        }
+        Operation termOp = term.interpretation(rootAlgebra, vars, true);
+        for (Operation op : operations) {
+          if (Operations.equalValues(termOp, op)) {
+            termMapForOperations.put(op, term);
+            operationsFound++;
+            if (operationsFound == operations.size()) return true;
+          }
+        }
+      }
+    }
+    if (eltToFindNotNull && v.equals(eltToFind)) {
+      if (reportNotNull) {
+        report.setSize(ans.size());
+        report.addEndingLine("closing done, found "
+            + eltToFind + ", at " + ans.size());
+      }
+      return true;
+    }
+    if (eltsToFindNotNull && newTarget(v, ans.size() - 1)) {
+      final int index = ans.size() - 1;
+      System.out.println("found " + v);
+      if (reportNotNull) report.addLine("found " + v + ", at " + index);
+      if (specialEltsFound == eltsToFind.size()) {
+        if (reportNotNull) report.addEndingLine("closing done, found all "
+            + eltsToFind.size() + " elems ");
+        allEltsFound = true;
+        return true;
+      }
+    }
+    // This block of code is for when we are searching for a constrained element.
+    // If blocks, values and constraintCongruence are all null, then we
+    // skip this block. Otherwise we check if each non-null constraint
+    // is satisfied. If so we set the eltToFind to be the current element
+    // and stop closing.
+    if (blocksNotNull || valuesNotNull || constraintCongruenceNotNull) {
+      boolean ok = true;
+      if (blocksNotNull && !v.satisfiesBlocksConstraint(blocks)) ok = false;
+      if (ok && valuesNotNull && !v.satisfiesValuesConstraint(values)) ok = false;
+      if (ok && constraintCongruenceNotNull 
+             && !v.satisfiesCongruenceConstraint(getIndexForCongruenceConstraint(), 
+                                             getCongruenceForCongruenceConstraint(), 
+                                             getCongruenceConstraintElemIndex())) ok = false;
+      if (ok) {
+        eltToFind = v;
+        if (reportNotNull) {
+          report.setSize(ans.size());
+          report.addEndingLine("closing done, found "
+              + eltToFind + ", at " + ans.size());
+        }
+        return true;
+      }
+    }
+    /*  Old version; delete soon. 
+    System.out.println("blocksNotNull: " + blocksNotNull);
+    if (blocksNotNull) {  // this assumes that if values != null then so is blocks
+      System.out.println("got ere");
+      boolean found = false;
+      if (valuesNotNull) {  
+        if (v.satisfiesBlocksConstraint(blocks) && v.satisfiesValuesConstraint(values)) found = true;
+      }
+      else if (!constraintCongruenceNotNull) { // only the blocks contraint exists
+        System.out.println("here, v = " + v);
+        if (v.satisfiesBlocksConstraint(blocks)) found = true;
+      }
+      if (v.satisfiesBlocksConstraint(blocks) 
+          && v.satisfiesCongruenceConstraint(getIndexForCongruenceConstraint(), 
+                                             getCongruenceForCongruenceConstraint(), 
+                                             getCongruenceConstraintElemIndex())) {
+        found = true;
+      }
+      if (found) {
+        eltToFind = v;
+        if (reportNotNull) {
+          report.setSize(ans.size());
+          report.addEndingLine("closing done, found "
+              + eltToFind + ", at " + ans.size());
+        }
+        return true;
+      }
+    }
+    */
+    // can't quit early if we are looking for a homomorphism
+    if (imgOps == null) {
+      final int size = ans.size();
+      if (imgAlgNull && algebra.cardinality() > 0 && size == algebra.cardinality()) {  
+        if (reportNotNull) {
+          report.addEndingLine("found all " + size + " elements");
+          report.setSize(ans.size());
+        }
+        return true;
+      }
+    }
+    else homomorphismTable.add(homomorphismTable.valueAt(opIndex, argIndeces));
+    return false;
   }
   
   /**
-   * Note this assumes termMap is not null !!!!!!!!
+   * Test if the value of the homomorphism at the element with index
+   * <code>index</code>, an old element which is also the value of the
+   * <code>opIndex</code>th operation, <code>sym</code>, at the elements
+   * with indices <code>argIndeces</code>, agrees with the image 
+   * operation applied to the values at the arguments. If not, set 
+   * <code>failingEquation</code>.
    * 
-   * @param map
-   * @param indexInCPUs
-   * @param numOfOps
-   * @param closedMark
-   * @param currentMark
-   * @param reportNotNull
-   * @param rawList
-   * @param timing
-   */
-  public void doOneStagePartialClosure(final ConcurrentHashMap<IntArray,Term> map, 
-                                       final int indexInCPUs,
-                                       final int numOfOps, 
-                                       final int closedMark, final int currentMark,
-                                       final boolean reportNotNull,
-                                       final List<int[]> rawList,
-                                       final CloserTiming timing
-                                       ) {
-    for (int i = 0; i < numOfOps; i++) {
-      //for (Iterator<Operation> it = algebra.operations().iterator(); it.hasNext(); ) {
-      //Operation f = it.next();
-      Operation f = algebra.operations().get(i);
-      final int arity = f.arity();
-      if (arity == 0) continue;  // worry about constansts later
-      int[] argIndeces = new int[arity];
-      for (int j = 0; j < arity - 1; j++) {
-        argIndeces[j] = 0;
+   * @return true if there is a failing equation
+   */
+  private boolean homomorphismFails(final int index, final int[] argIndeces, 
+                                    final int opIndex, final OperationSymbol sym,
+                                    final Map<IntArray,Term> termMap) {
+    final int arity = argIndeces.length;
+    final boolean reportNotNull = report != null;
+    if (homomorphismTable.get(index) != homomorphismTable.valueAt(opIndex, argIndeces)) {
+      List<Term> children = new ArrayList<Term>(arity);
+      for (int r = 0; r < arity; r++) {
+        children.add(provenance.getTerm(argIndeces[r]));
+      }
+      failingEquation = new Equation(provenance.getTerm(index),
+          new NonVariableTerm(sym, children));
+      final String line = "failing equation:\n" + failingEquation;
+      if (reportNotNull) {
+        report.setSize(ans.size());
+        report.addEndingLine(line);
       }
-      argIndeces[arity - 1] = closedMark;
-      ArrayIncrementor inc =
-        SequenceGenerator.sequenceIncrementor(
-            argIndeces, currentMark - 1, closedMark, nCPUs);
-      for (int j = 1; j < indexInCPUs; j++) {
-        if (!inc.increment()) continue;
+      else {
+        System.out.println("failing equation:\n" + failingEquation);
+        System.out.println("size so far: " + ans.size());
       }
+      return true;
+    }
+    return false;
+  }
 
-      final int[][] arg = new int[arity][];
-      while (true) {
-        if (Thread.currentThread().isInterrupted()) {
+  // the status returned by closeOpInParallel
+  private static final int CONTINUE = 0;
+  private static final int STOP = 1;
+  private static final int CANCELLED = 2;
+  
+  /**
+   * The minimum number of coordinate applications in a pass of one 
+   * operation for it to be done in parallel.
+   */
+  static final long MIN_PARALLEL_COMPUTATION_SIZE = 1000000;
+  
+  private static boolean worthDoingInParallel(int arity, int closedMark, 
+                                              int currentMark, int power) {
+    if (currentMark - closedMark < 2 && arity == 1) return false;
+    final double apps = Math.pow(currentMark, arity) - Math.pow(closedMark, arity);
+    return apps * power >= MIN_PARALLEL_COMPUTATION_SIZE;
+  }
+  
+  /**
+   * Apply the <code>opIndex</code>th operation to all argument tuples
+   * of this pass in parallel. The argument tuples, in the order of
+   * the serial version, are split into contiguous chunks according to
+   * their first index and each chunk is done by a task in the shared 
+   * pool. The tasks only record the candidates not already in 
+   * <code>tupleSet</code>, using a concurrent map to drop those which are 
+   * found earlier in another chunk. The records are then merged 
+   * serially, chunk by chunk, so the new elements are added to 
+   * <code>ans</code> in the same order as in the serial version.
+   * 
+   * @return CONTINUE, STOP if the closing should stop with 
+   *         <code>ans</code> as the answer, or CANCELLED
+   */
+  private int closeOpInParallel(final int opIndex, final int[] opTable, final Operation op,
+                                final OperationSymbol sym, final int closedMark, 
+                                final int currentMark, final List<int[]> rawList,
+                                final IntTupleSet tupleSet, final Map<IntArray,Term> termMap,
+                                final Operation[] imgOps, final CloserTiming timing) {
+    final int arity = op.arity();
+    final boolean checkHomomorphism = imgOps != null;
+    // split the first index of the argument tuples into ranges of
+    // about equal work.
+    final int nChunks = Math.min(8 * nCPUs, arity == 1 ? currentMark - closedMark : currentMark);
+    final int[] firsts = new int[nChunks + 1];
+    if (arity == 1) {
+      for (int c = 0; c <= nChunks; c++) {
+        firsts[c] = closedMark + (int)((long)(currentMark - closedMark) * c / nChunks);
+      }
+    }
+    else {
+      final double all = Math.pow(currentMark, arity - 1);
+      final double old = Math.pow(closedMark, arity - 1);
+      final double total = closedMark * (all - old) + (currentMark - closedMark) * all;
+      int c = 1;
+      double work = 0;
+      for (int a = 0; a < currentMark && c < nChunks; a++) {
+        work += a < closedMark ? all - old : all;
+        if (work >= total * c / nChunks) firsts[c++] = a + 1;
+      }
+      for ( ; c <= nChunks; c++) firsts[c] = currentMark;
+    }
+    final Thread callingThread = Thread.currentThread();
+    final ConcurrentHashMap<IntArray,Long> claims = new ConcurrentHashMap<IntArray,Long>();
+    final List<PowerCloseTask> tasks = new ArrayList<PowerCloseTask>(nChunks);
+    for (int c = 0; c < nChunks; c++) {
+      if (firsts[c] == firsts[c + 1]) continue;
+      tasks.add(new PowerCloseTask(c, firsts[c], firsts[c + 1], opIndex, opTable, op, 
+          closedMark, currentMark, rawList, tupleSet, claims, checkHomomorphism, 
+          callingThread));
+    }
+    Pool.getPool().invoke(new RecursiveAction() {
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    for (PowerCloseTask task : tasks) {
+      appCount += task.applications;
+    }
+    metrics.update(ans.size(), appCount);
+    if (callingThread.isInterrupted()) return CANCELLED;
+    final boolean reportNotNull = report != null;
+    for (PowerCloseTask task : tasks) {
+      for (CandidateRecord rec : task.records) {
+        if (rec.failure >= 0) {
+          if (homomorphismFails(rec.failure, rec.argIndeces, opIndex, sym, termMap)) return STOP;
+          continue;
+        }
+        final int[] vRaw = rec.elem.getArray();
+        final int index = tupleSet.add(vRaw);
+        if (index >= 0) {
+          ans.add(rec.elem);
+          rawList.add(vRaw);
           if (reportNotNull) {
-            report.addEndingLine("cancelled ...");
+            timing.incrementNextPassSize();
             report.setSize(ans.size());
           }
-          return;
+          if (processNewElement(rec.elem, opIndex, rec.argIndeces, sym, termMap, imgOps)) return STOP;
         }
-        for (int j = 0; j < arity; j++) {
-          arg[j] = rawList.get(argIndeces[j]);
+        else if (checkHomomorphism 
+            && homomorphismFails(-(index + 1), rec.argIndeces, opIndex, sym, termMap)) {
+          return STOP;
         }
-
-        int[] vRaw = f.valueAt(arg);
-        //int[] test = f.valueAt(arg);
-        IntArray v = new IntArray(vRaw);
-        //IntArray testV = new IntArray(test);
-
-        //System.out.println("vRaw == test is " + v.equals(new IntArray(test)));
-        if (reportNotNull) timing.incrementApps();
-        //appsSoFar = appsSoFar + numberProjs;
-        if (!termMap.containsKey(v) && !map.containsKey(v)) {
-          List<Term> children = new ArrayList<Term>(arity);
-          for (int j = 0; j < arity; j++) {
-            //children.set(i, termMap.get(arg.get(i)));
-            children.add(termMap.get(ans.get(argIndeces[j])));
+      }
+      if (callingThread.isInterrupted()) return CANCELLED;
+    }
+    return CONTINUE;
+  }
+  
+  /**
+   * A candidate found by a <code>PowerCloseTask</code>.
+   */
+  static final class CandidateRecord {
+    final IntArray elem;
+    final int[] argIndeces;
+    final int failure;  // the index of an old element where the homomorphism fails, or -1
+    
+    CandidateRecord(IntArray elem, int[] argIndeces, int failure) {
+      this.elem = elem;
+      this.argIndeces = argIndeces;
+      this.failure = failure;
+    }
+  }
+  
+  /**
+   * Applies an operation to the argument tuples of one chunk of a pass
+   * of <code>sgClosePower</code>: those whose first index is between 
+   * <code>firstMin</code> (inclusive) and <code>firstMax</code>, in the 
+   * serial order. It only reads the closer's data.
+   */
+  @SuppressWarnings("serial")
+  final class PowerCloseTask extends RecursiveAction {
+    
+    final int chunk;
+    final int firstMin;
+    final int firstMax;
+    final int opIndex;
+    final int[] opTable;
+    final Operation op;
+    final int closedMark;
+    final int currentMark;
+    final List<int[]> rawList;
+    final IntTupleSet tupleSet;
+    final ConcurrentHashMap<IntArray,Long> claims;
+    final boolean checkHomomorphism;
+    final Thread callingThread;
+    final List<CandidateRecord> records = new ArrayList<CandidateRecord>();
+    long applications = 0;
+    
+    PowerCloseTask(int chunk, int firstMin, int firstMax, int opIndex, int[] opTable, 
+                   Operation op, int closedMark, int currentMark, List<int[]> rawList,
+                   IntTupleSet tupleSet, ConcurrentHashMap<IntArray,Long> claims,
+                   boolean checkHomomorphism, Thread callingThread) {
+      this.chunk = chunk;
+      this.firstMin = firstMin;
+      this.firstMax = firstMax;
+      this.opIndex = opIndex;
+      this.opTable = opTable;
+      this.op = op;
+      this.closedMark = closedMark;
+      this.currentMark = currentMark;
+      this.rawList = rawList;
+      this.tupleSet = tupleSet;
+      this.claims = claims;
+      this.checkHomomorphism = checkHomomorphism;
+      this.callingThread = callingThread;
+    }
+    
+    protected void compute() {
+      final int arity = op.arity();
+      final int power = algebra.getNumberOfFactors();
+      final int algSize = algebra.factors().get(0).cardinality();
+      final int[] argIndeces = new int[arity];
+      final int[] rest = new int[arity - 1];
+      final int[][] argRaw = new int[arity][];
+      final int[] arg = new int[arity];
+      int[] vRaw = new int[power];
+      long seq = 0;
+      for (int first = firstMin; first < firstMax; first++) {
+        // the rest of the tuple must have an index at least closedMark
+        // unless first does.
+        final int min = first >= closedMark || arity == 1 ? 0 : closedMark;
+        Arrays.fill(rest, 0);
+        if (arity > 1) rest[arity - 2] = min;
+        ArrayIncrementor inc = 
+            SequenceGenerator.sequenceIncrementor(rest, currentMark - 1, min);
+        argIndeces[0] = first;
+        argRaw[0] = rawList.get(first);
+        while (true) {
+          if ((++applications & 0xfff) == 0 && callingThread.isInterrupted()) return;
+          for (int r = 1; r < arity; r++) {
+            argIndeces[r] = rest[r - 1];
+            argRaw[r] = rawList.get(argIndeces[r]);
           }
-          Term term = new NonVariableTerm(f.symbol(), children);
-          
-          Term old = map.putIfAbsent(v, term);  // make sure it is still not there
-          //System.out.println("v: " + v + ", term: " + term + ", old term:" + old + ", thread: " + indexInCPUs);
-          System.out.println("v: " + v  + ", old term:" + old + ", thread: " + indexInCPUs);
+          if (opTable != null) {
+            for (int j = 0; j < power; j++) {
+              int factor = algSize;
+              int index = argRaw[0][j];
+              for (int r = 1; r < arity; r++) {
+                index += factor * argRaw[r][j];
+                factor = factor * algSize;
+              }
+              vRaw[j] = opTable[index];
+            }
+          }
+          else {
+            for (int j = 0; j < power; j++) {
+              for (int r = 0; r < arity; r++) {
+                arg[r] = argRaw[r][j];
+              }
+              vRaw[j] = op.intValueAt(arg);
+            }
+          }
+          final int index = tupleSet.indexOf(vRaw);
+          if (index < 0) {
+            final long key = ((long)chunk << 40) + seq;
+            final IntArray v = new IntArray(vRaw);
+            boolean record = true;
+            if (!checkHomomorphism) {
+              final Long prev = claims.merge(v, key, Math::min);
+              if (prev.longValue() != key) record = false;  // found earlier
+            }
+            if (record) {
+              records.add(new CandidateRecord(v, Arrays.copyOf(argIndeces, arity), -1));
+              seq++;
+              vRaw = new int[power];
+            }
+          }
+          else if (checkHomomorphism) {
+            if (homomorphismTable.get(index) != homomorphismTable.valueAt(opIndex, argIndeces)) {
+              // nothing later in this chunk matters
+              records.add(new CandidateRecord(ans.get(index), 
+                                              Arrays.copyOf(argIndeces, arity), index));
+              return;
+            }
+          }
+          if (arity == 1 || !inc.increment()) break;
         }
-        if (reportNotNull) timing.incrementNextPassSize();
-        if (reportNotNull) report.setSize(ans.size() + map.size());
-        if (Thread.currentThread().isInterrupted()) return;
-
-        if (!inc.increment()) break;
       }
     }
   }
 
+  public long countFuncApplications(int size0, int size1) {
+    BigInteger ans = BigInteger.ZERO;
+    final BigInteger s0 = BigInteger.valueOf(size0);
+    final BigInteger s1 = BigInteger.valueOf(size1);
+    for (Operation op : algebra.operations()) {
+      final int r = op.arity();
+      ans = ans.add(s1.pow(r).subtract(s0.pow(r)));
+    }
+    if (ans.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0) return -1;
+    return ans.longValue() * algebra.getNumberOfFactors();
+  }
+  
+
  
   
   public boolean isSuppressOutput() {
@@ -1371,46 +2381,273 @@ if (false) {
     this.suppressOutput = suppressOutput;
   }
 
+  public boolean isUseTupleSet() {
+    return useTupleSet;
+  }
+
+  /**
+   * If true (the default) duplicates are detected with an
+   * <code>IntTupleSet</code>, an open addressing set of the raw
+   * <code>int[]</code>'s; otherwise the old <code>HashSet</code>
+   * of <code>IntArray</code>'s is used. The result is the same
+   * either way; the old version is kept for comparison.
+   * 
+   * @param useTupleSet
+   */
+  public void setUseTupleSet(boolean useTupleSet) {
+    this.useTupleSet = useTupleSet;
+  }
+
+  public boolean isUseProductTables() {
+    return useProductTables;
+  }
+
+  /**
+   * If true (the default) closures in products which are not powers
+   * evaluate the operations with the tables of the operations of the
+   * factors, a class of coordinates with the same table at a time
+   * (see <code>ProductOpTable</code>), when all of them have tables;
+   * otherwise the operations of the <code>BigProductAlgebra</code>
+   * are used. The result is the same either way.
+   * 
+   * @param useProductTables
+   */
+  public void setUseProductTables(boolean useProductTables) {
+    this.useProductTables = useProductTables;
+  }
+
+  public boolean isParallel() {
+    return parallel || doParallel;
+  }
+
+  /**
+   * If true, closures in powers split the applications of each 
+   * operation in each pass among the workers of the shared pool,
+   * <code>org.uacalc.alg.parallel.Pool</code>. The new elements are
+   * merged in the order the serial version would find them so the
+   * answer, the term map and all the searches (elements to find,
+   * constraints, homomorphisms, operations) give the same results.
+   * Small passes, and closures with packed tuples or without the
+   * tuple set, are done serially.
+   * 
+   * @param parallel
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public boolean isPackTuples() {
+    return packTuples;
+  }
+
+  /**
+   * If true, when closing in a power the elements are kept in a
+   * <code>PackedTupleStore</code>, using ceil(log2 |A|) bits per 
+   * coordinate, rather than as <code>int[]</code>'s. The answer is
+   * then a read only view which unpacks each <code>IntArray</code> 
+   * when it is requested; use <code>getPackedAnswer</code> to get at 
+   * the store directly. This has no effect if the algebra is not a power.
+   * 
+   * @param packTuples
+   */
+  public void setPackTuples(boolean packTuples) {
+    this.packTuples = packTuples;
+  }
   
+  /**
+   * Close <code>packedAnswer</code>, deleting its files if it has
+   * any, and drop it.
+   */
+  private void closePackedAnswer() {
+    if (packedAnswer instanceof Closeable) {
+      try {
+        ((Closeable)packedAnswer).close();
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    packedAnswer = null;
+  }
 
-  class ParallelWorker implements Runnable {
-    
-    CountDownLatch latch;
-    int indexInCPUs;
-    ConcurrentHashMap<IntArray,Term> map;
-    final int numOfOps;
-    final int closedMark; 
-    final int currentMark;
-    final boolean reportNotNull;
-    final List<int[]> rawList;
-    final CloserTiming timing;
-    
-    public ParallelWorker(CountDownLatch latch, int indexInCPUs, 
-                          ConcurrentHashMap<IntArray,Term> map,
-                          int numOfOps, int closedMark, int currentMark, boolean reportNotNull,
-                          final List<int[]> rawList,
-                          final CloserTiming timing) {
-      this.latch =  latch;
-      this.indexInCPUs = indexInCPUs;
-      this.map = map;
-      this.numOfOps = numOfOps;
-      this.closedMark = closedMark;
-      this.currentMark = currentMark;
-      this.rawList = rawList;
-      this.timing = timing;
-      this.reportNotNull = reportNotNull;
+  /**
+   * The packed elements of the closure if <code>packTuples</code>
+   * was set and the algebra is a power, or if it was closed by
+   * external sorting or with shards; otherwise null.
+   */
+  public TupleStore getPackedAnswer() {
+    return packedAnswer;
+  }
+
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Setting this to a directory makes closing in a power keep the 
+   * packed elements, and the index used to find duplicates, in memory 
+   * mapped files in that directory (see <code>MappedTupleStore</code>)
+   * rather than in the heap, so the closure can be larger than the heap.
+   * This implies <code>packTuples</code>. Each pass streams through the
+   * files in the order of the argument indices; the heap only holds the 
+   * unpacked arguments. For this to be useful there should be no term map.
+   * The files are deleted when the store returned by 
+   * <code>getPackedAnswer</code> is closed, when the closure is
+   * cancelled, when the next packed closure by this replaces the 
+   * store, or when the JVM exits.
+   * 
+   * @param dir  the directory for the files, or null to use the heap
+   */
+  public void setSpillDirectory(File dir) {
+    this.spillDirectory = dir;
+  }
+
+  public File getExternalSortDirectory() {
+    return externalSortDirectory;
+  }
+
+  /**
+   * Setting this to a directory makes closing in a power use external
+   * sorting, as in the breadth first searches of state spaces too big
+   * for memory, rather than a hash set of the elements. In each pass
+   * the new values of the operations are written to sorted run files,
+   * which are then merged with the sorted file of the elements found
+   * before to get the new elements. The heap holds at most
+   * <code>getExternalSortBuffer()</code> tuples and all the file
+   * access is sequential, so this suits machines with little memory
+   * and ordinary disks.
+   * <p>
+   * The answer is a view of a <code>PackedTupleFile</code> (see 
+   * <code>getPackedAnswer</code>) with the generators first and then
+   * the elements found in each pass, in the sorted order within a 
+   * pass. No terms are recorded, and only the element to find, the
+   * maximum size and the closure listener are supported; the other
+   * searches cause an <code>IllegalStateException</code>. The files
+   * are deleted when the answer is closed, or when the JVM exits.
+   *
+   * @param dir  the directory for the files, or null to use the heap
+   */
+  public void setExternalSortDirectory(File dir) {
+    this.externalSortDirectory = dir;
+  }
+
+  public File getShardDirectory() {
+    return shardDirectory;
+  }
+
+  /**
+   * Setting this to a directory makes closing in a power use a
+   * <code>ShardedCloser</code>: <code>getShards()</code> worker JVM's,
+   * started on this machine, each own the elements with some of the 
+   * hash codes and exchange the new elements of each pass through
+   * files in the directory, which must be empty. The answer is read
+   * from the element files left there; closing 
+   * <code>getPackedAnswer()</code> deletes them. No terms are 
+   * recorded, and only the element to find and the maximum size are
+   * supported; the other searches cause an 
+   * <code>IllegalStateException</code>.
+   *
+   * @param dir  the directory shared with the workers, or null to 
+   *             close in this JVM
+   */
+  public void setShardDirectory(File dir) {
+    this.shardDirectory = dir;
+  }
+
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * Set the number of workers used with <code>setShardDirectory</code>.
+   * The default is 2.
+   */
+  public void setShards(int shards) {
+    if (shards < 1) throw new IllegalArgumentException("shards: " + shards);
+    this.shards = shards;
+  }
+
+  public int getExternalSortBuffer() {
+    return externalSortBuffer;
+  }
+
+  /**
+   * Set the number of tuples held in the heap when closing with 
+   * external sorting; half are for the values waiting to be sorted 
+   * and half for the arguments. The default is 2^20.
+   */
+  public void setExternalSortBuffer(int tuples) {
+    if (tuples < 2) throw new IllegalArgumentException("the buffer must hold at least 2 tuples");
+    this.externalSortBuffer = tuples;
+  }
+
+  public File getCheckpointFile() {
+    return checkpointFile;
+  }
+
+  /**
+   * If not null, closures in powers periodically write their state to 
+   * this file (see <code>CloserCheckpoint</code>) so they can be 
+   * resumed after a crash or restart; see <code>setResume</code>.
+   * A checkpoint is written at the start of an operation, or every
+   * 65536 applications within one, once 
+   * <code>getCheckpointInterval()</code> milliseconds have passed 
+   * since the last one.
+   * 
+   * @param file  the checkpoint file, or null for no checkpoints
+   */
+  public void setCheckpointFile(File file) {
+    this.checkpointFile = file;
+  }
+
+  public long getCheckpointInterval() {
+    return checkpointInterval;
+  }
+
+  /**
+   * Set the minimum time between checkpoints, in milliseconds. The
+   * default is one hour.
+   */
+  public void setCheckpointInterval(long millis) {
+    this.checkpointInterval = millis;
+  }
+
+  public boolean isResume() {
+    return resume;
+  }
+
+  /**
+   * If true and the checkpoint file exists, a closure in a power 
+   * starts from the state in it rather than from the generators. 
+   * The closer must have the same algebra and generators as the one
+   * which wrote it. The element to find is checked against the 
+   * elements already found; the other searches (elements, operations,
+   * constraints) only see the elements found after resuming.
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  private void writeCheckpoint(int power, int algSize, int pass, int closedMark,
+                               int currentMark, int opIndex, int[] argIndeces,
+                               Map<IntArray,Term> termMap) {
+    final long t = System.currentTimeMillis();
+    String line;
+    try {
+      CloserCheckpoint.write(checkpointFile, power, algSize, pass, closedMark, 
+          currentMark, opIndex, argIndeces, ans, provenance, 
+          homomorphismTable == null ? null : homomorphismTable.toArray());
+      line = "checkpoint at size " + ans.size() + " written to " + checkpointFile
+             + " in " + (System.currentTimeMillis() - t) + " ms";
     }
-    
-    public void run() {
-      doOneStagePartialClosure(map, indexInCPUs, numOfOps, closedMark, currentMark, reportNotNull, rawList, timing);
-      latch.countDown();
+    catch (IOException e) {
+      // a failed checkpoint should not stop a long closure
+      line = "could not write the checkpoint: " + e.getMessage();
     }
-    
+    if (report != null) report.addLine(line);
+    else if (!suppressOutput) System.out.println(line);
   }
-  
-  
-  
-  
+
 }
 
 
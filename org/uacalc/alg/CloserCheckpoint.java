@@ -0,0 +1,337 @@
+/* CloserCheckpoint.java */
+
+package org.uacalc.alg;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.uacalc.alg.op.OperationSymbol;
+import org.uacalc.terms.*;
+import org.uacalc.util.*;
+
+/**
+ * The state of a partially done closure in a power, written by
+ * <code>Closer</code> so a long running closure can be resumed; see
+ * <code>Closer.setCheckpointFile</code>.
+ * <p>
+ * The file holds the elements found so far, bit packed as in
+ * <code>PackedTupleStore</code>, the closed and current marks, the pass,
+ * the position in the pass (the operation and the next argument
+ * indices), the terms and the values of the homomorphism, if any.
+ * The terms are written from the <code>TermProvenance</code> of the
+ * closure: an element made by an operation is written as the operation
+ * and the indices of its arguments, so it costs a few bytes for each
+ * argument.
+ */
+public class CloserCheckpoint {
+
+  private static final int MAGIC = 0x55414343;  // "UACC"
+  private static final int VERSION = 1;
+
+  // tags for the terms
+  private static final byte NULL_TERM = 0;
+  private static final byte VARIABLE = 1;
+  private static final byte REFERENCE = 2;
+  private static final byte OPERATION = 3;
+
+  final int power;
+  final int algSize;
+  final int pass;
+  final int closedMark;
+  final int currentMark;
+  final int opIndex;
+  final int[] argIndeces;  // null if at the beginning of the operation
+  final List<int[]> elements;
+  final TermProvenance terms;  // null if there was no term map
+  final int[] homomorphism;  // null if there was no homomorphism
+
+  private CloserCheckpoint(int power, int algSize, int pass, int closedMark,
+                           int currentMark, int opIndex, int[] argIndeces,
+                           List<int[]> elements, TermProvenance terms, 
+                           int[] homomorphism) {
+    this.power = power;
+    this.algSize = algSize;
+    this.pass = pass;
+    this.closedMark = closedMark;
+    this.currentMark = currentMark;
+    this.opIndex = opIndex;
+    this.argIndeces = argIndeces;
+    this.elements = elements;
+    this.terms = terms;
+    this.homomorphism = homomorphism;
+  }
+
+  public int getPass() { return pass; }
+
+  public int getClosedMark() { return closedMark; }
+
+  public int getCurrentMark() { return currentMark; }
+
+  public int size() { return elements.size(); }
+
+  public List<int[]> getElements() { return elements; }
+
+  /**
+   * Write a checkpoint to <code>file</code>. It is first written to a
+   * temporary file which then replaces <code>file</code>, so an
+   * interruption cannot leave a partial checkpoint.
+   *
+   * @param argIndeces  the next argument indices for the operation
+   *                    <code>opIndex</code>, or null if it has not
+   *                    been started
+   * @param terms       the terms of the elements of <code>ans</code> or null
+   * @param homomorphism the values of the homomorphism at the elements
+   *                     of <code>ans</code>, in order, or null
+   */
+  static void write(File file, int power, int algSize, int pass, int closedMark,
+                    int currentMark, int opIndex, int[] argIndeces,
+                    List<IntArray> ans, TermProvenance terms,
+                    int[] homomorphism) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final int size = ans.size();
+    try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(power);
+      out.writeInt(algSize);
+      out.writeInt(pass);
+      out.writeInt(closedMark);
+      out.writeInt(currentMark);
+      out.writeInt(opIndex);
+      writeInts(out, argIndeces);
+      final PackedTupleStore packer = new PackedTupleStore(power, algSize);
+      final long[] words = new long[packer.wordsPerTuple()];
+      out.writeInt(size);
+      for (int k = 0; k < size; k++) {
+        packer.pack(ans.get(k).getArray(), words);
+        for (long w : words) {
+          out.writeLong(w);
+        }
+      }
+      out.writeBoolean(terms != null);
+      if (terms != null) {
+        final Map<OperationSymbol,Integer> symbols = new HashMap<OperationSymbol,Integer>();
+        final List<OperationSymbol> symList = new ArrayList<OperationSymbol>(terms.getSymbols());
+        for (int i = 0; i < symList.size(); i++) {
+          symbols.put(symList.get(i), i);
+        }
+        final int n = Math.min(size, terms.size());
+        for (int k = 0; k < n; k++) {
+          if (terms.isLeaf(k)) collectSymbols(terms.getTerm(k), symbols, symList);
+        }
+        out.writeInt(symList.size());
+        for (OperationSymbol sym : symList) {
+          out.writeUTF(sym.name());
+          out.writeInt(sym.arity());
+          out.writeBoolean(sym.isAssociative());
+        }
+        out.writeInt(n);
+        for (int k = 0; k < n; k++) {
+          if (terms.isLeaf(k)) writeTerm(out, terms.getTerm(k), symbols);
+          else {
+            final int[] args = terms.argIndeces(k);
+            out.writeByte(OPERATION);
+            out.writeInt(terms.opIndex(k));
+            out.writeInt(args.length);
+            for (int arg : args) {
+              out.writeByte(REFERENCE);
+              out.writeInt(arg);
+            }
+          }
+        }
+      }
+      out.writeBoolean(homomorphism != null);
+      if (homomorphism != null) {
+        for (int k = 0; k < size; k++) {
+          out.writeInt(k < homomorphism.length ? homomorphism[k] : -1);
+        }
+      }
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] arr) throws IOException {
+    out.writeInt(arr == null ? -1 : arr.length);
+    if (arr == null) return;
+    for (int v : arr) {
+      out.writeInt(v);
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    final int n = in.readInt();
+    if (n < 0) return null;
+    final int[] arr = new int[n];
+    for (int i = 0; i < n; i++) {
+      arr[i] = in.readInt();
+    }
+    return arr;
+  }
+
+  private static void collectSymbols(Term term, Map<OperationSymbol,Integer> symbols,
+                                     List<OperationSymbol> symList) {
+    if (term == null || term.isaVariable()) return;
+    final OperationSymbol sym = term.leadingOperationSymbol();
+    if (!symbols.containsKey(sym)) {
+      symbols.put(sym, symList.size());
+      symList.add(sym);
+    }
+    for (Term child : term.getChildren()) {
+      collectSymbols(child, symbols, symList);
+    }
+  }
+
+  /**
+   * Write a term in full; this is only used for the leaves.
+   */
+  private static void writeTerm(DataOutputStream out, Term term, 
+                                Map<OperationSymbol,Integer> symbols) throws IOException {
+    if (term == null) {
+      out.writeByte(NULL_TERM);
+      return;
+    }
+    if (term.isaVariable()) {
+      out.writeByte(VARIABLE);
+      out.writeUTF(((Variable)term).getName());
+      return;
+    }
+    out.writeByte(OPERATION);
+    out.writeInt(symbols.get(term.leadingOperationSymbol()));
+    final List<Term> children = term.getChildren();
+    out.writeInt(children.size());
+    for (Term child : children) {
+      writeTerm(out, child, symbols);
+    }
+  }
+
+  /**
+   * Read a checkpoint written by <code>Closer</code>.
+   */
+  public static CloserCheckpoint read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC) throw new IOException(file + " is not a closure checkpoint");
+      final int version = in.readInt();
+      if (version != VERSION) throw new IOException("unknown checkpoint version " + version);
+      final int power = in.readInt();
+      final int algSize = in.readInt();
+      final int pass = in.readInt();
+      final int closedMark = in.readInt();
+      final int currentMark = in.readInt();
+      final int opIndex = in.readInt();
+      final int[] argIndeces = readInts(in);
+      final PackedTupleStore store = new PackedTupleStore(power, algSize);
+      final int words = store.wordsPerTuple();
+      final int bits = store.bitsPerEntry();
+      final int perWord = 64 / bits;
+      final long mask = (1L << bits) - 1;
+      final int size = in.readInt();
+      final List<int[]> elements = new ArrayList<int[]>(size);
+      for (int k = 0; k < size; k++) {
+        final int[] tuple = new int[power];
+        int j = 0;
+        for (int w = 0; w < words; w++) {
+          long word = in.readLong();
+          final int end = Math.min(power, j + perWord);
+          for ( ; j < end; j++) {
+            tuple[j] = (int)(word & mask);
+            word >>>= bits;
+          }
+        }
+        elements.add(tuple);
+      }
+      TermProvenance terms = null;
+      if (in.readBoolean()) {
+        final int nSyms = in.readInt();
+        final List<OperationSymbol> syms = new ArrayList<OperationSymbol>(nSyms);
+        for (int s = 0; s < nSyms; s++) {
+          syms.add(new OperationSymbol(in.readUTF(), in.readInt(), in.readBoolean()));
+        }
+        terms = new TermProvenance(syms);
+        final int n = in.readInt();
+        for (int k = 0; k < n; k++) {
+          readElement(in, terms);
+        }
+      }
+      int[] homo = null;
+      if (in.readBoolean()) {
+        homo = new int[size];
+        for (int k = 0; k < size; k++) {
+          homo[k] = in.readInt();
+        }
+      }
+      return new CloserCheckpoint(power, algSize, pass, closedMark, currentMark,
+                                  opIndex, argIndeces, elements, terms, homo);
+    }
+  }
+
+  /**
+   * Read the term of the next element into <code>terms</code>: as an
+   * operation applied to earlier elements if it was written that way,
+   * otherwise as a leaf.
+   */
+  private static void readElement(DataInputStream in, TermProvenance terms) throws IOException {
+    final byte tag = in.readByte();
+    if (tag != OPERATION) {
+      terms.addLeaf(readTerm(in, tag, terms));
+      return;
+    }
+    final int symIndex = in.readInt();
+    final int n = in.readInt();
+    final int[] args = new int[n];
+    final Term[] children = new Term[n];
+    boolean refs = true;
+    for (int i = 0; i < n; i++) {
+      final byte childTag = in.readByte();
+      if (childTag == REFERENCE) {
+        args[i] = in.readInt();
+        children[i] = null;
+      }
+      else {
+        refs = false;
+        args[i] = -1;
+        children[i] = readTerm(in, childTag, terms);
+      }
+    }
+    if (refs) {
+      terms.add(symIndex, args);
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      if (args[i] >= 0) children[i] = terms.getTerm(args[i]);
+    }
+    terms.addLeaf(new NonVariableTerm(terms.getSymbols().get(symIndex), 
+                                      new ArrayList<Term>(Arrays.asList(children))));
+  }
+
+  private static Term readTerm(DataInputStream in, byte tag, 
+                               TermProvenance terms) throws IOException {
+    switch (tag) {
+      case NULL_TERM:
+        return null;
+      case VARIABLE:
+        return new VariableImp(in.readUTF());
+      case REFERENCE:
+        return terms.getTerm(in.readInt());
+      case OPERATION:
+        final OperationSymbol sym = terms.getSymbols().get(in.readInt());
+        final int n = in.readInt();
+        final List<Term> children = new ArrayList<Term>(n);
+        for (int i = 0; i < n; i++) {
+          children.add(readTerm(in, in.readByte(), terms));
+        }
+        return new NonVariableTerm(sym, children);
+      default:
+        throw new IOException("bad term tag " + tag);
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/* CloserJfrEvents.java */
+
+package org.uacalc.alg;
+
+import jdk.jfr.*;
+
+/**
+ * The JFR events of <code>CloserMetrics</code>. This is the only class
+ * using <code>jdk.jfr</code>; <code>CloserMetrics</code> loads it by
+ * name and does without events if it cannot, so the rest of the
+ * closure code runs on a Java 8 JRE, and the build leaves this file
+ * out when there is no <code>jdk.jfr</code>.
+ */
+final class CloserJfrEvents implements CloserMetrics.Events {
+
+  @Name("org.uacalc.ClosurePass")
+  @Label("Closure Pass")
+  @Category({"UACalc", "Closure"})
+  @Description("One pass of a subalgebra closure")
+  static class PassEvent extends Event {
+    @Label("Pass") int pass;
+    @Label("Start Size") int startSize;
+    @Label("End Size") int endSize;
+    @Label("Applications") long applications;
+    @Label("Applications per Second") double applicationsPerSecond;
+    @Label("Duplicate Rate") @Percentage double duplicateRate;
+    @Label("Hash Load") double hashLoad;
+    @Label("Average Probe Length") double averageProbeLength;
+    @Label("Max Probe Length") int maxProbeLength;
+    @Label("Heap Used") @DataAmount long heapUsed;
+    @Label("Completed") boolean completed;
+  }
+
+  @Name("org.uacalc.Closure")
+  @Label("Closure")
+  @Category({"UACalc", "Closure"})
+  @Description("A subalgebra closure")
+  static class ClosureEvent extends Event {
+    @Label("Power") int power;
+    @Label("Size") int size;
+    @Label("Passes") int passes;
+    @Label("Applications") long applications;
+    @Label("Heap High Water") @DataAmount long heapHighWater;
+    @Label("Completed") boolean completed;
+  }
+
+  public Object beginClosure() {
+    final ClosureEvent event = new ClosureEvent();
+    event.begin();
+    return event;
+  }
+
+  public void endClosure(Object ev, int power, int size, int passes, long applications,
+                         long heapHighWater, boolean completed) {
+    final ClosureEvent event = (ClosureEvent)ev;
+    event.end();
+    if (event.shouldCommit()) {
+      event.power = power;
+      event.size = size;
+      event.passes = passes;
+      event.applications = applications;
+      event.heapHighWater = heapHighWater;
+      event.completed = completed;
+      event.commit();
+    }
+  }
+
+  public Object beginPass() {
+    final PassEvent event = new PassEvent();
+    event.begin();
+    return event;
+  }
+
+  public void endPass(Object ev, CloserMetrics.Pass p) {
+    final PassEvent event = (PassEvent)ev;
+    event.end();
+    if (event.shouldCommit()) {
+      event.pass = p.getPass();
+      event.startSize = p.getStartSize();
+      event.endSize = p.getEndSize();
+      event.applications = p.getApplications();
+      event.applicationsPerSecond = p.getApplicationsPerSecond();
+      event.duplicateRate = p.getDuplicateRate();
+      event.hashLoad = p.getHashLoad();
+      event.averageProbeLength = p.getAverageProbeLength();
+      event.maxProbeLength = p.getMaxProbeLength();
+      event.heapUsed = p.getHeapUsed();
+      event.completed = p.isCompleted();
+      event.commit();
+    }
+  }
+
+}
@@ -0,0 +1,321 @@
+/* CloserMetrics.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.uacalc.util.IntTupleSet;
+
+/**
+ * Measurements of the closures done by a <code>Closer</code>, kept
+ * for each pass: its wall time, the number of operation applications
+ * and their rate, the fraction of them giving elements already found
+ * (the duplicate rate), the load and probe lengths of the hash set of
+ * the elements and the heap in use.
+ * <p>
+ * The closing thread is the only writer; other threads can poll
+ * the current values, for example to log them from a batch job,
+ * while the closure runs. Each pass is also a JFR event,
+ * <code>org.uacalc.ClosurePass</code>, and each closure
+ * <code>org.uacalc.Closure</code>, so they can be seen in a flight
+ * recording along with the GC and allocation events. The events are
+ * in <code>CloserJfrEvents</code>, which is loaded by name, so without
+ * <code>jdk.jfr</code> (on Java 8) the measurements are kept but there
+ * are no events.
+ */
+public class CloserMetrics {
+
+  /**
+   * The measurements of one pass.
+   */
+  public static final class Pass {
+
+    private final int pass;
+    private final int startSize;
+    private final int endSize;
+    private final long applications;
+    private final long nanos;
+    private final double hashLoad;
+    private final double averageProbeLength;
+    private final int maxProbeLength;
+    private final long heapUsed;
+    private final boolean completed;
+
+    Pass(int pass, int startSize, int endSize, long applications, long nanos,
+         IntTupleSet set, long heapUsed, boolean completed) {
+      this.pass = pass;
+      this.startSize = startSize;
+      this.endSize = endSize;
+      this.applications = applications;
+      this.nanos = nanos;
+      this.hashLoad = set == null ? Double.NaN : set.load();
+      this.averageProbeLength = set == null ? Double.NaN : set.averageProbeLength();
+      this.maxProbeLength = set == null ? -1 : set.maxProbeLength();
+      this.heapUsed = heapUsed;
+      this.completed = completed;
+    }
+
+    public int getPass() { return pass; }
+
+    /**
+     * The number of elements at the start of the pass.
+     */
+    public int getStartSize() { return startSize; }
+
+    public int getEndSize() { return endSize; }
+
+    public int getNewElements() { return endSize - startSize; }
+
+    public long getApplications() { return applications; }
+
+    public long getNanos() { return nanos; }
+
+    public double getApplicationsPerSecond() {
+      return nanos == 0 ? 0 : applications * 1e9 / nanos;
+    }
+
+    /**
+     * The fraction of the applications which gave an element
+     * already found.
+     */
+    public double getDuplicateRate() {
+      return applications == 0 ? 0 : 1 - (double)getNewElements() / applications;
+    }
+
+    /**
+     * The fraction of the slots of the hash set in use at the end of
+     * the pass, or NaN if there is no <code>IntTupleSet</code>.
+     */
+    public double getHashLoad() { return hashLoad; }
+
+    public double getAverageProbeLength() { return averageProbeLength; }
+
+    public int getMaxProbeLength() { return maxProbeLength; }
+
+    /**
+     * The heap in use at the end of the pass, in bytes.
+     */
+    public long getHeapUsed() { return heapUsed; }
+
+    /**
+     * False if the closure stopped during this pass.
+     */
+    public boolean isCompleted() { return completed; }
+
+    public String toString() {
+      return String.format("pass %d: size %d -> %d, %.3f s, %d apps, %.0f apps/s, "
+          + "dups %.1f%%, load %.2f, probes %.2f (max %d), heap %d MB%s",
+          pass, startSize, endSize, nanos / 1e9, applications, getApplicationsPerSecond(),
+          100 * getDuplicateRate(), hashLoad, averageProbeLength, maxProbeLength,
+          heapUsed >> 20, completed ? "" : " (stopped)");
+    }
+  }
+
+  /**
+   * The JFR events of a closure and its passes; the events are passed
+   * around as <code>Object</code>'s so this class does not refer to
+   * <code>jdk.jfr</code>.
+   */
+  interface Events {
+    Object beginClosure();
+    void endClosure(Object event, int power, int size, int passes, long applications,
+                    long heapHighWater, boolean completed);
+    Object beginPass();
+    void endPass(Object event, Pass pass);
+  }
+
+  /**
+   * The events, or null if <code>CloserJfrEvents</code> cannot be
+   * loaded.
+   */
+  private static final Events EVENTS = loadEvents();
+
+  private static Events loadEvents() {
+    try {
+      return (Events)Class.forName("org.uacalc.alg.CloserJfrEvents")
+                          .getDeclaredConstructor().newInstance();
+    }
+    catch (Exception e) {
+      return null;
+    }
+    catch (LinkageError e) {  // no jdk.jfr
+      return null;
+    }
+  }
+
+  private final List<Pass> passes = new CopyOnWriteArrayList<Pass>();
+  private volatile boolean running = false;
+  private volatile int power;
+  private volatile int pass = -1;
+  private volatile int size;
+  private volatile long applications;
+  private volatile long startNanos;
+  private volatile long endNanos;
+  private volatile long heapHighWater;
+  // the start of the current pass
+  private volatile int passStartSize;
+  private volatile long passStartApplications;
+  private volatile long passStartNanos;
+
+  private IntTupleSet set;
+  private boolean inPass = false;
+  private Object passEvent;
+  private Object closureEvent;
+
+  /**
+   * Start measuring a new closure, dropping the old measurements.
+   *
+   * @param set  the hash set of the elements or null
+   */
+  void start(int power, int size, IntTupleSet set) {
+    passes.clear();
+    this.power = power;
+    this.size = size;
+    this.set = set;
+    pass = -1;
+    inPass = false;
+    applications = 0;
+    heapHighWater = 0;
+    startNanos = System.nanoTime();
+    endNanos = 0;
+    closureEvent = EVENTS == null ? null : EVENTS.beginClosure();
+    running = true;
+  }
+
+  /**
+   * End the current pass, if any, and start the next one.
+   */
+  void startPass(int pass, int size, long applications) {
+    if (!running) return;
+    endPass(size, applications, true);
+    this.pass = pass;
+    passStartSize = size;
+    passStartApplications = applications;
+    passStartNanos = System.nanoTime();
+    passEvent = EVENTS == null ? null : EVENTS.beginPass();
+    inPass = true;
+  }
+
+  /**
+   * Update the current size and the number of applications while
+   * a pass runs.
+   */
+  void update(int size, long applications) {
+    this.size = size;
+    this.applications = applications;
+    sampleHeap();
+  }
+
+  /**
+   * End the closure.
+   *
+   * @param completed  false if it stopped early
+   */
+  void finish(int size, long applications, boolean completed) {
+    if (!running) return;
+    endPass(size, applications, completed);
+    running = false;
+    endNanos = System.nanoTime();
+    if (closureEvent != null) {
+      EVENTS.endClosure(closureEvent, power, size, passes.size(), applications,
+                        heapHighWater, completed);
+    }
+    closureEvent = null;
+    set = null;
+  }
+
+  private void endPass(int size, long applications, boolean completed) {
+    update(size, applications);
+    if (!inPass) return;
+    inPass = false;
+    final Pass p = new Pass(pass, passStartSize, size, applications - passStartApplications,
+                            System.nanoTime() - passStartNanos, set, currentHeap(), completed);
+    passes.add(p);
+    if (passEvent != null) EVENTS.endPass(passEvent, p);
+    passEvent = null;
+  }
+
+  private static long currentHeap() {
+    final Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private void sampleHeap() {
+    final long used = currentHeap();
+    if (used > heapHighWater) heapHighWater = used;
+  }
+
+  /**
+   * True while a closure is being measured.
+   */
+  public boolean isRunning() { return running; }
+
+  /**
+   * The current pass, or -1 before the first one.
+   */
+  public int getPass() { return pass; }
+
+  public int getSize() { return size; }
+
+  /**
+   * The operation applications so far. While a pass runs this is
+   * updated every 65536 applications.
+   */
+  public long getApplications() { return applications; }
+
+  public long getElapsedNanos() {
+    if (startNanos == 0) return 0;
+    return (running ? System.nanoTime() : endNanos) - startNanos;
+  }
+
+  /**
+   * The applications per second in the current pass, or in the last
+   * one if the closure is done.
+   */
+  public double getApplicationsPerSecond() {
+    if (!running) {
+      return passes.isEmpty() ? 0 : passes.get(passes.size() - 1).getApplicationsPerSecond();
+    }
+    final long nanos = System.nanoTime() - passStartNanos;
+    return nanos <= 0 ? 0 : (applications - passStartApplications) * 1e9 / nanos;
+  }
+
+  /**
+   * The duplicate rate in the current pass so far, or in the last
+   * one if the closure is done.
+   */
+  public double getDuplicateRate() {
+    if (!running) {
+      return passes.isEmpty() ? 0 : passes.get(passes.size() - 1).getDuplicateRate();
+    }
+    final long apps = applications - passStartApplications;
+    return apps <= 0 ? 0 : 1 - (double)(size - passStartSize) / apps;
+  }
+
+  /**
+   * The most heap seen in use, in bytes, sampled at the end of each
+   * pass and with the updates.
+   */
+  public long getHeapHighWater() { return heapHighWater; }
+
+  /**
+   * The finished passes of the last closure.
+   */
+  public List<Pass> getPasses() {
+    return Collections.unmodifiableList(new ArrayList<Pass>(passes));
+  }
+
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(running ? "closing" : "closed").append(", size ").append(size)
+      .append(", ").append(applications).append(" applications in ")
+      .append(String.format("%.3f", getElapsedNanos() / 1e9)).append(" s, heap high water ")
+      .append(heapHighWater >> 20).append(" MB");
+    for (Pass p : passes) {
+      sb.append('\n').append(p);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,30 @@
+/* ClosureListener.java */
+
+package org.uacalc.alg;
+
+import org.uacalc.util.IntArray;
+
+/**
+ * Told about each element of a closure by <code>Closer</code> as soon
+ * as it is found, so a consumer can work on the elements while the
+ * closure runs and stop it when it has seen enough. The starting 
+ * elements (the generators and the constants) are passed first.
+ *
+ * @see Closer#setClosureListener(ClosureListener)
+ */
+public interface ClosureListener {
+
+  /**
+   * Called for each element of the closure, in the order they are
+   * added. The term, if the closer keeps terms, is 
+   * <code>closer.getTerm(index)</code>; it is only made if asked for.
+   *
+   * @param elem    the element
+   * @param index   its index in the closure
+   * @param closer  the closer doing the closure
+   * @return        false to stop the closure; the closer then 
+   *                returns the elements found so far
+   */
+  boolean elementFound(IntArray elem, int index, Closer closer);
+
+}
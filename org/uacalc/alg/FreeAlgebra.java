@@ -299,16 +299,13 @@ public class FreeAlgebra extends SubProductAlgebra implements SmallAlgebra {
   }
   
   private void makeUniverse(ProgressReport report) {
-    univ = productAlgebra.sgClose(gens, termMap, null, report);
+    univ = sgCloseWithTerms(report);
     size = univ.size();
     logger.info("free algebra size = " + size);
     univHashMap = new HashMap<IntArray, Integer>(size);
-    terms = new Term[univ.size()];
     int k = 0;
     for (Iterator<IntArray> it = univ.iterator(); it.hasNext(); k++) {
-      IntArray elem = it.next();
-      univHashMap.put(elem, new Integer(k));
-      terms[k] = termMap.get(elem);
+      univHashMap.put(it.next(), new Integer(k));
     }
     universe = new HashSet(univ);
     makeOperations();
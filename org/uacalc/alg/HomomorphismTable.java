@@ -0,0 +1,93 @@
+/* HomomorphismTable.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+
+import org.uacalc.alg.op.Operation;
+import org.uacalc.alg.op.OperationWithDefaultValue;
+
+/**
+ * The partial homomorphism into the image algebra of a
+ * <code>Closer</code>, kept as an <code>int</code> array of the images
+ * of the elements of the closure, indexed like <code>ans</code>. The
+ * tables of the operations of the image algebra are fetched once, so
+ * extending the homomorphism to a new element, or checking it at an
+ * old one, is a few array lookups rather than a map lookup for each
+ * argument and a call through the <code>Operation</code> interface.
+ * <p>
+ * Reading it from several threads is safe as long as nothing is added.
+ */
+final class HomomorphismTable {
+
+  private final int imgSize;
+  private final Operation[] imgOps;
+  private final int[][] tables;  // the table of each image operation or null
+  private int[] values;          // the images of the elements of ans
+  private int size;
+
+  /**
+   * @param imgOps  the operations of the image algebra, in the order
+   *                of the operations of the closer
+   */
+  HomomorphismTable(SmallAlgebra imageAlgebra, List<Operation> imgOps) {
+    this.imgSize = imageAlgebra.cardinality();
+    this.imgOps = imgOps.toArray(new Operation[imgOps.size()]);
+    this.tables = new int[imgOps.size()][];
+    for (int i = 0; i < tables.length; i++) {
+      final Operation op = this.imgOps[i];
+      if (op instanceof OperationWithDefaultValue) {
+        tables[i] = ((OperationWithDefaultValue)op).getTotalTable();
+      }
+      else tables[i] = op.getTable(true);
+    }
+    this.values = new int[16];
+  }
+
+  /**
+   * Add the image of the next element of <code>ans</code>.
+   */
+  void add(int value) {
+    if (size == values.length) values = Arrays.copyOf(values, size + (size >> 1) + 1);
+    values[size++] = value;
+  }
+
+  /**
+   * The image of the <code>index</code>th element.
+   */
+  int get(int index) {
+    return values[index];
+  }
+
+  int size() { return size; }
+
+  /**
+   * The images, as an array of length <code>size()</code>.
+   */
+  int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  /**
+   * The value of the <code>opIndex</code>th operation of the image
+   * algebra at the images of the elements with indices
+   * <code>argIndeces</code>.
+   */
+  int valueAt(final int opIndex, final int[] argIndeces) {
+    final int[] table = tables[opIndex];
+    final int arity = argIndeces.length;
+    if (table != null) {
+      int index = 0;
+      for (int r = arity - 1; r >= 0; r--) {
+        index = index * imgSize + values[argIndeces[r]];
+      }
+      return table[index];
+    }
+    final int[] args = new int[arity];
+    for (int r = 0; r < arity; r++) {
+      args[r] = values[argIndeces[r]];
+    }
+    return imgOps[opIndex].intValueAt(args);
+  }
+
+}
@@ -0,0 +1,833 @@
+/* IncrementalCloser.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+
+import org.uacalc.ui.tm.ProgressReport;
+import org.uacalc.util.*;
+import org.uacalc.terms.*;
+import org.uacalc.alg.op.Operation;
+import org.uacalc.alg.op.OperationSymbol;
+
+/**
+ * A closer for subpowers <i>R</i> = Sg(<i>G</i>) of <i>A</i><sup>n</sup>
+ * which works one coordinate at a time: it builds the projection
+ * <i>R<sub>k</sub></i> of <i>R</i> onto the coordinates
+ * <code>0, ..., k</code> and then extends it to <code>k + 1</code>.
+ * It is mainly meant to decide if an element is in <i>R</i>; see
+ * <code>findElement</code>.
+ * <p>
+ * The projections are kept as fibers over the prefixes: an element of
+ * <i>R<sub>k</sub></i> is stored as the index of its prefix in
+ * <i>R<sub>k-1</sub></i> and its last coordinate, with a hash index on
+ * these pairs, so it uses a few <code>int</code>'s no matter how many
+ * coordinates it has. While <i>R<sub>k</sub></i> is small enough the
+ * operation tables on it are made (see <code>setMaxTableSize</code>),
+ * so applying an operation to elements of <i>R<sub>k+1</sub></i> is a
+ * table look up, one operation of <i>A</i> and one hash look up.
+ * The search stops as soon as a prefix of the element to find is
+ * missing from a projection.
+ * <p>
+ * If a Mal'cev term for <i>A</i> is given with <code>setMalcevTerm</code>,
+ * a compact representation of <i>R</i> is used instead: for each
+ * coordinate <code>i</code> the forks <code>(a, b)</code> (the pairs of
+ * values at <code>i</code> of two elements of <i>R</i> which agree
+ * before <code>i</code>) each with a witnessing pair of elements of
+ * <i>R</i>. This has at most <code>n|A|<sup>2</sup></code> forks and
+ * an element is in <i>R</i> if and only if it can be built, one
+ * coordinate at a time, with the Mal'cev operation from the witnesses.
+ * The forks are found by sifting elements of <i>R</i> through the
+ * representation; when an element cannot be built the projection where
+ * it fails is closed as above, which either shows it is not in <i>R</i>
+ * or gives new forks. So the answers are always exact, and usually only
+ * short projections are closed.
+ * <p>
+ * Only powers of a single algebra are supported.
+ */
+public class IncrementalCloser {
+
+  private static final int EMPTY = -1;
+
+  private final BigProductAlgebra algebra;
+  private final SmallAlgebra root;
+  private final int power;
+  private final int algSize;
+  private final Operation[] ops;
+  private final int[] arities;
+  private final List<IntArray> generators;  // the generators and the constants
+  private final Map<IntArray,Term> termMap;  // the terms of the generators or null
+
+  private IntArray eltToFind;
+  private Term foundTerm;
+  private boolean cancelled = false;
+  private long maxTableSize = 1 << 24;
+  private ProgressReport report;
+  private boolean suppressOutput;
+
+  // the projections, built as needed.
+  private final List<Level> levels = new ArrayList<Level>();
+  private final int[][] ancestors;  // scratch for evalAt
+  private final int[][] argValues;  // scratch for each operation
+
+  // the fork representation; see setMalcevTerm.
+  private Term malcevTerm;
+  private Operation malcev;
+  private IntTupleSet witnesses;
+  private List<Term> witnessTerms;  // null if there are no terms
+  private int[][] reps;        // reps[i][a] is a witness with a at i, or EMPTY
+  private int[][] forkLeft;    // the witnesses of the fork (a, b) at i are
+  private int[][] forkRight;   // forkLeft[i][a * algSize + b] and forkRight[i][a * algSize + b]
+  private int forkCount;
+  private ArrayDeque<Integer> unsifted;
+
+  public IncrementalCloser(BigProductAlgebra alg, List<IntArray> gens) {
+    this(alg, gens, null);
+  }
+
+  /**
+   * @param termMap  a map from the generators to their terms, usually
+   *                 variables, or null if terms are not wanted
+   */
+  public IncrementalCloser(BigProductAlgebra alg, List<IntArray> gens,
+                           Map<IntArray,Term> termMap) {
+    if (!alg.isPower()) {
+      throw new IllegalArgumentException("only implemented for powers");
+    }
+    this.algebra = alg;
+    this.root = alg.rootFactors().get(0);
+    root.makeOperationTables();
+    this.power = alg.getNumberOfFactors();
+    this.algSize = root.cardinality();
+    final List<Operation> opList = root.operations();
+    ops = opList.toArray(new Operation[opList.size()]);
+    arities = new int[ops.length];
+    int max = 0;
+    argValues = new int[ops.length][];
+    for (int i = 0; i < ops.length; i++) {
+      arities[i] = ops[i].arity();
+      argValues[i] = new int[arities[i]];
+      max = Math.max(max, arities[i]);
+    }
+    ancestors = new int[power][max];
+    this.termMap = termMap == null ? null : new HashMap<IntArray,Term>(termMap);
+    final LinkedHashSet<IntArray> starts = new LinkedHashSet<IntArray>(gens);
+    for (IntArray c : alg.getConstants()) {
+      if (starts.add(c) && this.termMap != null) {
+        this.termMap.put(c, alg.getConstantTerm(c));
+      }
+    }
+    generators = new ArrayList<IntArray>(starts);
+  }
+
+  public List<IntArray> getGenerators() { return generators; }
+
+  public IntArray getElementToFind() { return eltToFind; }
+
+  public void setElementToFind(IntArray e) { eltToFind = e; }
+
+  /**
+   * The term of the element to find if <code>findElement</code> found
+   * it and there is a term map; otherwise null.
+   */
+  public Term getFoundTerm() { return foundTerm; }
+
+  /**
+   * True if the last closing was stopped by an interrupt.
+   */
+  public boolean isCancelled() { return cancelled; }
+
+  public Term getMalcevTerm() { return malcevTerm; }
+
+  /**
+   * Use the fork representation, with the Mal'cev operation of
+   * <code>term</code>, a Mal'cev term for the root algebra in the
+   * variables <code>x</code>, <code>y</code> and <code>z</code>, for
+   * example from <code>Malcev.malcevTerm</code>. Null turns it off.
+   */
+  public void setMalcevTerm(Term term) {
+    malcevTerm = term;
+    malcev = null;
+    reps = null;
+    if (term == null) return;
+    malcev = term.interpretation(root,
+        Arrays.asList(new Variable[] {Variable.x, Variable.y, Variable.z}), true);
+    final int[] arg = new int[3];
+    for (int a = 0; a < algSize; a++) {
+      for (int b = 0; b < algSize; b++) {
+        arg[0] = a; arg[1] = a; arg[2] = b;
+        final boolean left = malcev.intValueAt(arg) == b;
+        arg[0] = a; arg[1] = b; arg[2] = b;
+        if (!left || malcev.intValueAt(arg) != a) {
+          throw new IllegalArgumentException(term + " is not a Mal'cev term for "
+                                             + root.getName());
+        }
+      }
+    }
+  }
+
+  public long getMaxTableSize() { return maxTableSize; }
+
+  /**
+   * The operation tables on a projection are made only if each has at
+   * most this many entries; the default is 2<sup>24</sup>.
+   */
+  public void setMaxTableSize(long n) { maxTableSize = n; }
+
+  public void setProgressReport(ProgressReport report) { this.report = report; }
+
+  public boolean isSuppressOutput() { return suppressOutput; }
+
+  public void setSuppressOutput(boolean suppressOutput) {
+    this.suppressOutput = suppressOutput;
+  }
+
+  /**
+   * The number of projections made so far.
+   */
+  public int getNumberOfLevels() { return levels.size(); }
+
+  /**
+   * The size of the projection onto the coordinates <code>0, ..., k</code>,
+   * which must have been made.
+   */
+  public int getLevelSize(int k) { return levels.get(k).size; }
+
+  /**
+   * The number of forks in the representation, or -1 if it is not used.
+   */
+  public int getForkCount() { return reps == null ? -1 : forkCount; }
+
+  /**
+   * Decide if the element to find is in the subpower, closing as few
+   * projections as possible. If it is and there is a term map, its term
+   * is given by <code>getFoundTerm</code>.
+   */
+  public boolean findElement() {
+    if (eltToFind == null) {
+      throw new IllegalStateException("there is no element to find");
+    }
+    final int[] t = eltToFind.getArray();
+    if (t.length != power) {
+      throw new IllegalArgumentException("the element has length " + t.length
+                                         + ", not " + power);
+    }
+    foundTerm = null;
+    cancelled = false;
+    final boolean ans;
+    if (malcev != null) ans = findWithForks(t);
+    else {
+      final int e = findPrefix(t, power - 1);
+      ans = e >= 0;
+      if (ans && termMap != null) foundTerm = levels.get(power - 1).provenance.getTerm(e);
+    }
+    final String line = cancelled ? "cancelled ..."
+                        : (ans ? "found " : "did not find ") + eltToFind;
+    if (report != null) report.addLine(line);
+    else if (!suppressOutput) System.out.println(line);
+    return ans;
+  }
+
+  /**
+   * The whole subpower, made by closing all the projections.
+   *
+   * @return the elements or null if it was interrupted
+   */
+  public List<IntArray> sgClose() {
+    cancelled = false;
+    final Level last = levels.size() == power ? levels.get(power - 1) : null;
+    if (last != null && !last.closed) levels.remove(power - 1);
+    for (int k = levels.size(); k < power; k++) {
+      if (!closeLevel(k, null)) return null;
+    }
+    final Level lev = levels.get(power - 1);
+    final List<IntArray> ans = new ArrayList<IntArray>(lev.size);
+    for (int e = 0; e < lev.size; e++) {
+      ans.add(new IntArray(elementAt(power - 1, e)));
+    }
+    return ans;
+  }
+
+  /**
+   * The element with index <code>e</code> in the projection onto
+   * <code>0, ..., k</code>.
+   */
+  private int[] elementAt(int k, int e) {
+    final int[] ans = new int[k + 1];
+    for (int i = k; i >= 0; i--) {
+      final Level lev = levels.get(i);
+      ans[i] = lev.values[e];
+      e = lev.parents[e];
+    }
+    return ans;
+  }
+
+  /**
+   * The index of the restriction of <code>t</code> to
+   * <code>0, ..., k</code> in the projection onto these coordinates,
+   * or -1 if it is not there. The projections are closed as needed,
+   * and the last one is only closed until <code>t</code> is found.
+   */
+  private int findPrefix(int[] t, int k) {
+    int q = 0;
+    for (int i = 0; i <= k; i++) {
+      if (i < levels.size() && !levels.get(i).closed) {
+        // the last projection, left when an earlier element was found
+        final int e = levels.get(i).find(q, t[i]);
+        if (e >= 0) return e;
+        levels.remove(i);
+      }
+      if (i == levels.size() && !closeLevel(i, i == power - 1 ? t : null)) return -1;
+      q = levels.get(i).find(q, t[i]);
+      if (q < 0) return -1;
+    }
+    return q;
+  }
+
+  /**
+   * Close the projection onto <code>0, ..., k</code>, all of whose
+   * shorter projections are closed. If <code>target</code> is not
+   * null, stop when it is found.
+   *
+   * @return false if it was interrupted
+   */
+  private boolean closeLevel(final int k, final int[] target) {
+    final Level lev = new Level(k);
+    levels.add(lev);
+    for (IntArray g : generators) {
+      final int[] arr = g.getArray();
+      final int e = lev.add(k == 0 ? 0 : prefixIndex(arr, k - 1), arr[k]);
+      if (e >= 0) {
+        lev.provenance.addLeaf(termMap == null ? null : termMap.get(g));
+        lev.leafTuples.put(e, arr);
+      }
+    }
+    final int targetPrefix = target == null ? EMPTY : prefixIndex(target, k - 1);
+    if (target != null && lev.find(targetPrefix, target[k]) >= 0) return true;
+    final boolean reportNotNull = report != null;
+    int closedMark = 0;
+    int currentMark = lev.size;
+    int pass = 0;
+    while (closedMark < currentMark) {
+      final String str = "coordinate " + k + ", pass: " + pass + ", size: " + lev.size;
+      if (reportNotNull) {
+        report.setPass(pass);
+        report.setPassSize(lev.size);
+        if (!suppressOutput) report.addLine(str);
+      }
+      else if (!suppressOutput) System.out.println(str);
+      pass++;
+      for (int i = 0; i < ops.length; i++) {
+        final int arity = arities[i];
+        if (arity == 0) continue;
+        final int[] vals = argValues[i];
+        final int[] argIndeces = new int[arity];
+        argIndeces[arity - 1] = closedMark;
+        final ArrayIncrementor inc =
+          SequenceGenerator.sequenceIncrementor(argIndeces, currentMark - 1, closedMark);
+        final int[] parentArgs = new int[arity];
+        while (true) {
+          if (Thread.currentThread().isInterrupted()) {
+            cancelled = true;
+            levels.remove(k);
+            if (reportNotNull) report.addEndingLine("cancelled ...");
+            return false;
+          }
+          for (int r = 0; r < arity; r++) {
+            vals[r] = lev.values[argIndeces[r]];
+            parentArgs[r] = lev.parents[argIndeces[r]];
+          }
+          final int v = ops[i].intValueAt(vals);
+          final int q = k == 0 ? 0 : evalAt(i, parentArgs, k - 1);
+          if (lev.add(q, v) >= 0) {
+            lev.provenance.add(i, argIndeces);
+            if (q == targetPrefix && target != null && v == target[k]) {
+              if (reportNotNull) report.addEndingLine("found at size " + lev.size);
+              return true;
+            }
+          }
+          if (!inc.increment()) break;
+        }
+      }
+      closedMark = currentMark;
+      currentMark = lev.size;
+    }
+    lev.closed = true;
+    if (reportNotNull) {
+      report.setSize(lev.size);
+      report.addLine("coordinate " + k + " closed, size: " + lev.size);
+    }
+    if (k < power - 1) makeTables(lev);
+    return true;
+  }
+
+  /**
+   * The index of the element of the <code>j</code>th projection which
+   * is the value of the <code>i</code>th operation at the elements
+   * <code>idx</code> of it. The <code>j</code>th projection must be
+   * closed.
+   */
+  private int evalAt(final int i, final int[] idx, final int j) {
+    final int arity = arities[i];
+    System.arraycopy(idx, 0, ancestors[j], 0, arity);
+    int l = j;
+    while (l >= 0 && levels.get(l).tables == null) {
+      if (l > 0) {
+        final int[] parents = levels.get(l).parents;
+        for (int r = 0; r < arity; r++) {
+          ancestors[l - 1][r] = parents[ancestors[l][r]];
+        }
+      }
+      l--;
+    }
+    int q = 0;
+    if (l >= 0) {
+      final Level lev = levels.get(l);
+      int h = 0;
+      for (int r = 0; r < arity; r++) {
+        h = h * lev.size + ancestors[l][r];
+      }
+      q = lev.tables[i][h];
+    }
+    final int[] vals = argValues[i];
+    for (int m = l + 1; m <= j; m++) {
+      final Level lev = levels.get(m);
+      for (int r = 0; r < arity; r++) {
+        vals[r] = lev.values[ancestors[m][r]];
+      }
+      q = lev.find(q, ops[i].intValueAt(vals));
+    }
+    return q;
+  }
+
+  /**
+   * Make the operation tables on a closed projection if they are not
+   * too big and the shorter projections have them.
+   */
+  private void makeTables(Level lev) {
+    if (lev.index > 0 && levels.get(lev.index - 1).tables == null) return;
+    for (int i = 0; i < ops.length; i++) {
+      if (Math.pow(lev.size, arities[i]) > maxTableSize) return;
+    }
+    final int[][] tables = new int[ops.length][];
+    for (int i = 0; i < ops.length; i++) {
+      final int arity = arities[i];
+      if (arity == 0) continue;
+      final int len = (int)Math.pow(lev.size, arity);
+      final int[] table = new int[len];
+      final int[] idx = new int[arity];
+      for (int h = 0; h < len; h++) {
+        table[h] = evalAt(i, idx, lev.index);
+        for (int r = arity - 1; r >= 0; r--) {
+          if (++idx[r] < lev.size) break;
+          idx[r] = 0;
+        }
+      }
+      tables[i] = table;
+    }
+    lev.tables = tables;
+  }
+
+  /**
+   * The index of the restriction of <code>arr</code> to
+   * <code>0, ..., k</code>, or -1 if it is not in the projection.
+   * If <code>k</code> is -1 this is 0, the index of the empty prefix.
+   */
+  private int prefixIndex(int[] arr, int k) {
+    int q = 0;
+    for (int i = 0; i <= k && q >= 0; i++) {
+      q = levels.get(i).find(q, arr[i]);
+    }
+    return q;
+  }
+
+  /**
+   * An element of the subpower whose restriction to
+   * <code>0, ..., k</code> is the <code>e</code>th element of that
+   * projection, made by evaluating its term on the generators.
+   */
+  private int[] lift(Level lev, int e) {
+    int[] ans = lev.leafTuples.get(e);
+    if (ans != null) return ans;
+    ans = lev.lifts.get(e);
+    if (ans != null) return ans;
+    final int i = lev.provenance.opIndex(e);
+    final int[] argIndeces = lev.provenance.argIndeces(e);
+    final int[][] args = new int[argIndeces.length][];
+    for (int r = 0; r < args.length; r++) {
+      args[r] = lift(lev, argIndeces[r]);
+    }
+    ans = apply(ops[i], args);
+    lev.lifts.put(e, ans);
+    return ans;
+  }
+
+  private int[] apply(Operation op, int[][] args) {
+    final int[] ans = new int[power];
+    final int[] arg = new int[args.length];
+    for (int c = 0; c < power; c++) {
+      for (int r = 0; r < args.length; r++) {
+        arg[r] = args[r][c];
+      }
+      ans[c] = op.intValueAt(arg);
+    }
+    return ans;
+  }
+
+  private Term applyTerm(Operation op, int[] argIndeces) {
+    if (witnessTerms == null) return null;
+    final List<Term> children = new ArrayList<Term>(argIndeces.length);
+    for (int w : argIndeces) {
+      children.add(witnessTerms.get(w));
+    }
+    return new NonVariableTerm(op.symbol(), children);
+  }
+
+  private Term malcevTerm(int r, int u, int v) {
+    if (witnessTerms == null) return null;
+    return malcevTerm(witnessTerms.get(r), witnessTerms.get(u), witnessTerms.get(v));
+  }
+
+  private Term malcevTerm(Term x, Term y, Term z) {
+    final Map<Variable,Term> map = new HashMap<Variable,Term>(3);
+    map.put(Variable.x, x);
+    map.put(Variable.y, y);
+    map.put(Variable.z, z);
+    return malcevTerm.substitute(map);
+  }
+
+  private boolean findWithForks(int[] t) {
+    makeRepresentation();
+    while (true) {
+      final int j = build(t, true);
+      if (j < 0) {
+        if (witnessTerms != null) foundTerm = witnessTerms.get(builtIndex);
+        return true;
+      }
+      // the representation may be missing forks at j, so check the
+      // projection onto 0, ..., j.
+      final int e = findPrefix(t, j);
+      if (e < 0) return false;
+      final Level lev = levels.get(j);
+      sift(addWitness(lift(lev, e), termMap == null ? null : lev.provenance.getTerm(e)));
+      siftAll();
+      if (report != null) report.addLine("forks: " + forkCount
+                                         + ", witnesses: " + witnesses.size());
+    }
+  }
+
+  private int builtIndex;  // set by build
+
+  /**
+   * Try to build <code>t</code> from the witnesses with the Mal'cev
+   * operation. If it fails the element made so far is stored as a
+   * witness and its index put in <code>builtIndex</code>; if it
+   * succeeds this is only done if <code>keep</code> is true.
+   *
+   * @return the coordinate where there was no fork to continue, or
+   *         -1 if <code>t</code> was built
+   */
+  private int build(int[] t, boolean keep) {
+    int r = reps[0][t[0]];
+    if (r == EMPTY) return 0;
+    int[] arr = witnesses.get(r);
+    Term term = witnessTerms == null ? null : witnessTerms.get(r);
+    boolean stored = true;
+    for (int i = 1; i < power; i++) {
+      if (arr[i] == t[i]) continue;
+      final int pair = arr[i] * algSize + t[i];
+      final int u = forkLeft[i][pair];
+      if (u == EMPTY) {
+        builtIndex = stored ? r : addWitness(arr, term);
+        return i;
+      }
+      final int v = forkRight[i][pair];
+      arr = apply(malcev, new int[][] {arr, witnesses.get(u), witnesses.get(v)});
+      if (term != null) term = malcevTerm(term, witnessTerms.get(u), witnessTerms.get(v));
+      stored = false;
+    }
+    if (keep) builtIndex = stored ? r : addWitness(arr, term);
+    return -1;
+  }
+
+  /**
+   * Add an element of the subpower to the witnesses, to be sifted.
+   *
+   * @return its index
+   */
+  private int addWitness(int[] arr, Term term) {
+    final int k = witnesses.add(arr);
+    if (k < 0) return -k - 1;
+    if (witnessTerms != null) witnessTerms.add(term);
+    unsifted.add(k);
+    return k;
+  }
+
+  private void makeRepresentation() {
+    if (reps != null) return;
+    witnesses = new IntTupleSet();
+    witnessTerms = termMap == null ? null : new ArrayList<Term>();
+    unsifted = new ArrayDeque<Integer>();
+    forkCount = 0;
+    for (IntArray g : generators) {
+      addWitness(g.getArray(), termMap == null ? null : termMap.get(g));
+    }
+    reps = new int[power][algSize];
+    forkLeft = new int[power][algSize * algSize];
+    forkRight = new int[power][algSize * algSize];
+    for (int i = 0; i < power; i++) {
+      Arrays.fill(reps[i], EMPTY);
+      Arrays.fill(forkLeft[i], EMPTY);
+      Arrays.fill(forkRight[i], EMPTY);
+      closeValues(i);
+    }
+    // everything at 0 is a fork
+    for (int a = 0; a < algSize; a++) {
+      for (int b = 0; b < algSize; b++) {
+        if (a != b && reps[0][a] != EMPTY && reps[0][b] != EMPTY) {
+          forkLeft[0][a * algSize + b] = reps[0][a];
+          forkRight[0][a * algSize + b] = reps[0][b];
+          forkCount++;
+        }
+      }
+    }
+    siftAll();
+    if (report != null) report.addLine("forks: " + forkCount
+                                       + ", witnesses: " + witnesses.size());
+  }
+
+  /**
+   * Find the projection of the subpower onto the <code>i</code>th
+   * coordinate, with a witness for each value.
+   */
+  private void closeValues(int i) {
+    final List<Integer> vals = new ArrayList<Integer>();
+    for (int w = 0; w < witnesses.size(); w++) {
+      final int a = witnesses.get(w)[i];
+      if (reps[i][a] == EMPTY) {
+        reps[i][a] = w;
+        vals.add(a);
+      }
+    }
+    int closedMark = 0;
+    while (closedMark < vals.size()) {
+      final int currentMark = vals.size();
+      for (int f = 0; f < ops.length; f++) {
+        final int arity = arities[f];
+        if (arity == 0) continue;
+        final int[] argIndeces = new int[arity];
+        argIndeces[arity - 1] = closedMark;
+        final ArrayIncrementor inc =
+          SequenceGenerator.sequenceIncrementor(argIndeces, currentMark - 1, closedMark);
+        final int[] arg = new int[arity];
+        while (true) {
+          for (int r = 0; r < arity; r++) {
+            arg[r] = vals.get(argIndeces[r]);
+          }
+          final int v = ops[f].intValueAt(arg);
+          if (reps[i][v] == EMPTY) {
+            final int[][] args = new int[arity][];
+            final int[] ws = new int[arity];
+            for (int r = 0; r < arity; r++) {
+              ws[r] = reps[i][arg[r]];
+              args[r] = witnesses.get(ws[r]);
+            }
+            reps[i][v] = addWitness(apply(ops[f], args), applyTerm(ops[f], ws));
+            vals.add(v);
+          }
+          if (!inc.increment()) break;
+        }
+      }
+      closedMark = currentMark;
+    }
+  }
+
+  /**
+   * Sift the new witnesses: each one which cannot be built from the
+   * others gives a new fork.
+   */
+  private void siftAll() {
+    while (!unsifted.isEmpty()) {
+      sift(unsifted.poll());
+    }
+  }
+
+  private void sift(int y) {
+    final int[] arr = witnesses.get(y);
+    final int i = build(arr, false);
+    // builtIndex agrees with y before i
+    if (i >= 0) addFork(i, witnesses.get(builtIndex)[i], arr[i], builtIndex, y);
+  }
+
+  /**
+   * Add the fork <code>(a, b)</code> at <code>i</code>, witnessed by
+   * <code>u</code> and <code>v</code>, and the forks which follow from
+   * it: the forks at <code>i</code> are an equivalence relation, using
+   * the Mal'cev operation for transitivity, and are closed under the
+   * operations.
+   */
+  private void addFork(int i, int a, int b, int u, int v) {
+    final int[] left = forkLeft[i];
+    final int[] right = forkRight[i];
+    final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    if (!setFork(i, a, b, u, v)) return;
+    queue.add(a * algSize + b);
+    while (!queue.isEmpty()) {
+      final int pair = queue.poll();
+      a = pair / algSize;
+      b = pair % algSize;
+      u = left[pair];
+      v = right[pair];
+      if (setFork(i, b, a, v, u)) queue.add(b * algSize + a);
+      for (int c = 0; c < algSize; c++) {
+        final int bc = b * algSize + c;
+        if (left[bc] != EMPTY && left[a * algSize + c] == EMPTY && a != c) {
+          final int w = addWitness(apply(malcev, new int[][] {witnesses.get(v),
+                witnesses.get(left[bc]), witnesses.get(right[bc])}),
+                                   malcevTerm(v, left[bc], right[bc]));
+          if (setFork(i, a, c, u, w)) queue.add(a * algSize + c);
+        }
+        final int ca = c * algSize + a;
+        if (left[ca] != EMPTY && left[c * algSize + b] == EMPTY && c != b) {
+          final int w = addWitness(apply(malcev, new int[][] {witnesses.get(right[ca]),
+                witnesses.get(u), witnesses.get(v)}), malcevTerm(right[ca], u, v));
+          if (setFork(i, c, b, left[ca], w)) queue.add(c * algSize + b);
+        }
+      }
+      // apply the operations with the fork in one place and the same
+      // element in both witnesses in the others.
+      for (int f = 0; f < ops.length; f++) {
+        final int arity = arities[f];
+        if (arity == 0) continue;
+        final int[] arg = new int[arity];
+        final int[] ws = new int[arity];
+        for (int s = 0; s < arity; s++) {
+          final int[] others = new int[arity];
+          final int[] maxs = new int[arity];
+          for (int r = 0; r < arity; r++) {
+            maxs[r] = r == s ? 0 : algSize - 1;
+          }
+          final ArrayIncrementor inc = SequenceGenerator.sequenceIncrementor(others, maxs);
+          do {
+            boolean ok = true;
+            for (int r = 0; r < arity && ok; r++) {
+              if (r != s) ok = reps[i][others[r]] != EMPTY;
+            }
+            if (!ok) continue;
+            System.arraycopy(others, 0, arg, 0, arity);
+            arg[s] = a;
+            final int fa = ops[f].intValueAt(arg);
+            arg[s] = b;
+            final int fb = ops[f].intValueAt(arg);
+            if (fa == fb || left[fa * algSize + fb] != EMPTY) continue;
+            final int[][] args = new int[arity][];
+            for (int r = 0; r < arity; r++) {
+              ws[r] = r == s ? u : reps[i][others[r]];
+              args[r] = witnesses.get(ws[r]);
+            }
+            final int fu = addWitness(apply(ops[f], args), applyTerm(ops[f], ws));
+            ws[s] = v;
+            args[s] = witnesses.get(v);
+            final int fv = addWitness(apply(ops[f], args), applyTerm(ops[f], ws));
+            if (setFork(i, fa, fb, fu, fv)) queue.add(fa * algSize + fb);
+          } while (inc.increment());
+        }
+      }
+    }
+  }
+
+  private boolean setFork(int i, int a, int b, int u, int v) {
+    if (a == b) return false;
+    final int pair = a * algSize + b;
+    if (forkLeft[i][pair] != EMPTY) return false;
+    forkLeft[i][pair] = u;
+    forkRight[i][pair] = v;
+    forkCount++;
+    return true;
+  }
+
+  /**
+   * The projection onto <code>0, ..., index</code>: its elements are
+   * the pairs (the index of the prefix in the previous projection,
+   * the last coordinate), with an open addressing hash index.
+   */
+  private final class Level {
+
+    final int index;
+    int size;
+    int[] parents = new int[16];
+    int[] values = new int[16];
+    private int[] table = new int[32];
+    private int mask = 31;
+    boolean closed = false;
+    int[][] tables;  // the operation tables, or null
+    final TermProvenance provenance;
+    final Map<Integer,int[]> leafTuples = new HashMap<Integer,int[]>();
+    final Map<Integer,int[]> lifts = new HashMap<Integer,int[]>();
+
+    Level(int index) {
+      this.index = index;
+      Arrays.fill(table, EMPTY);
+      final List<OperationSymbol> syms = new ArrayList<OperationSymbol>(ops.length);
+      for (Operation op : ops) {
+        syms.add(op.symbol());
+      }
+      provenance = new TermProvenance(syms);
+    }
+
+    private int slot(int parent, int value) {
+      int h = (parent * algSize + value) * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * The index of the element with this prefix and last value, or -1.
+     */
+    int find(int parent, int value) {
+      int s = slot(parent, value);
+      while (true) {
+        final int e = table[s];
+        if (e == EMPTY) return -1;
+        if (parents[e] == parent && values[e] == value) return e;
+        s = (s + 1) & mask;
+      }
+    }
+
+    /**
+     * Add the element if it is new.
+     *
+     * @return its index, or <code>-(index + 1)</code> if it was here
+     */
+    int add(int parent, int value) {
+      int s = slot(parent, value);
+      while (true) {
+        final int e = table[s];
+        if (e == EMPTY) break;
+        if (parents[e] == parent && values[e] == value) return -(e + 1);
+        s = (s + 1) & mask;
+      }
+      if (size == parents.length) {
+        parents = Arrays.copyOf(parents, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      parents[size] = parent;
+      values[size] = value;
+      table[s] = size;
+      size++;
+      if (2 * size > table.length) rehash();
+      return size - 1;
+    }
+
+    private void rehash() {
+      table = new int[2 * table.length];
+      Arrays.fill(table, EMPTY);
+      mask = table.length - 1;
+      for (int e = 0; e < size; e++) {
+        int s = slot(parents[e], values[e]);
+        while (table[s] != EMPTY) s = (s + 1) & mask;
+        table[s] = e;
+      }
+    }
+  }
+
+}
@@ -842,12 +842,24 @@ public class Malcev {
     if (report != null) report.addStartLine("Testing for a cyclic of arity " + arity 
         + " using an algorithm of Valeriote and Willard.");
     final BigProductAlgebra bigProd = new BigProductAlgebra(alg, arity);
-    int[] block = new int[arity];
+    // the generators are invariant under cyclic shifts, so only orbit
+    // representatives need be kept. A constant element is its own
+    // representative.
+    final int[] shift = new int[arity];
     for (int i = 0; i < arity; i++) {
-      block[i] = i;
-    }
-    int[][] blocks = new int[1][];
-    blocks[0] = block;
+      shift[i] = (i + 1) % arity;
+    }
+    final List<IntArray> shifts = new ArrayList<IntArray>(1);
+    shifts.add(new IntArray(shift));
+    final ClosureListener constantFinder = new ClosureListener() {
+        public boolean elementFound(IntArray elem, int index, Closer closer) {
+          final int[] arr = elem.getArray();
+          for (int i = 1; i < arr.length; i++) {
+            if (arr[i] != arr[0]) return true;
+          }
+          return false;
+        }
+      };
     final int max = alg.cardinality() - 1;
     int[] v = new int[arity];
     ArrayIncrementor incr = SequenceGenerator.sequenceIncrementor(v, max);
@@ -860,15 +872,12 @@ public class Malcev {
         List<IntArray> gens = makeCyclicGens(v);
         Closer closer = new Closer(bigProd, gens);
         //if (report != null) closer.setProgressReport(report);
-        closer.setBlocks(blocks);
-        List<IntArray> lst = closer.sgClose();
-        int[] last = lst.get(lst.size() - 1).getArray();
-        final int c = last[0];
-        for (int i = 1; i < arity; i++) {
-          if (last[i] != c) {
-            if (report != null) report.addEndingLine("This algebra does not support a cyclic term of arity " + arity);
-            return false;
-          }
+        closer.setSuppressOutput(true);
+        closer.setClosureListener(constantFinder);
+        closer.sgCloseUnderSymmetry(shifts);
+        if (!closer.isStoppedByListener()) {
+          if (report != null) report.addEndingLine("This algebra does not support a cyclic term of arity " + arity);
+          return false;
         }
       }
       if (!incr.increment()) break;
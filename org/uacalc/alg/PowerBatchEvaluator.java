@@ -0,0 +1,160 @@
+/* PowerBatchEvaluator.java */
+
+package org.uacalc.alg;
+
+import java.util.List;
+
+/**
+ * Evaluates an operation of a power, given by the table of the root
+ * operation, at a block of argument tuples at once, for
+ * <code>Closer.sgClosePower</code>. The argument tuples are given by
+ * the indices of their entries in the list of raw elements and the
+ * values are put into one reused buffer, <code>values()</code>, the
+ * value at the <code>t</code>th tuple starting at
+ * <code>t * power</code>; nothing is allocated for each value.
+ * <p>
+ * The work is done coordinate major: the coordinates are taken in
+ * chunks small enough for the arguments, which the tuples of a block
+ * mostly share, to stay in the cache, and each chunk is done for all
+ * the tuples of the block before the next. The loops are specialized
+ * for arities 1, 2 and 3 so the index into the table is computed
+ * without an inner loop.
+ */
+final class PowerBatchEvaluator {
+
+  /**
+   * The coordinates done at a time.
+   */
+  static final int CHUNK = 512;
+
+  private final int[] opTable;
+  private final int arity;
+  private final int algSize;
+  private final int power;
+  private final int capacity;
+  private final int[] argIndeces;  // capacity * arity
+  private final int[][] rows;      // the raw arguments
+  private final int[] values;      // capacity * power
+  private int count;
+
+  /**
+   * @param opTable  the table of the root operation, in Horner order
+   *                 with the first argument least significant
+   */
+  PowerBatchEvaluator(int[] opTable, int arity, int algSize, int power) {
+    this.opTable = opTable;
+    this.arity = arity;
+    this.algSize = algSize;
+    this.power = power;
+    // about 256K of values
+    this.capacity = Math.max(1, Math.min(256, (1 << 16) / Math.max(1, power)));
+    this.argIndeces = new int[capacity * arity];
+    this.rows = new int[capacity * arity][];
+    this.values = new int[capacity * power];
+  }
+
+  int capacity() { return capacity; }
+
+  int count() { return count; }
+
+  boolean isFull() { return count == capacity; }
+
+  void clear() { count = 0; }
+
+  /**
+   * Add the argument tuple with indices <code>args</code>.
+   */
+  void add(int[] args) {
+    System.arraycopy(args, 0, argIndeces, count * arity, arity);
+    count++;
+  }
+
+  /**
+   * Copy the indices of the <code>t</code>th argument tuple into
+   * <code>dest</code>.
+   */
+  void argIndeces(int t, int[] dest) {
+    System.arraycopy(argIndeces, t * arity, dest, 0, arity);
+  }
+
+  /**
+   * The buffer of values; the value at the <code>t</code>th tuple is
+   * in <code>t * power, ..., t * power + power - 1</code>.
+   */
+  int[] values() { return values; }
+
+  /**
+   * Evaluate the operation at the tuples added since the last
+   * <code>clear</code>.
+   *
+   * @param rawList  the raw elements the indices refer to
+   */
+  void evaluate(List<int[]> rawList) {
+    final int n = count * arity;
+    for (int k = 0; k < n; k++) {
+      rows[k] = rawList.get(argIndeces[k]);
+    }
+    for (int j0 = 0; j0 < power; j0 += CHUNK) {
+      final int j1 = Math.min(power, j0 + CHUNK);
+      for (int t = 0; t < count; t++) {
+        final int out = t * power;
+        final int base = t * arity;
+        switch (arity) {
+          case 1:
+            unary(rows[base], out, j0, j1);
+            break;
+          case 2:
+            binary(rows[base], rows[base + 1], out, j0, j1);
+            break;
+          case 3:
+            ternary(rows[base], rows[base + 1], rows[base + 2], out, j0, j1);
+            break;
+          default:
+            general(base, out, j0, j1);
+        }
+      }
+    }
+  }
+
+  private void unary(final int[] a0, final int out, final int j0, final int j1) {
+    final int[] table = opTable;
+    final int[] vals = values;
+    for (int j = j0; j < j1; j++) {
+      vals[out + j] = table[a0[j]];
+    }
+  }
+
+  private void binary(final int[] a0, final int[] a1, final int out,
+                      final int j0, final int j1) {
+    final int[] table = opTable;
+    final int[] vals = values;
+    final int s = algSize;
+    for (int j = j0; j < j1; j++) {
+      vals[out + j] = table[a0[j] + s * a1[j]];
+    }
+  }
+
+  private void ternary(final int[] a0, final int[] a1, final int[] a2, final int out,
+                       final int j0, final int j1) {
+    final int[] table = opTable;
+    final int[] vals = values;
+    final int s = algSize;
+    final int s2 = s * s;
+    for (int j = j0; j < j1; j++) {
+      vals[out + j] = table[a0[j] + s * a1[j] + s2 * a2[j]];
+    }
+  }
+
+  private void general(final int base, final int out, final int j0, final int j1) {
+    for (int j = j0; j < j1; j++) {
+      int factor = algSize;
+      int index = rows[base][j];
+      for (int r = 1; r < arity; r++) {
+        index += factor * rows[base + r][j];
+        factor = factor * algSize;
+      }
+      values[out + j] = opTable[index];
+    }
+  }
+
+}
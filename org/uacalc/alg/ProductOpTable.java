@@ -0,0 +1,160 @@
+/* ProductOpTable.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+
+import org.uacalc.alg.op.Operation;
+import org.uacalc.alg.op.OperationWithDefaultValue;
+import org.uacalc.util.IntArray;
+
+/**
+ * An operation of a <code>BigProductAlgebra</code> whose factors need
+ * not be the same, evaluated with the tables of the operations of the
+ * factors. The coordinates are grouped into classes with the same
+ * table (for example the coordinates of a power of one factor, or
+ * of factors with equal tables), one flattened table for each class,
+ * and <code>valueAt</code> goes through the classes a column at a time
+ * so each table is used for a run of coordinates. This avoids the
+ * calls through the <code>Operation</code> interface for each
+ * coordinate made by the operations of <code>BigProductAlgebra</code>.
+ */
+final class ProductOpTable {
+
+  private final int arity;
+  private final int[][] tables;       // the table of each class
+  private final int[] sizes;          // the size of the factors of each class
+  private final int[][] coordinates;  // the coordinates in each class
+
+  private ProductOpTable(int arity, int[][] tables, int[] sizes, int[][] coordinates) {
+    this.arity = arity;
+    this.tables = tables;
+    this.sizes = sizes;
+    this.coordinates = coordinates;
+  }
+
+  /**
+   * The tables of the operations of <code>alg</code>, in the order of
+   * <code>alg.operations()</code>, or null if some operation of some
+   * factor has no table (after <code>makeOperationTables</code>). The
+   * constants are not included; their entries are null.
+   */
+  static ProductOpTable[] makeTables(BigProductAlgebra alg) {
+    final List<SmallAlgebra> factors = alg.factors();
+    final Set<SmallAlgebra> done = Collections.newSetFromMap(new IdentityHashMap<SmallAlgebra,Boolean>());
+    for (SmallAlgebra factor : factors) {
+      if (done.add(factor)) factor.makeOperationTables();
+    }
+    final int k = alg.operations().size();
+    final ProductOpTable[] ans = new ProductOpTable[k];
+    for (int i = 0; i < k; i++) {
+      final int arity = alg.operations().get(i).arity();
+      if (arity == 0) continue;
+      // the classes, keyed by the table; the same table is usually
+      // the same array so look for that first.
+      final Map<int[],Integer> byArray = new IdentityHashMap<int[],Integer>();
+      final Map<IntArray,Integer> byValue = new HashMap<IntArray,Integer>();
+      final List<int[]> tables = new ArrayList<int[]>();
+      final List<Integer> sizes = new ArrayList<Integer>();
+      final List<List<Integer>> coords = new ArrayList<List<Integer>>();
+      for (int j = 0; j < factors.size(); j++) {
+        final int[] table = table(factors.get(j).operations().get(i));
+        if (table == null) return null;
+        Integer c = byArray.get(table);
+        if (c == null) {
+          final IntArray key = new IntArray(table);
+          c = byValue.get(key);
+          if (c == null || sizes.get(c) != factors.get(j).cardinality()) {
+            c = tables.size();
+            tables.add(table);
+            sizes.add(factors.get(j).cardinality());
+            coords.add(new ArrayList<Integer>());
+            byValue.put(key, c);
+          }
+          byArray.put(table, c);
+        }
+        coords.get(c).add(j);
+      }
+      final int n = tables.size();
+      final int[] sizeArr = new int[n];
+      final int[][] coordArr = new int[n][];
+      for (int c = 0; c < n; c++) {
+        sizeArr[c] = sizes.get(c);
+        final List<Integer> lst = coords.get(c);
+        coordArr[c] = new int[lst.size()];
+        for (int t = 0; t < lst.size(); t++) {
+          coordArr[c][t] = lst.get(t);
+        }
+      }
+      ans[i] = new ProductOpTable(arity, tables.toArray(new int[n][]), sizeArr, coordArr);
+    }
+    return ans;
+  }
+
+  private static int[] table(Operation op) {
+    if (op instanceof OperationWithDefaultValue) {
+      return ((OperationWithDefaultValue)op).getTotalTable();
+    }
+    return op.getTable();
+  }
+
+  /**
+   * The number of classes of coordinates.
+   */
+  int numberOfClasses() { return tables.length; }
+
+  /**
+   * Put the value at <code>args</code>, the raw arrays of the
+   * arguments, into <code>dest</code>.
+   *
+   * @return <code>dest</code>
+   */
+  int[] valueAt(final int[][] args, final int[] dest) {
+    for (int c = 0; c < tables.length; c++) {
+      final int[] table = tables[c];
+      final int size = sizes[c];
+      final int[] coords = coordinates[c];
+      final int n = coords.length;
+      switch (arity) {
+        case 1: {
+          final int[] a0 = args[0];
+          for (int t = 0; t < n; t++) {
+            final int j = coords[t];
+            dest[j] = table[a0[j]];
+          }
+          break;
+        }
+        case 2: {
+          final int[] a0 = args[0];
+          final int[] a1 = args[1];
+          for (int t = 0; t < n; t++) {
+            final int j = coords[t];
+            dest[j] = table[a0[j] + size * a1[j]];
+          }
+          break;
+        }
+        case 3: {
+          final int[] a0 = args[0];
+          final int[] a1 = args[1];
+          final int[] a2 = args[2];
+          for (int t = 0; t < n; t++) {
+            final int j = coords[t];
+            dest[j] = table[a0[j] + size * (a1[j] + size * a2[j])];
+          }
+          break;
+        }
+        default:
+          for (int t = 0; t < n; t++) {
+            final int j = coords[t];
+            int index = args[arity - 1][j];
+            for (int r = arity - 2; r >= 0; r--) {
+              index = size * index + args[r][j];
+            }
+            dest[j] = table[index];
+          }
+      }
+    }
+    return dest;
+  }
+
+}
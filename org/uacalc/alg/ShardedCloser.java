@@ -0,0 +1,951 @@
+/* ShardedCloser.java */
+
+package org.uacalc.alg;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.uacalc.alg.op.Operation;
+import org.uacalc.alg.op.OperationWithDefaultValue;
+import org.uacalc.io.AlgebraIO;
+import org.uacalc.io.BadAlgebraFileException;
+import org.uacalc.ui.tm.ProgressReport;
+import org.uacalc.util.*;
+
+/**
+ * Closes a set of elements of a power of a finite algebra with several
+ * worker processes, for closures too big for one machine. Each element
+ * is owned by one worker, or shard, determined by its hash code; only
+ * the owner keeps it in a hash set to find duplicates. The closure goes
+ * in passes as in <code>Closer.sgClosePower</code>: in each pass every
+ * worker applies the operations to its share of the argument tuples
+ * with at least one new argument, keeps the values it owns and sends
+ * the others to their owners. The owners then find the new elements
+ * and a coordinator, the process calling <code>sgClose</code>, stops
+ * when a pass finds none.
+ * <p>
+ * The processes exchange the elements in a shared directory, so the
+ * workers can be on other machines with a shared file system, or on
+ * one machine as separate JVM's. The coordinator writes the algebra,
+ * the generators and a <code>job.properties</code> file there. In
+ * pass <code>p</code> worker <code>w</code> writes the values owned
+ * by <code>o</code> to <code>p-w-o.tup</code> and then the marker
+ * <code>p-w.sent</code>; owner <code>o</code> writes its new elements
+ * to <code>p-o.new.tup</code> and the marker <code>p-o.done</code>.
+ * The coordinator then writes <code>p.next</code>, or <code>stop</code>
+ * when it is done. The tuples are bit packed as in
+ * <code>PackedTupleStore</code> and the markers are written atomically.
+ * <p>
+ * By default the coordinator starts the workers as JVM's on this
+ * machine with the same class path; otherwise start them with
+ * <pre>
+ *   java -cp uacalc.jar org.uacalc.alg.ShardedCloser directory shard
+ * </pre>
+ * for each <code>shard</code> from 0 to <code>shards - 1</code>.
+ * The elements of the closure are in the order found, the new ones of
+ * each pass ordered by owner and, for one owner, as they were found;
+ * this does not depend on the timing of the workers. A worker only
+ * keeps the elements it owns, packed in a <code>PackedTupleStore</code>
+ * which also finds the duplicates; the arguments are read from the
+ * generators and the <code>new.tup</code> files, which are memory
+ * mapped rather than read into the heap. The closure returned by
+ * <code>sgClose</code> is a view of these files, which are left in
+ * the directory until <code>getElements()</code> is closed.
+ */
+public class ShardedCloser {
+
+  static final String JOB = "job.properties";
+  static final String ALGEBRA = "algebra.ua";
+  static final String GENERATORS = "generators.tup";
+  static final String STOP = "stop";
+  // tells a worker its stdin is a pipe from the coordinator, and to
+  // exit at the end of it, when the coordinator is done or has died
+  static final String WATCH_STDIN = "-stdin";
+
+  // a worker only remembers this many of the values it sent in a pass.
+  private static final int SENT_LIMIT = 1 << 20;
+
+  private final BigProductAlgebra algebra;
+  private final List<IntArray> generators;
+  private final File dir;
+  private final int shards;
+
+  private boolean launchWorkers = true;
+  private List<String> jvmOptions = Collections.emptyList();
+  private long pollInterval = 2;
+  private ProgressReport report;
+  private boolean suppressOutput;
+  private IntArray eltToFind;
+  private int maxSize;
+
+  private boolean completed;
+  private long applications;
+  private ElementFiles elements;
+
+  /**
+   * @param alg     a power of a finite algebra
+   * @param gens    the generators; duplicates are removed
+   * @param dir     the directory shared by the processes; it must be
+   *                empty or not exist
+   * @param shards  the number of workers
+   */
+  public ShardedCloser(BigProductAlgebra alg, List<IntArray> gens, File dir, int shards) {
+    if (!alg.isPower()) throw new IllegalArgumentException("the algebra must be a power");
+    if (shards < 1) throw new IllegalArgumentException("shards: " + shards);
+    this.algebra = alg;
+    this.generators = new ArrayList<IntArray>(new LinkedHashSet<IntArray>(gens));
+    this.dir = dir.getAbsoluteFile();
+    this.shards = shards;
+  }
+
+  public File getDirectory() { return dir; }
+
+  public int getShards() { return shards; }
+
+  public boolean isLaunchWorkers() { return launchWorkers; }
+
+  /**
+   * If true, the default, <code>sgClose</code> starts the workers as
+   * JVM's on this machine and stops them when it is done. Otherwise
+   * they must be started some other way; see <code>main</code>.
+   */
+  public void setLaunchWorkers(boolean launchWorkers) {
+    this.launchWorkers = launchWorkers;
+  }
+
+  public List<String> getJvmOptions() { return jvmOptions; }
+
+  /**
+   * Set the options, such as <code>-Xmx4g</code>, for the JVM's of
+   * the workers started by <code>sgClose</code>.
+   */
+  public void setJvmOptions(List<String> options) {
+    this.jvmOptions = new ArrayList<String>(options);
+  }
+
+  public long getPollInterval() { return pollInterval; }
+
+  /**
+   * Set how long, in milliseconds, the coordinator waits between looks
+   * for the files of the workers. The default is 2.
+   */
+  public void setPollInterval(long millis) {
+    if (millis < 1) throw new IllegalArgumentException("millis: " + millis);
+    this.pollInterval = millis;
+  }
+
+  public void setProgressReport(ProgressReport report) { this.report = report; }
+
+  public void setSuppressOutput(boolean suppressOutput) {
+    this.suppressOutput = suppressOutput;
+  }
+
+  /**
+   * If not null, the closure stops when this element is found; it is
+   * then the last element of the answer.
+   */
+  public void setElementToFind(IntArray e) { eltToFind = e; }
+
+  /**
+   * If positive, the closure stops after the first pass giving at least
+   * this many elements.
+   */
+  public void setMaxSize(int k) { maxSize = k; }
+
+  /**
+   * True if the last closure was finished, rather than stopped by the
+   * element to find or the maximum size.
+   */
+  public boolean isCompleted() { return completed; }
+
+  /**
+   * The number of operation applications made by the workers in the
+   * last closure.
+   */
+  public long getApplications() { return applications; }
+
+  /**
+   * The elements of the last closure, as returned by
+   * <code>sgClose</code>, read from the element files in the directory.
+   * It is <code>Closeable</code>; closing it deletes the files, and the
+   * directory can then be used again.
+   */
+  public TupleStore getElements() { return elements; }
+
+  /**
+   * Close the generators with the workers.
+   *
+   * @return the closure, the generators first, as a read only view of
+   *         <code>getElements()</code>, or null if the calling thread
+   *         was interrupted
+   */
+  public List<IntArray> sgClose() {
+    completed = false;
+    applications = 0;
+    elements = null;
+    final boolean reportNotNull = report != null;
+    final SmallAlgebra root = algebra.rootFactors().get(0);
+    final int algSize = root.cardinality();
+    final int power = algebra.getNumberOfFactors();
+    final List<IntArray> gens = new ArrayList<IntArray>(generators);
+    final Set<IntArray> start = new HashSet<IntArray>(generators);
+    for (IntArray arr : algebra.getConstants()) {
+      if (start.add(arr)) gens.add(arr);
+    }
+    final PackedTupleStore packer = new PackedTupleStore(power, algSize);
+    final ElementFiles elems = new ElementFiles(packer);
+    final List<IntArray> ans = elems.asList();
+    final List<Process> workers = new ArrayList<Process>();
+    boolean clean = false;
+    boolean keep = false;  // the files of elems, for the answer
+    try {
+      prepare(root, power, algSize, packer, gens);
+      elems.add(file(GENERATORS));
+      if (launchWorkers) launch(workers);
+      if (reportNotNull) {
+        report.addStartLine("sharded subpower closing with " + shards + " workers ...");
+      }
+      int pass = 0;
+      while (true) {
+        String str = "pass: " + pass + ", size: " + ans.size();
+        if (reportNotNull) {
+          report.setPass(pass);
+          report.setPassSize(ans.size());
+          if (!suppressOutput) report.addLine(str);
+        }
+        else {
+          if (!suppressOutput) System.out.println(str);
+        }
+        if (maxSize > 0 && ans.size() >= maxSize) {
+          elements = elems;
+          clean = keep = true;
+          return ans;
+        }
+        if (algebra.cardinality() > 0 && ans.size() >= algebra.cardinality()) break;
+        pass++;
+        final int[] counts = new int[shards];
+        int found = -1;  // the index in ans of eltToFind
+        int newCount = 0;
+        for (int s = 0; s < shards; s++) {
+          final String[] done = read(waitFor(file(pass + "-" + s + ".done"), workers)).split(" ");
+          counts[s] = Integer.parseInt(done[0]);
+          final int k = Integer.parseInt(done[1]);
+          if (k >= 0 && found < 0) found = ans.size() + newCount + k;
+          applications += Long.parseLong(done[2]);
+          newCount += counts[s];
+        }
+        for (int s = 0; s < shards; s++) {
+          elems.add(file(pass + "-" + s + ".new.tup"));
+        }
+        if (found >= 0) elems.truncate(found + 1);
+        deletePass(pass);
+        if (reportNotNull) report.setSize(ans.size());
+        if (found >= 0) {
+          if (reportNotNull) report.addEndingLine("closing done, found "
+                                                  + eltToFind + ", at " + found);
+          elements = elems;
+          clean = keep = true;
+          return ans;
+        }
+        if (newCount == 0) break;
+        publish(file(pass + ".next"), "");
+      }
+      if (reportNotNull) report.addEndingLine("closing done, size = " + ans.size());
+      completed = true;
+      elements = elems;
+      clean = keep = true;
+      return ans;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (reportNotNull) {
+        report.setSize(ans.size());
+        report.addEndingLine("cancelled ...");
+      }
+      clean = true;
+      return null;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      shutdown(workers, clean, keep ? elems : null);
+    }
+  }
+
+  /**
+   * Write the algebra, the generators and the job file.
+   */
+  private void prepare(SmallAlgebra root, int power, int algSize,
+                       PackedTupleStore packer, List<IntArray> gens) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot make " + dir);
+    file(STOP).delete();  // left for the workers by the last closure
+    final String[] names = dir.list();
+    if (names == null) throw new IOException("cannot list " + dir);
+    if (names.length > 0) throw new IllegalArgumentException("the directory " + dir + " must be empty");
+    AlgebraIO.writeAlgebraFile(root, file(ALGEBRA));
+    final List<int[]> raw = new ArrayList<int[]>(gens.size());
+    for (IntArray arr : gens) {
+      raw.add(arr.getArray());
+    }
+    writeTuples(file(GENERATORS), raw, packer);
+    final StringBuilder sb = new StringBuilder();
+    sb.append("power=" + power + "\n");
+    sb.append("algSize=" + algSize + "\n");
+    sb.append("shards=" + shards + "\n");
+    if (eltToFind != null) {
+      sb.append("find=");
+      for (int j = 0; j < power; j++) {
+        if (j > 0) sb.append(',');
+        sb.append(eltToFind.get(j));
+      }
+      sb.append("\n");
+    }
+    publish(file(JOB), sb.toString());
+  }
+
+  private void launch(List<Process> workers) throws IOException {
+    final String java = System.getProperty("java.home") + File.separator
+                        + "bin" + File.separator + "java";
+    for (int s = 0; s < shards; s++) {
+      final List<String> cmd = new ArrayList<String>();
+      cmd.add(java);
+      cmd.addAll(jvmOptions);
+      cmd.add("-cp");
+      cmd.add(System.getProperty("java.class.path"));
+      cmd.add(ShardedCloser.class.getName());
+      cmd.add(dir.getPath());
+      cmd.add(String.valueOf(s));
+      cmd.add(WATCH_STDIN);
+      final ProcessBuilder pb = new ProcessBuilder(cmd);
+      pb.redirectErrorStream(true);
+      pb.redirectOutput(file(s + ".log"));
+      workers.add(pb.start());
+    }
+  }
+
+  /**
+   * Wait for <code>f</code> to exist, checking that the workers have
+   * not failed.
+   */
+  private File waitFor(File f, List<Process> workers) throws InterruptedException, IOException {
+    while (!f.exists()) {
+      for (int s = 0; s < shards; s++) {
+        final File error = file(s + ".error");
+        if (error.exists()) {
+          throw new IllegalStateException("worker " + s + " failed: " + read(error));
+        }
+        if (s < workers.size() && !workers.get(s).isAlive()) {
+          throw new IllegalStateException("worker " + s + " exited with "
+              + workers.get(s).exitValue() + "; see " + file(s + ".log"));
+        }
+      }
+      Thread.sleep(pollInterval);
+    }
+    return f;
+  }
+
+  /**
+   * Delete the files of the exchange of <code>pass</code>, which the
+   * owners have read, and the markers of the pass before. The new
+   * elements are kept: the workers read their arguments from them.
+   */
+  private void deletePass(int pass) {
+    for (int w = 0; w < shards; w++) {
+      file(pass + "-" + w + ".sent").delete();
+      for (int o = 0; o < shards; o++) {
+        file(pass + "-" + w + "-" + o + ".tup").delete();
+      }
+      file((pass - 1) + "-" + w + ".done").delete();
+    }
+    file((pass - 1) + ".next").delete();
+  }
+
+  /**
+   * Tell the workers to stop and wait for the ones started here. If
+   * <code>clean</code> the files are deleted, except the stop file
+   * when the workers were started elsewhere and the files of
+   * <code>keep</code>, if it is not null; otherwise they are left to
+   * find out what went wrong.
+   */
+  private void shutdown(List<Process> workers, boolean clean, ElementFiles keep) {
+    try {
+      publish(file(STOP), "");
+    }
+    catch (IOException e) {
+      // the workers started here are destroyed below
+    }
+    for (Process p : workers) {
+      try {
+        p.getOutputStream().close();
+      }
+      catch (IOException e) {
+        // it is destroyed below if it does not stop
+      }
+      try {
+        if (!p.waitFor(10, TimeUnit.SECONDS)) p.destroyForcibly();
+      }
+      catch (InterruptedException e) {
+        p.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!clean) return;
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File f : files) {
+      if (!launchWorkers && f.getName().equals(STOP)) continue;
+      if (keep != null && keep.hasFile(f)) continue;
+      f.delete();
+    }
+  }
+
+  private File file(String name) {
+    return new File(dir, name);
+  }
+
+  /**
+   * The shard owning the tuple in <code>buf[off], ..., buf[off + len - 1]</code>.
+   */
+  static int owner(int[] buf, int off, int len, int shards) {
+    return (IntTupleSet.hash(buf, off, len) >>> 1) % shards;
+  }
+
+  /**
+   * Write <code>content</code> to <code>f</code> so other processes
+   * see all of it or nothing.
+   */
+  static void publish(File f, String content) throws IOException {
+    final File tmp = new File(f.getPath() + ".tmp");
+    Files.write(tmp.toPath(), content.getBytes("UTF-8"));
+    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  static String read(File f) throws IOException {
+    return new String(Files.readAllBytes(f.toPath()), "UTF-8").trim();
+  }
+
+  static void writeTuples(File f, List<int[]> tuples, PackedTupleStore packer) throws IOException {
+    try (TupleWriter out = new TupleWriter(f, packer)) {
+      for (int[] tuple : tuples) {
+        out.write(tuple, 0);
+      }
+    }
+  }
+
+  /**
+   * Writes packed tuples to a file.
+   */
+  static final class TupleWriter implements Closeable {
+    private final DataOutputStream out;
+    private final PackedTupleStore packer;
+    private final int[] tuple;
+    private final long[] packed;
+
+    TupleWriter(File f, PackedTupleStore packer) throws IOException {
+      this.out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+      this.packer = packer;
+      this.tuple = new int[packer.tupleLength()];
+      this.packed = new long[packer.wordsPerTuple()];
+    }
+
+    /**
+     * Write the tuple starting at <code>buf[off]</code>.
+     */
+    void write(int[] buf, int off) throws IOException {
+      System.arraycopy(buf, off, tuple, 0, tuple.length);
+      packer.pack(tuple, packed);
+      for (int w = 0; w < packed.length; w++) {
+        out.writeLong(packed[w]);
+      }
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the packed tuples of a file written by a
+   * <code>TupleWriter</code>, one at a time.
+   */
+  static final class TupleReader implements Closeable {
+    private final DataInputStream in;
+    private final PackedTupleStore packer;
+    private final long[] packed;
+    private long remaining;
+
+    TupleReader(File f, PackedTupleStore packer) throws IOException {
+      this.in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(f), 1 << 16));
+      this.packer = packer;
+      this.packed = new long[packer.wordsPerTuple()];
+      this.remaining = f.length() / (8L * packed.length);
+    }
+
+    /**
+     * Read the next tuple into <code>dest</code>.
+     *
+     * @return false if there are no more
+     */
+    boolean read(int[] dest) throws IOException {
+      if (remaining == 0) return false;
+      for (int w = 0; w < packed.length; w++) {
+        packed[w] = in.readLong();
+      }
+      packer.unpack(packed, 0, dest);
+      remaining--;
+      return true;
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * The elements of a closure, read only, from the files of packed
+   * tuples they were written to: the generators and then the new
+   * elements of each owner in each pass, in the order added. The files
+   * are memory mapped in segments of about
+   * <code>MappedTupleStore.SEGMENT_BYTES</code>, so the elements are
+   * not in the heap. <code>indexOf</code> scans the files. Closing this
+   * deletes them. This class is not thread safe.
+   */
+  static final class ElementFiles implements TupleStore, Closeable {
+    // the entries of the unpacked elements cached by rawList
+    private static final int CACHE_ENTRIES = 1 << 22;
+
+    private final PackedTupleStore packer;  // only used to pack and unpack
+    private final int words;
+    private final int perSegment;  // the number of tuples in a segment
+    private final List<File> files = new ArrayList<File>();
+    private final List<ByteBuffer[]> segments = new ArrayList<ByteBuffer[]>();
+    private int[] starts = new int[16];  // the index of the first tuple of each file
+    private int size;
+    private final long[] scratch;
+
+    ElementFiles(PackedTupleStore packer) {
+      this.packer = packer;
+      this.words = packer.wordsPerTuple();
+      this.perSegment = MappedTupleStore.SEGMENT_BYTES / (8 * words);
+      this.scratch = new long[words];
+    }
+
+    /**
+     * Add the tuples of <code>f</code>, which must be complete, after
+     * the ones here.
+     */
+    void add(File f) throws IOException {
+      final long n = f.length() / (8L * words);
+      if (size + n >= Integer.MAX_VALUE) throw new IllegalStateException("too many elements");
+      final ByteBuffer[] segs = new ByteBuffer[(int)((n + perSegment - 1) / perSegment)];
+      if (segs.length > 0) {
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+          for (int s = 0; s < segs.length; s++) {
+            final long first = (long)s * perSegment;
+            final long count = Math.min(perSegment, n - first);
+            segs[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                  8L * words * first, 8L * words * count);
+          }
+        }
+      }
+      if (files.size() == starts.length) starts = Arrays.copyOf(starts, 2 * starts.length);
+      starts[files.size()] = size;
+      files.add(f);
+      segments.add(segs);
+      size += (int)n;
+    }
+
+    /**
+     * Keep only the first <code>n</code> tuples. No files can be added
+     * after this.
+     */
+    void truncate(int n) {
+      size = Math.min(size, n);
+    }
+
+    boolean hasFile(File f) {
+      return files.contains(f);
+    }
+
+    public int size() { return size; }
+
+    public int tupleLength() { return packer.tupleLength(); }
+
+    public int base() { return packer.base(); }
+
+    public long memoryUsage() {
+      long segs = 0;
+      for (ByteBuffer[] arr : segments) {
+        segs += arr.length;
+      }
+      return 64L * segs + 4L * starts.length + 8L * words;
+    }
+
+    public int append(int[] tuple) {
+      throw new UnsupportedOperationException("the elements are read only");
+    }
+
+    public int add(int[] tuple) {
+      throw new UnsupportedOperationException("the elements are read only");
+    }
+
+    public int indexOf(int[] tuple) {
+      final long[] packed = new long[words];
+      packer.pack(tuple, packed);
+      int k = 0;
+      for (ByteBuffer[] segs : segments) {
+        for (ByteBuffer seg : segs) {
+          final int n = seg.capacity() / (8 * words);
+          for (int i = 0; i < n; i++, k++) {
+            if (k == size) return -1;
+            int w = 0;
+            while (w < words && seg.getLong(8 * (i * words + w)) == packed[w]) w++;
+            if (w == words) return k;
+          }
+        }
+      }
+      return -1;
+    }
+
+    public int[] get(int index, int[] buf) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+      }
+      if (buf == null) buf = new int[packer.tupleLength()];
+      // the last file starting at or before index, which is not empty
+      int lo = 0;
+      int hi = files.size() - 1;
+      while (lo < hi) {
+        final int mid = (lo + hi + 1) >>> 1;
+        if (starts[mid] <= index) lo = mid;
+        else hi = mid - 1;
+      }
+      final int k = index - starts[lo];
+      final ByteBuffer seg = segments.get(lo)[k / perSegment];
+      final int off = 8 * words * (k % perSegment);
+      for (int w = 0; w < words; w++) {
+        scratch[w] = seg.getLong(off + 8 * w);
+      }
+      return packer.unpack(scratch, 0, buf);
+    }
+
+    /**
+     * A read only view of the unpacked elements, for a
+     * <code>PowerBatchEvaluator</code>. It keeps a bounded cache of
+     * them, indexed by the low bits of the index, so the arguments
+     * used again and again are not unpacked each time; an array it
+     * returns is never changed, so the caller can keep it.
+     */
+    List<int[]> rawList() {
+      final int slots = Integer.highestOneBit(
+          Math.max(1, CACHE_ENTRIES / Math.max(1, packer.tupleLength())));
+      final int[] cached = new int[slots];
+      Arrays.fill(cached, -1);
+      final int[][] rows = new int[slots][];
+      return new AbstractList<int[]>() {
+        public int[] get(int index) {
+          final int slot = index & (slots - 1);
+          if (cached[slot] != index) {
+            rows[slot] = ElementFiles.this.get(index, null);
+            cached[slot] = index;
+          }
+          return rows[slot];
+        }
+
+        public int size() {
+          return size;
+        }
+      };
+    }
+
+    /**
+     * Delete the files. This cannot be used after this.
+     */
+    public void close() throws IOException {
+      segments.clear();
+      size = 0;
+      for (File f : files) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * A worker: it waits for the job in the directory, takes part in the
+   * passes until the coordinator stops it, and exits.
+   */
+  private static final class Worker {
+    private final File dir;
+    private final int shard;
+    private int shards;
+    private int power;
+    private PackedTupleStore packer;
+    private ElementFiles elements;    // all the elements, as arguments
+    private List<int[]> rawList;      // elements, unpacked
+    private PackedTupleStore owned;   // the elements owned by this
+    private int[] tuple;
+    // for a pass
+    private IntTupleSet sent;
+    private TupleWriter[] out;
+
+    Worker(File dir, int shard) {
+      this.dir = dir;
+      this.shard = shard;
+    }
+
+    private File file(String name) {
+      return new File(dir, name);
+    }
+
+    /**
+     * Read <code>in</code>, a pipe from the coordinator, in a daemon
+     * thread and exit at its end: the coordinator has died or is done
+     * with this, so there is no point finishing the pass.
+     */
+    void watch(final InputStream in) {
+      final Thread watcher = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while (in.read() >= 0) {}
+          }
+          catch (IOException e) {
+            // the same as the end
+          }
+          System.exit(1);
+        }
+      }, "coordinator watcher");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+
+    /**
+     * Wait for <code>f</code>; false if the coordinator stops this
+     * first.
+     */
+    private boolean waitFor(File f) throws InterruptedException {
+      final File stop = file(STOP);
+      while (!f.exists()) {
+        if (stop.exists()) return false;
+        Thread.sleep(2);
+      }
+      return true;
+    }
+
+    void run() throws IOException, InterruptedException, BadAlgebraFileException {
+      if (!waitFor(file(JOB))) return;
+      final Properties job = new Properties();
+      try (InputStream in = new FileInputStream(file(JOB))) {
+        job.load(in);
+      }
+      power = Integer.parseInt(job.getProperty("power"));
+      final int algSize = Integer.parseInt(job.getProperty("algSize"));
+      shards = Integer.parseInt(job.getProperty("shards"));
+      if (shard < 0 || shard >= shards) {
+        throw new IllegalArgumentException("shard " + shard + " of " + shards);
+      }
+      int[] toFind = null;
+      if (job.getProperty("find") != null) {
+        final String[] entries = job.getProperty("find").split(",");
+        toFind = new int[entries.length];
+        boolean inPower = entries.length == power;
+        for (int j = 0; j < entries.length; j++) {
+          toFind[j] = Integer.parseInt(entries[j]);
+          if (toFind[j] < 0 || toFind[j] >= algSize) inPower = false;
+        }
+        if (!inPower) toFind = null;  // it cannot be found
+      }
+      final SmallAlgebra alg = AlgebraIO.readAlgebraFile(file(ALGEBRA));
+      if (alg.cardinality() != algSize) {
+        throw new IllegalStateException("the algebra has size " + alg.cardinality());
+      }
+      alg.makeOperationTables();
+      final List<Operation> ops = alg.operations();
+      final int[][] opTables = new int[ops.size()][];
+      for (int i = 0; i < ops.size(); i++) {
+        final Operation op = ops.get(i);
+        if (op instanceof OperationWithDefaultValue) {
+          opTables[i] = ((OperationWithDefaultValue)op).getTotalTable();
+        }
+        else opTables[i] = op.getTable();
+      }
+      packer = new PackedTupleStore(power, algSize);
+      owned = new PackedTupleStore(power, algSize);
+      elements = new ElementFiles(packer);
+      rawList = elements.rawList();
+      tuple = new int[power];
+      elements.add(file(GENERATORS));
+      for (int k = 0; k < elements.size(); k++) {
+        elements.get(k, tuple);
+        if (owner(tuple, 0, power, shards) == shard) owned.add(tuple);
+      }
+      int closedMark = 0;
+      int currentMark = elements.size();
+      for (int pass = 1; ; pass++) {
+        // the elements found in this pass are owned.get(passStart), ...
+        final int passStart = owned.size();
+        sent = new IntTupleSet();
+        out = new TupleWriter[shards];
+        long apps = 0;
+        try {
+          for (int o = 0; o < shards; o++) {
+            if (o != shard) out[o] = new TupleWriter(file(pass + "-" + shard + "-" + o + ".tup"), packer);
+          }
+          for (int i = 0; i < ops.size(); i++) {
+            if (ops.get(i).arity() == 0) continue;
+            apps += apply(ops.get(i), opTables[i], closedMark, currentMark, algSize);
+          }
+        }
+        finally {
+          for (TupleWriter w : out) {
+            if (w != null) w.close();
+          }
+        }
+        sent = null;
+        publish(file(pass + "-" + shard + ".sent"), "");
+        for (int w = 0; w < shards; w++) {
+          if (w == shard) continue;
+          if (!waitFor(file(pass + "-" + w + ".sent"))) return;
+          try (TupleReader in = new TupleReader(file(pass + "-" + w + "-" + shard + ".tup"), packer)) {
+            while (in.read(tuple)) {
+              owned.add(tuple);
+            }
+          }
+        }
+        final int newCount = owned.size() - passStart;
+        try (TupleWriter w = new TupleWriter(file(pass + "-" + shard + ".new.tup"), packer)) {
+          for (int k = passStart; k < owned.size(); k++) {
+            w.write(owned.get(k, tuple), 0);
+          }
+        }
+        int found = -1;
+        if (toFind != null) {
+          final int k = owned.indexOf(toFind);
+          if (k >= passStart) found = k - passStart;
+        }
+        publish(file(pass + "-" + shard + ".done"), newCount + " " + found + " " + apps);
+        if (!waitFor(file(pass + ".next"))) return;
+        for (int o = 0; o < shards; o++) {
+          elements.add(file(pass + "-" + o + ".new.tup"));
+        }
+        closedMark = currentMark;
+        currentMark = elements.size();
+      }
+    }
+
+    /**
+     * Apply <code>op</code> to this shard's share of the argument tuples
+     * with entries less than <code>currentMark</code> and at least one
+     * at least <code>closedMark</code>: every <code>shards</code>th one
+     * in the order of the incrementor.
+     *
+     * @return the number of applications
+     */
+    private long apply(Operation op, int[] opTable, int closedMark, int currentMark,
+                       int algSize) throws IOException {
+      final int arity = op.arity();
+      final int[] argIndeces = new int[arity];
+      argIndeces[arity - 1] = closedMark;
+      final ArrayIncrementor inc =
+          SequenceGenerator.sequenceIncrementor(argIndeces, currentMark - 1, closedMark);
+      long count = 0;
+      long apps = 0;
+      if (opTable != null) {
+        final PowerBatchEvaluator batch = new PowerBatchEvaluator(opTable, arity, algSize, power);
+        final int[] values = batch.values();
+        boolean more = true;
+        while (more) {
+          batch.clear();
+          while (more && !batch.isFull()) {
+            if (count++ % shards == shard) batch.add(argIndeces);
+            more = inc.increment();
+          }
+          batch.evaluate(rawList);
+          for (int t = 0; t < batch.count(); t++) {
+            route(values, t * power);
+          }
+          apps += batch.count();
+        }
+        return apps;
+      }
+      final int[][] argRaw = new int[arity][];
+      final int[] arg = new int[arity];
+      final int[] vRaw = new int[power];
+      do {
+        if (count++ % shards != shard) continue;
+        for (int r = 0; r < arity; r++) {
+          argRaw[r] = rawList.get(argIndeces[r]);
+        }
+        for (int j = 0; j < power; j++) {
+          for (int r = 0; r < arity; r++) {
+            arg[r] = argRaw[r][j];
+          }
+          vRaw[j] = op.intValueAt(arg);
+        }
+        route(vRaw, 0);
+        apps++;
+      } while (inc.increment());
+      return apps;
+    }
+
+    /**
+     * Keep the value starting at <code>buf[off]</code> if this shard
+     * owns it and it is new; otherwise send it to its owner, unless it
+     * was sent already in this pass.
+     */
+    private void route(int[] buf, int off) throws IOException {
+      final int o = owner(buf, off, power, shards);
+      if (o == shard) {
+        System.arraycopy(buf, off, tuple, 0, power);
+        owned.add(tuple);
+        return;
+      }
+      if (sent.size() >= SENT_LIMIT) sent = new IntTupleSet();
+      if (sent.addCopy(buf, off, power) >= 0) out[o].write(buf, off);
+    }
+  }
+
+  /**
+   * Run a worker. The arguments are the directory shared with the
+   * coordinator, the shard number and, when the coordinator starts the
+   * worker, <code>-stdin</code>: the worker's standard input is then a
+   * pipe from the coordinator and the worker exits when it is closed,
+   * in particular if the coordinator dies.
+   */
+  public static void main(String[] args) {
+    if (args.length < 2 || (args.length > 2 && !args[2].equals(WATCH_STDIN))) {
+      System.err.println("usage: java org.uacalc.alg.ShardedCloser directory shard [" 
+                         + WATCH_STDIN + "]");
+      System.exit(2);
+    }
+    final File dir = new File(args[0]).getAbsoluteFile();
+    final int shard = Integer.parseInt(args[1]);
+    try {
+      final Worker worker = new Worker(dir, shard);
+      if (args.length > 2) worker.watch(System.in);
+      worker.run();
+    }
+    catch (Throwable e) {
+      e.printStackTrace();
+      final StringWriter sw = new StringWriter();
+      e.printStackTrace(new PrintWriter(sw));
+      try {
+        publish(new File(dir, shard + ".error"), sw.toString());
+      }
+      catch (IOException ex) {
+        ex.printStackTrace();
+      }
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+}
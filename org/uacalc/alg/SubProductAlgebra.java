@@ -40,6 +40,13 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
   protected Term[] terms; // term[i] is a term for the ith element
   
   protected Map<IntArray,Term> termMap;
+  
+  // the terms in compact form when the closure was in a power; terms
+  // and termMap are filled from it when asked for.
+  protected TermProvenance termProvenance;
+  private boolean termMapFilled = false;
+  // close the generators in parallel; see Closer.setParallel.
+  private boolean parallel = false;
 
   protected List<Variable> variables;
   
@@ -83,9 +90,25 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
   public SubProductAlgebra(String name, BigProductAlgebra prod, 
                            List<IntArray> gens, boolean findTerms, 
                            boolean includeConstants, ProgressReport report) {
+    this(name, prod, gens, findTerms, includeConstants, false, report);
+  }
+
+  /**
+   * Construct the subalgebra of <code>prod</code> generated by 
+   * <code>gens</code>. If <code>parallel</code> is true the closure
+   * is done on the shared pool; see <code>Closer.setParallel</code>.
+   *
+   * @throws java.util.concurrent.CancellationException  if the
+   *         closure is cancelled by interrupting the thread
+   */
+  public SubProductAlgebra(String name, BigProductAlgebra prod, 
+                           List<IntArray> gens, boolean findTerms, 
+                           boolean includeConstants, boolean parallel, 
+                           ProgressReport report) {
     // TODO: use includeConstants
     super(name);
     productAlgebra = prod;
+    this.parallel = parallel;
     int rootSize = prod.rootFactors().get(0).cardinality();
     
     if (includeConstants && prod.isPower()) {
@@ -113,13 +136,17 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
     
     if (findTerms) {
       termMap = setupGensToVarsMap(gens);
-      univ = productAlgebra.sgClose(gens, termMap, null, report);
-      terms = new Term[univ.size()];
-      for (int i = 0; i < univ.size(); i++) {
-        terms[i] = termMap.get(univ.get(i));
-      }
+      univ = sgCloseWithTerms(report);
+    }
+    else if (parallel) {
+      final Closer closer = new Closer(productAlgebra, new ArrayList<IntArray>(gens));
+      closer.setParallel(true);
+      univ = closer.sgClose();
     }
     else univ = productAlgebra.sgClose(gens);
+    if (univ == null) {
+      throw new java.util.concurrent.CancellationException("the closure was cancelled");
+    }
     size = univ.size();
     univHashMap = new HashMap<IntArray,Integer>(size);
     int k = 0;
@@ -326,7 +353,31 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
     return varsMap;
   }
 
+  /**
+   * Close the generators, keeping track of the terms. For a power
+   * the terms are kept in <code>termProvenance</code> and only made
+   * when they are asked for.
+   */
+  protected List<IntArray> sgCloseWithTerms(ProgressReport report) {
+    Closer closer = new Closer(productAlgebra, new ArrayList<IntArray>(gens), termMap);
+    closer.setProgressReport(report);
+    closer.setLazyTerms(true);
+    closer.setParallel(parallel);
+    final List<IntArray> lst = closer.sgClose();
+    termProvenance = closer.getTermProvenance();
+    terms = null;
+    termMapFilled = termProvenance == null;
+    if (termProvenance == null && lst != null) {
+      terms = new Term[lst.size()];
+      for (int i = 0; i < lst.size(); i++) {
+        terms[i] = termMap.get(lst.get(i));
+      }
+    }
+    return lst;
+  }
+
   public Term[] getTerms() {
+    if (terms == null && termProvenance != null) terms = termProvenance.getTerms();
     return terms;
   }
   
@@ -338,6 +389,7 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
    */
   public List<Variable> getVariables() {
     if (variables != null) return variables;
+    final Term[] terms = getTerms();
     if (terms == null) return null;
     if (gens == null) return null;
     List<Variable> ans = new ArrayList<Variable>();
@@ -352,11 +404,19 @@ public class SubProductAlgebra extends GeneralAlgebra implements SmallAlgebra {
    * Get the term associated with an element.
    */
   public Term getTerm(IntArray elt) {
+   if (terms == null && termProvenance != null) {
+     // just make this term
+     return termProvenance.getTerm(getUniverseOrder().get(elt).intValue());
+   }
    if (getTerms() == null) return null;
    return getTerms()[getUniverseOrder().get(elt).intValue()];
   }
 
   public Map<IntArray,Term> getTermMap() {
+    if (!termMapFilled && termProvenance != null && termMap != null) {
+      termProvenance.fillMap(termMap, univ, 0);
+      termMapFilled = true;
+    }
     return termMap;
   }
 
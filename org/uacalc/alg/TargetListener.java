@@ -0,0 +1,28 @@
+/* TargetListener.java */
+
+package org.uacalc.alg;
+
+import org.uacalc.util.IntArray;
+
+/**
+ * Told by <code>Closer</code> about each of the elements to find 
+ * (see <code>Closer.setElementsToFind</code>) as soon as it is found,
+ * so work on it can start before the closure is done. The elements to 
+ * find which are generators are passed when the closure starts.
+ *
+ * @see Closer#setTargetListener(TargetListener)
+ */
+public interface TargetListener {
+
+  /**
+   * Called once for each element to find, when it is found. The term,
+   * if the closer keeps terms, is <code>closer.getTerm(index)</code>.
+   *
+   * @param elem    the element
+   * @param target  its index in <code>closer.getElementsToFind()</code>
+   * @param index   its index in the closure
+   * @param closer  the closer doing the closure
+   */
+  void targetFound(IntArray elem, int target, int index, Closer closer);
+
+}
@@ -0,0 +1,206 @@
+/* TermProvenance.java */
+
+package org.uacalc.alg;
+
+import java.util.*;
+
+import org.uacalc.alg.op.OperationSymbol;
+import org.uacalc.terms.*;
+import org.uacalc.util.IntArray;
+
+/**
+ * A compact record of the terms of the elements of a closure, indexed
+ * by the position of the element in the closure. For each element
+ * generated by an operation only the index of the operation symbol
+ * and the indices of its arguments are kept, in <code>int</code>
+ * arrays; the other elements (the generators and constants) are
+ * leaves holding their terms.
+ * <p>
+ * The <code>Term</code>'s are made only when asked for by
+ * <code>getTerm</code>, and are then cached so subterms are shared
+ * as in the term map <code>Closer</code> used to build.
+ */
+public class TermProvenance {
+
+  private static final int LEAF = -1;
+
+  private final List<OperationSymbol> symbols;
+  private final Map<OperationSymbol,Integer> symbolIndices;
+
+  private int size;
+  private int[] opIndices = new int[16];  // LEAF for a leaf
+  private int[] argStarts = new int[17];  // the args of k are in argStarts[k], ..., argStarts[k+1] - 1
+  private int[] args = new int[32];
+  private final Map<Integer,Term> leaves = new HashMap<Integer,Term>();
+
+  private Term[] cache;  // the terms made so far, or null
+
+  /**
+   * Construct an empty store. The operation indices used in
+   * <code>add</code> are indices into <code>symbols</code>.
+   */
+  public TermProvenance(List<OperationSymbol> symbols) {
+    this.symbols = new ArrayList<OperationSymbol>(symbols);
+    this.symbolIndices = new HashMap<OperationSymbol,Integer>();
+    for (int i = 0; i < symbols.size(); i++) {
+      symbolIndices.put(symbols.get(i), i);
+    }
+  }
+
+  public int size() { return size; }
+
+  public List<OperationSymbol> getSymbols() { return symbols; }
+
+  /**
+   * The index of <code>sym</code>, adding it if necessary.
+   */
+  public int symbolIndex(OperationSymbol sym) {
+    Integer index = symbolIndices.get(sym);
+    if (index == null) {
+      index = symbols.size();
+      symbols.add(sym);
+      symbolIndices.put(sym, index);
+    }
+    return index;
+  }
+
+  /**
+   * Record the next element, whose term is <code>term</code>.
+   *
+   * @return the index of the element
+   */
+  public int addLeaf(Term term) {
+    ensureCapacity(size + 1, 0);
+    opIndices[size] = LEAF;
+    argStarts[size + 1] = argStarts[size];
+    if (term != null) leaves.put(size, term);
+    return size++;
+  }
+
+  /**
+   * Record the next element as the value of the
+   * <code>opIndex</code>th operation at the elements with indices
+   * <code>argIndeces</code>, all of which must be less than the
+   * index of the new element.
+   *
+   * @return the index of the element
+   */
+  public int add(int opIndex, int[] argIndeces) {
+    final int arity = argIndeces.length;
+    ensureCapacity(size + 1, arity);
+    final int start = argStarts[size];
+    System.arraycopy(argIndeces, 0, args, start, arity);
+    opIndices[size] = opIndex;
+    argStarts[size + 1] = start + arity;
+    return size++;
+  }
+
+  private void ensureCapacity(int n, int arity) {
+    if (n > opIndices.length) {
+      final int cap = Math.max(n, opIndices.length + (opIndices.length >> 1));
+      opIndices = Arrays.copyOf(opIndices, cap);
+      argStarts = Arrays.copyOf(argStarts, cap + 1);
+    }
+    final int needed = argStarts[size] + arity;
+    if (needed > args.length) {
+      args = Arrays.copyOf(args, Math.max(needed, args.length + (args.length >> 1)));
+    }
+  }
+
+  public boolean isLeaf(int index) {
+    return opIndices[index] == LEAF;
+  }
+
+  /**
+   * The index into <code>getSymbols()</code> of the leading operation
+   * symbol of the <code>index</code>th element, or -1 for a leaf.
+   */
+  public int opIndex(int index) {
+    return opIndices[index];
+  }
+
+  /**
+   * The indices of the arguments of the <code>index</code>th element;
+   * empty for a leaf.
+   */
+  public int[] argIndeces(int index) {
+    return Arrays.copyOfRange(args, argStarts[index], argStarts[index + 1]);
+  }
+
+  /**
+   * The term of the <code>index</code>th element, made if necessary.
+   * It can be null for a leaf recorded without a term.
+   */
+  public Term getTerm(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+    if (cache == null) cache = new Term[size];
+    else if (cache.length < size) {
+      cache = Arrays.copyOf(cache, Math.max(size, cache.length + (cache.length >> 1)));
+    }
+    return term(index);
+  }
+
+  // the depth of the recursion is at most the number of passes.
+  private Term term(int index) {
+    Term ans = cache[index];
+    if (ans != null) return ans;
+    final int op = opIndices[index];
+    if (op == LEAF) ans = leaves.get(index);
+    else {
+      final int start = argStarts[index];
+      final int end = argStarts[index + 1];
+      final List<Term> children = new ArrayList<Term>(end - start);
+      for (int i = start; i < end; i++) {
+        children.add(term(args[i]));
+      }
+      ans = new NonVariableTerm(symbols.get(op), children);
+    }
+    cache[index] = ans;
+    return ans;
+  }
+
+  /**
+   * The terms of all the elements.
+   */
+  public Term[] getTerms() {
+    final Term[] ans = new Term[size];
+    for (int i = 0; i < size; i++) {
+      ans[i] = getTerm(i);
+    }
+    return ans;
+  }
+
+  /**
+   * Put the terms of the elements with indices at least
+   * <code>from</code> into <code>map</code>, keyed by the elements
+   * of <code>elems</code>, whose indices agree with these.
+   * Elements already in <code>map</code> are left alone.
+   */
+  public void fillMap(Map<IntArray,Term> map, List<IntArray> elems, int from) {
+    final int n = Math.min(size, elems.size());
+    for (int i = from; i < n; i++) {
+      final IntArray elem = elems.get(i);
+      if (map.containsKey(elem)) continue;
+      final Term term = getTerm(i);
+      if (term != null) map.put(elem, term);
+    }
+  }
+
+  /**
+   * Drop the cached terms, leaving just the compact form.
+   */
+  public void clearCache() {
+    cache = null;
+  }
+
+  /**
+   * The approximate number of bytes used, not counting the leaves
+   * and the cached terms.
+   */
+  public long memoryUsage() {
+    return 4L * (opIndices.length + argStarts.length + args.length);
+  }
+
+}
@@ -49,6 +49,11 @@ public class BasicPartition extends IntArray implements Partition, Comparable {
   
   private int[] representatives;
 
+  // the relation as a bit matrix, for at most SmallPartitionMasks.MAX_SIZE
+  // elements, made when first needed. Volatile since the partitions of
+  // a congruence lattice are shared by the threads joining them.
+  private volatile long[] relationMask;
+
   public BasicPartition(int[] part) {
     this.array = part;
     this.size = part.length;
@@ -340,6 +345,7 @@ public class BasicPartition extends IntArray implements Partition, Comparable {
    * Note r and s must be roots and distinct.
    */
   public void joinBlocks(int r, int s) {
+    relationMask = null;
     joinBlocks(r, s, array);
   }
 
@@ -360,9 +366,37 @@ public class BasicPartition extends IntArray implements Partition, Comparable {
   }
 
   public Partition join(Partition part2) {
+    if (usesMasks(part2)) {
+      return fromMask(SmallPartitionMasks.join(relationMask(), 
+                            ((BasicPartition)part2).relationMask(), size));
+    }
     return join(this.array, part2.toArray());
   }
 
+  /**
+   * True if the join, meet and leq with <code>part2</code> can be done
+   * with the relations as bit matrices.
+   */
+  private boolean usesMasks(Partition part2) {
+    return size <= SmallPartitionMasks.MAX_SIZE && part2 instanceof BasicPartition
+             && part2.universeSize() == size;
+  }
+
+  private long[] relationMask() {
+    long[] mask = relationMask;
+    if (mask == null) {
+      mask = SmallPartitionMasks.mask(array);
+      relationMask = mask;
+    }
+    return mask;
+  }
+
+  private BasicPartition fromMask(long[] mask) {
+    final BasicPartition ans = new BasicPartition(SmallPartitionMasks.toArray(mask, size));
+    ans.relationMask = mask;
+    return ans;
+  }
+
   static BasicPartition join(int[] u, int[] v) {
     int n = u.length;
     int[] ans = new int[n];
@@ -454,6 +488,10 @@ public class BasicPartition extends IntArray implements Partition, Comparable {
   }
 
   public Partition meet(Partition part2) {
+    if (usesMasks(part2)) {
+      return fromMask(SmallPartitionMasks.meet(relationMask(), 
+                                               ((BasicPartition)part2).relationMask()));
+    }
     return meet(this.array, part2.toArray());
   }
 
@@ -481,6 +519,9 @@ public class BasicPartition extends IntArray implements Partition, Comparable {
   }
 
   public boolean leq(Partition part2) {
+    if (usesMasks(part2)) {
+      return SmallPartitionMasks.leq(relationMask(), ((BasicPartition)part2).relationMask());
+    }
     return leq(this.array, part2.toArray());
   }
 
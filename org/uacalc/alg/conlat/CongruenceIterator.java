@@ -0,0 +1,125 @@
+/* CongruenceIterator.java */
+
+package org.uacalc.alg.conlat;
+
+import java.util.*;
+
+/**
+ * An iterator over the congruences of an algebra which makes them one
+ * at a time from the join irreducible congruences, using Ganter's
+ * next closure algorithm, rather than making the whole universe first.
+ * <p>
+ * A congruence is determined by the set of join irreducibles below
+ * it, and these sets are the closed sets of the closure operator taking
+ * a set of join irreducibles to those below its join. The congruences
+ * are visited in the lectic order of these sets (with respect to the
+ * order of the join irreducibles given), starting with zero, each
+ * exactly once. Besides the join irreducibles, the working memory is
+ * <code>|JI| + 3</code> arrays of length <code>|A|</code>, mostly the
+ * joins of the initial segments of the current set. Partitions are kept as
+ * their arrays of roots, as in <code>PartitionJoinClosure</code>, and
+ * a <code>Partition</code> is only made for the one returned by
+ * <code>next</code>.
+ *
+ * @see CongruenceLattice#setLazyIterator(boolean)
+ */
+public class CongruenceIterator implements Iterator<Partition> {
+
+  private final int algSize;
+  private final int numJIs;
+  private final int[][] jis;       // the roots of the join irreducibles
+  private final boolean[] inSet;   // the current closed set
+  // prefixJoins[i] is the roots of the join of the join irreducibles
+  // in the current set with index less than i.
+  private final int[][] prefixJoins;
+  private final int[] parent;
+  private final int[] join;
+  private boolean ready = true;    // the current set has not been returned
+  private boolean done = false;
+
+  /**
+   * @param joinIrreducibles  the join irreducible congruences
+   * @param algSize           the size of the algebra
+   */
+  public CongruenceIterator(List<Partition> joinIrreducibles, int algSize) {
+    this.algSize = algSize;
+    this.numJIs = joinIrreducibles.size();
+    this.jis = new int[numJIs][];
+    for (int i = 0; i < numJIs; i++) {
+      jis[i] = PartitionJoinClosure.roots(joinIrreducibles.get(i), new int[algSize]);
+    }
+    this.inSet = new boolean[numJIs];
+    // the current set is empty, and its join is zero.
+    this.prefixJoins = new int[numJIs + 1][algSize];
+    for (int i = 0; i <= numJIs; i++) {
+      for (int k = 0; k < algSize; k++) {
+        prefixJoins[i][k] = k;
+      }
+    }
+    this.parent = new int[algSize];
+    this.join = new int[algSize];
+  }
+
+  public boolean hasNext() {
+    if (!ready && !done) {
+      if (advance()) ready = true;
+      else done = true;
+    }
+    return ready;
+  }
+
+  public Partition next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    ready = false;
+    return PartitionJoinClosure.toPartition(prefixJoins[numJIs]);
+  }
+
+  /**
+   * Move to the next closed set in the lectic order; its join is put
+   * in <code>prefixJoins[numJIs]</code>.
+   *
+   * @return false if there are no more
+   */
+  private boolean advance() {
+    for (int i = numJIs - 1; i >= 0; i--) {
+      if (inSet[i]) {
+        inSet[i] = false;
+        continue;
+      }
+      PartitionJoinClosure.joinRoots(prefixJoins[i], jis[i], parent, join);
+      boolean canonical = true;
+      for (int j = 0; j < i; j++) {
+        if (!inSet[j] && leq(jis[j], join)) {
+          canonical = false;
+          break;
+        }
+      }
+      if (!canonical) continue;
+      inSet[i] = true;
+      for (int j = i + 1; j < numJIs; j++) {
+        inSet[j] = leq(jis[j], join);
+      }
+      for (int k = i + 1; k <= numJIs; k++) {
+        System.arraycopy(join, 0, prefixJoins[k], 0, algSize);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * True if the partition with roots <code>a</code> is below the one
+   * with roots <code>b</code>.
+   */
+  private static boolean leq(final int[] a, final int[] b) {
+    for (int k = 0; k < a.length; k++) {
+      if (b[a[k]] != b[k]) return false;
+    }
+    return true;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+}
@@ -2,8 +2,10 @@ package org.uacalc.alg.conlat;
 
 import org.uacalc.alg.*;
 import org.uacalc.alg.sublat.*;
+import org.uacalc.alg.parallel.Pool;
 import org.uacalc.alg.op.Operation;
 import org.uacalc.alg.op.OperationSymbol;
+import org.uacalc.alg.op.OperationWithDefaultValue;
 import org.uacalc.alg.op.SimilarityType;
 import org.uacalc.ui.tm.ProgressReport;
 import org.uacalc.util.*;
@@ -12,6 +14,7 @@ import org.uacalc.element.*;
 import org.uacalc.io.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 
@@ -97,7 +100,14 @@ public class CongruenceLattice implements Lattice {
 
 
   private Set<Partition> universe = null;
+  /**
+   * The universe in packed form, as found by the parallel version of
+   * <code>makeUniverse</code>; <code>universe</code> is made from it
+   * when it is asked for.
+   */
+  private PartitionJoinClosure packedUniverse = null;
   private Map<Partition,List<Partition>> upperCoversMap = null;
+  private CongruenceOrderIndex orderIndex = null;
   private List<Partition> principalCongruences = null;
   private List<Partition> joinIrreducibles = null;
   private List<Partition> atoms = null;
@@ -120,6 +130,20 @@ public class CongruenceLattice implements Lattice {
   private int sizeComputed = 0;
 
   private boolean principalsMade = false;
+  
+  private boolean useTranslationCache = false;
+  
+  private boolean parallel = false;
+  
+  private boolean lazyIterator = false;
+  
+  static final int nCPUs = Runtime.getRuntime().availableProcessors();
+  
+  /**
+   * The fewest elements for which <code>makePrincipals</code> and
+   * <code>makeJoinIrreducibles</code> are worth doing in parallel.
+   */
+  private static final int MIN_PARALLEL_SIZE = 16;
 
   private TypeFinder typeFinder = null;
 
@@ -136,6 +160,55 @@ public class CongruenceLattice implements Lattice {
   public void setMonitor(ProgressReport m) { monitor = m; }
   public ProgressReport getMonitor() { return monitor; }
   
+  public boolean getUseTranslationCache() { return useTranslationCache; }
+  
+  /**
+   * If true, the distinct basic translations 
+   * <code>x -&gt; f(c<sub>1</sub>, ..., x, ..., c<sub>k</sub>)</code>
+   * are found once, as <code>int</code> arrays, and congruences are 
+   * generated by closing under them rather than under the operations. 
+   * This pays off when there are many congruences to find, as in
+   * <code>makePrincipals</code>, and the operations have many equal 
+   * translations, as in lattices and semilattices. If there are too 
+   * many distinct translations to keep, the operations are used as
+   * usual.
+   * 
+   * @param v  true to use the cache; the default is false
+   */
+  public void setUseTranslationCache(boolean v) { useTranslationCache = v; }
+  
+  public boolean isParallel() { return parallel; }
+  
+  /**
+   * If true, <code>makePrincipals</code> and 
+   * <code>makeJoinIrreducibles</code> split their work among the workers
+   * of the shared pool, <code>org.uacalc.alg.parallel.Pool</code>. The
+   * results are merged in the serial order, so the lists, and the pairs
+   * representing the principal congruences, are the same as the serial
+   * versions give. Small algebras are done serially.
+   * 
+   * @param v  true to work in parallel; the default is false
+   */
+  public void setParallel(boolean v) { parallel = v; }
+  
+  public boolean isLazyIterator() { return lazyIterator; }
+  
+  /**
+   * If true and the universe has not been found, <code>iterator()</code>
+   * gives a <code>CongruenceIterator</code>, which makes the congruences
+   * one at a time from the join irreducibles, in the lectic order of
+   * the sets of join irreducibles below them, so a single pass over
+   * them does not need the universe in memory. Otherwise it iterates
+   * over <code>universe()</code>, making it if necessary.
+   * 
+   * @param v  true for the lazy iterator; the default is false
+   */
+  public void setLazyIterator(boolean v) { lazyIterator = v; }
+  
+  private boolean worthDoingInParallel() {
+    return parallel && nCPUs > 1 && algSize >= MIN_PARALLEL_SIZE;
+  }
+  
   public final boolean monitoring() {
     return monitor != null;
   }
@@ -161,15 +234,15 @@ public class CongruenceLattice implements Lattice {
   }
   
   public boolean isSmallerThan(int size) {
-    if (universe != null) return cardinality() < size;
+    if (universeFound()) return cardinality() < size;
     if (joinIrreducibles().size() >= size) return false;
     makeUniverse(size);
-    if (universe == null) return false;
+    if (!universeFound()) return false;
     return true;
   }
   
   public boolean isDrawable() {
-    if (universe != null) return cardinality() <= MAX_DRAWABLE_SIZE;
+    if (universeFound()) return cardinality() <= MAX_DRAWABLE_SIZE;
     if (sizeComputed > 0) return false;
     return isSmallerThan(MAX_DRAWABLE_SIZE + 1);
   }
@@ -240,6 +313,8 @@ public class CongruenceLattice implements Lattice {
   }
   
   public int cardinality() {
+    if (!universeFound()) makeUniverse();
+    if (universe == null && packedUniverse != null) return packedUniverse.size() + 1;
     return universe().size();
   }
   
@@ -255,12 +330,23 @@ public class CongruenceLattice implements Lattice {
   
 
   public Set<Partition> universe(ProgressReport report) {
-    if (universe == null) makeUniverse(report);
+    if (!universeFound()) makeUniverse(report);
+    if (universe == null && packedUniverse != null) {
+      universe = new LinkedHashSet<Partition>(packedUniverse.toList());
+    }
     return universe;
   }
   
+  /**
+   * The congruences sorted by rank. If the universe was found in packed
+   * form, the <code>Partition</code>'s are made from it without making
+   * the set <code>universe()</code>.
+   */
   public List<Partition> getUniverseList() {
-    List<Partition> ans = new ArrayList<Partition>(universe());
+    if (!universeFound()) makeUniverse();
+    List<Partition> ans;
+    if (universe == null && packedUniverse != null) ans = packedUniverse.toList();
+    else ans = new ArrayList<Partition>(universe());
     sortByRank(ans);
     return ans;
   }
@@ -278,7 +364,20 @@ public class CongruenceLattice implements Lattice {
    */
   public void updateSimilarityType() { }
 
-  public Iterator<Partition> iterator() { return universe().iterator(); }
+  public Iterator<Partition> iterator() { 
+    if (lazyIterator && !universeFound()) return congruenceIterator();
+    return universe().iterator(); 
+  }
+  
+  /**
+   * An iterator over all the congruences which makes them one at a 
+   * time from the join irreducibles, without making the universe.
+   * 
+   * @see CongruenceIterator
+   */
+  public Iterator<Partition> congruenceIterator() {
+    return new CongruenceIterator(joinIrreducibles(), algSize);
+  }
 
   public String getName() {
     return "Con(" + getAlgebra().getName() + ")";
@@ -653,6 +752,10 @@ public class CongruenceLattice implements Lattice {
     //congruencesHash = new HashSet();
     principalCongruencesLookup = new HashMap<IntArray,Partition>();
     principalCongruencesRep = new HashMap<Partition,IntArray>();
+    if (worthDoingInParallel()) {
+      makePrincipalsInParallel(pcIdMap, report);
+      return;
+    }
     for (int i = 0; i < algSize - 1; i++) {
       for (int j = i + 1; j < algSize; j++) {
         if (Thread.currentThread().isInterrupted()) {
@@ -677,10 +780,141 @@ public class CongruenceLattice implements Lattice {
                + getAlgebra().getName() + ": size = " + principalCongruences.size());
   }
 
-  public boolean universeFound() { return universe != null; }
+  /**
+   * How often, in milliseconds, <code>makePrincipalsInParallel</code> 
+   * reports the number of congruences found.
+   */
+  private static final long REPORT_INTERVAL = 200;
+
+  /**
+   * The parallel version of <code>makePrincipals</code>. The pairs 
+   * <code>(i, j)</code>, <code>i &lt; j</code>, in the serial order, are 
+   * split into contiguous chunks, each done by a task in the shared pool.
+   * The tasks keep equal congruences identical with a concurrent map. 
+   * The congruences are then merged serially in the order of the pairs,
+   * as <code>makePrincipals</code> does. The report is only updated
+   * from the calling thread, which looks at the number found every
+   * <code>REPORT_INTERVAL</code> milliseconds while the tasks run.
+   */
+  private void makePrincipalsInParallel(HashMap<Partition,Partition> pcIdMap, 
+                                        ProgressReport report) {
+    final int numPairs = algSize * (algSize - 1) / 2;
+    final Partition[] cgs = new Partition[numPairs];
+    final ConcurrentHashMap<Partition,Partition> interned = 
+                                  new ConcurrentHashMap<Partition,Partition>();
+    final Thread callingThread = Thread.currentThread();
+    // split the first element of the pairs into ranges with about 
+    // the same number of pairs.
+    final int nChunks = Math.min(8 * nCPUs, algSize - 1);
+    final List<PrincipalsTask> tasks = new ArrayList<PrincipalsTask>(nChunks);
+    int first = 0;
+    int offset = 0;  // the index of the pair (first, first + 1)
+    int c = 1;
+    int done = 0;
+    for (int i = 0; i < algSize - 1; i++) {
+      done += algSize - 1 - i;
+      if (done >= (long)numPairs * c / nChunks || i == algSize - 2) {
+        tasks.add(new PrincipalsTask(first, i + 1, offset, cgs, interned, callingThread));
+        offset = done;
+        first = i + 1;
+        c++;
+      }
+    }
+    final ForkJoinTask<Void> root = Pool.getPool().submit(new RecursiveAction() {
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    while (!root.isDone()) {
+      try {
+        root.get(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e) {
+        if (report != null) report.setSize(interned.size());
+      }
+      catch (InterruptedException e) {
+        // the tasks see it and stop
+        callingThread.interrupt();
+        root.quietlyJoin();
+      }
+      catch (ExecutionException e) {
+        break;  // join throws it below
+      }
+    }
+    root.join();
+    if (callingThread.isInterrupted()) {
+      if (report != null) report.addEndingLine("cancelled ...");
+      return;
+    }
+    int k = 0;
+    for (int i = 0; i < algSize - 1; i++) {
+      for (int j = i + 1; j < algSize; j++) {
+        Partition partCong = cgs[k++];
+        if (pcIdMap.get(partCong) == null) {
+          pcIdMap.put(partCong, partCong);
+          principalCongruences.add(partCong);
+          principalCongruencesRep.put(partCong, new IntArray(new int[] {i, j}));
+        }
+        else {
+          partCong = pcIdMap.get(partCong);
+        }
+        principalCongruencesLookup.put(new IntArray(new int[] {i, j}), partCong);
+      }
+    }
+    if (report != null) report.setSize(principalCongruences.size());
+    sortByRank(principalCongruences);
+    if (report != null) report.addEndingLine("principal congruences of " 
+               + getAlgebra().getName() + ": size = " + principalCongruences.size());
+  }
+  
+  /**
+   * Finds <code>Cg(i, j)</code> for the pairs with <code>i</code> in
+   * <code>[firstMin, firstMax)</code>, putting them in <code>cgs</code>
+   * at the indices of the pairs in the serial order.
+   */
+  @SuppressWarnings("serial")
+  final class PrincipalsTask extends RecursiveAction {
+    
+    final int firstMin;
+    final int firstMax;
+    final int offset;
+    final Partition[] cgs;
+    final ConcurrentHashMap<Partition,Partition> interned;
+    final Thread callingThread;
+    
+    PrincipalsTask(int firstMin, int firstMax, int offset, Partition[] cgs,
+                   ConcurrentHashMap<Partition,Partition> interned,
+                   Thread callingThread) {
+      this.firstMin = firstMin;
+      this.firstMax = firstMax;
+      this.offset = offset;
+      this.cgs = cgs;
+      this.interned = interned;
+      this.callingThread = callingThread;
+    }
+    
+    protected void compute() {
+      int k = offset;
+      for (int i = firstMin; i < firstMax; i++) {
+        for (int j = i + 1; j < algSize; j++) {
+          final Partition partCong = makeCg(i, j, null, callingThread);
+          if (partCong == null) return;  // cancelled
+          final Partition prev = interned.putIfAbsent(partCong, partCong);
+          cgs[k++] = prev == null ? partCong : prev;
+        }
+      }
+    }
+  }
+
+  public boolean universeFound() { return universe != null || packedUniverse != null; }
 
-  private boolean stopMakeUniverse = false;
-  public void stopMakeUniverse() { stopMakeUniverse = true; }
+  private volatile boolean stopMakeUniverse = false;
+  private volatile PartitionJoinClosure universeInProgress;
+  public void stopMakeUniverse() { 
+    stopMakeUniverse = true;
+    final PartitionJoinClosure closure = universeInProgress;
+    if (closure != null) closure.stop();
+  }
 
   private int makeUniverseK;
   public int getMakeUniverseK() { return makeUniverseK; }
@@ -739,6 +973,10 @@ public class CongruenceLattice implements Lattice {
     
     if (report != null) report.addStartLine("finding the universe of Con(" 
                                                      + getAlgebra().getName() + ")");
+    if (worthDoingInParallel()) {
+      makeUniverseInParallel(maxSize, report);
+      return;
+    }
     List<Partition> univ = new ArrayList<Partition>(joinIrreducibles(report));
     HashSet<Partition> hash = new HashSet<Partition>(joinIrreducibles());
     sizeComputed = univ.size();
@@ -802,6 +1040,73 @@ public class CongruenceLattice implements Lattice {
     if (report != null) report.addEndingLine("|Con(" + getAlgebra().getName() + ")| = " + univ.size());
     //report.addLine("univ: " + univ);
   }
+  /**
+   * The parallel version of <code>makeUniverse</code>. The congruences 
+   * are kept packed in a <code>PartitionJoinClosure</code>; in each pass
+   * the joins of a join irreducible with the congruences found before 
+   * the pass are done by tasks in the shared pool and the new ones are
+   * added in the serial order, so the universe, and 
+   * <code>getUniverseList()</code>, are the same as the serial version
+   * gives. The <code>Partition</code>'s are only made when they are
+   * asked for.
+   */
+  private void makeUniverseInParallel(int maxSize, ProgressReport report) {
+    final boolean stopIfBig = maxSize > 0;
+    final List<Partition> jis = joinIrreducibles(report);
+    final PartitionJoinClosure closure = new PartitionJoinClosure(algSize, jis);
+    final Thread callingThread = Thread.currentThread();
+    final int size = jis.size();
+    final int[] roots = new int[algSize];
+    sizeComputed = closure.size();
+    makeUniverseK = 0;
+    stopMakeUniverse = false;
+    universeInProgress = closure;
+    try {
+      for (int k = 1; k <= size; k++) {
+        if (callingThread.isInterrupted()) {
+          if (report != null) {
+            report.addEndingLine("Cancelled (" + closure.size() + " elements so far)");
+          }
+          return;
+        }
+        if (report != null) {
+          report.addLine("pass " + k + " of " + size + ", size: " + closure.size());
+          report.setPass(k);
+          report.setSize(closure.size());
+        }
+        makeUniverseK++;
+        final int n = closure.size();
+        if (n <= makeUniverseK) continue;
+        final List<PartitionJoinClosure.JoinTask> tasks = 
+            closure.makeTasks(k - 1, makeUniverseK, n, 
+                Math.min(8 * nCPUs, (n - makeUniverseK + 255) / 256), callingThread);
+        Pool.getPool().invoke(new RecursiveAction() {
+          protected void compute() {
+            invokeAll(tasks);
+          }
+        });
+        if (stopMakeUniverse) return;
+        if (callingThread.isInterrupted()) continue;
+        for (PartitionJoinClosure.JoinTask task : tasks) {
+          for (int t = 0; t < task.found.size(); t++) {
+            if (closure.add(task.found.get(t, roots))) {
+              sizeComputed++;
+              if (stopIfBig && closure.size() > maxSize) return;
+            }
+          }
+        }
+      }
+      if (stopMakeUniverse) return;
+    }
+    finally {
+      universeInProgress = null;
+    }
+    packedUniverse = closure;
+    if (report != null) report.setSize(closure.size() + 1);
+    if (report != null) report.addEndingLine("|Con(" + getAlgebra().getName() + ")| = " 
+                                                             + (closure.size() + 1));
+  }
+
 
   /**
    * Test if beta is join prime.
@@ -836,6 +1141,10 @@ public class CongruenceLattice implements Lattice {
     if (report != null) report.addStartLine("finding join irreducible congruences of " + getAlgebra().getName());
     joinIrreducibles = new ArrayList<Partition>();
     lowerCoverOfJIs = new HashMap<Partition,Partition>();
+    if (worthDoingInParallel()) {
+      makeJoinIrreduciblesInParallel(report);
+      return;
+    }
     for (Partition part : principals(report)) {
       Partition join = zero();
       for (Partition part2 : principals(report)) {
@@ -857,6 +1166,61 @@ public class CongruenceLattice implements Lattice {
     if (report != null) report.printEnd("join irreducible congruences of " 
         + getAlgebra().getName() + ": size = " + joinIrreducibles.size());
   }
+  /**
+   * The parallel version of <code>makeJoinIrreducibles</code>: the join 
+   * of the principal congruences strictly below each principal 
+   * congruence is found by tasks in the shared pool, each doing a 
+   * contiguous range of them, and the join irreducibles are then 
+   * collected in the order of the principal congruences.
+   */
+  private void makeJoinIrreduciblesInParallel(ProgressReport report) {
+    final List<Partition> prins = principals(report);
+    final Thread callingThread = Thread.currentThread();
+    final int n = prins.size();
+    final Partition[] lowerJoins = new Partition[n];
+    final int nChunks = Math.min(8 * nCPUs, n);
+    final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(nChunks);
+    for (int c = 0; c < nChunks; c++) {
+      final int min = (int)((long)n * c / nChunks);
+      final int max = (int)((long)n * (c + 1) / nChunks);
+      tasks.add(new RecursiveAction() {
+        protected void compute() {
+          for (int k = min; k < max; k++) {
+            if (callingThread.isInterrupted()) return;
+            final Partition part = prins.get(k);
+            Partition join = zero();
+            for (Partition part2 : prins) {
+              if (part2.leq(part) && (!part.equals(part2))) {
+                join = join.join(part2);
+              }
+              if (part.equals(join)) break;
+            }
+            lowerJoins[k] = join;
+          }
+        }
+      });
+    }
+    Pool.getPool().invoke(new RecursiveAction() {
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    if (callingThread.isInterrupted()) {
+      if (report != null) report.addEndingLine("cancelled ...");
+      return;
+    }
+    for (int k = 0; k < n; k++) {
+      final Partition part = prins.get(k);
+      if (!part.equals(lowerJoins[k])) {
+        joinIrreducibles.add(part);
+        lowerCoverOfJIs.put(part, lowerJoins[k]);
+      }
+    }
+    if (report != null) report.setSize(joinIrreducibles.size());
+    if (report != null) report.printEnd("join irreducible congruences of " 
+        + getAlgebra().getName() + ": size = " + joinIrreducibles.size());
+  }
+
   
   /**
    * Sort by rank (in the partition lattice). The rank in size() - numberOfBlocks().
@@ -907,36 +1271,32 @@ public class CongruenceLattice implements Lattice {
    * made.
    */
   private void makeUpperCovers() {
+    final CongruenceOrderIndex index = orderIndex();
     Map<Partition,List<Partition>> ucMap
           = new HashMap<Partition,List<Partition>>();
-    for (Iterator<Partition> it = universe().iterator(); it.hasNext(); ) {
-      Partition elem = it.next();
-      Set<Partition> hs = new HashSet<Partition>();
-      List<Partition> covs = new ArrayList<Partition>();
-      for (Iterator<Partition> it2 = joinIrreducibles().iterator(); it2.hasNext(); ) {
-        Partition ji = it2.next();
-        if (!ji.leq(elem)) {
-          Partition join = ji.join(elem);
-          if (!hs.contains(join)) {
-            hs.add(join);
-            boolean above = false;
-            for (ListIterator<Partition> it3 = covs.listIterator(); it3.hasNext(); ) {
-              Partition cov = it3.next();
-              if (cov.leq(join)) {
-                above = true;
-                break;
-              }
-              if (join.leq(cov)) it3.remove();
-            }
-            if (!above) covs.add(join);
-          }
-        }
+    for (int a = 0; a < index.size(); a++) {
+      final int[] ucs = index.upperCovers(a);
+      List<Partition> covs = new ArrayList<Partition>(ucs.length);
+      for (int b : ucs) {
+        covs.add(index.get(b));
       }
-      hs = null;
-      ucMap.put(elem, covs);
+      ucMap.put(index.get(a), covs);
     }
     upperCoversMap = ucMap;
   }
+  
+  /**
+   * The order index of this lattice, with the congruences in the order
+   * of <code>universe()</code>; the universe is made if necessary.
+   */
+  public CongruenceOrderIndex orderIndex() {
+    if (orderIndex == null) {
+      orderIndex = new CongruenceOrderIndex(new ArrayList<Partition>(universe()), 
+                                            joinIrreducibles());
+    }
+    return orderIndex;
+  }
+
 
   /**
    * The congruence generated by Object a and b.
@@ -988,63 +1348,276 @@ public class CongruenceLattice implements Lattice {
   private Partition makeCg(Partition initPart, ProgressReport report) {
     int[] ans = new int[algSize];
     System.arraycopy(initPart.toArray(), 0, ans, 0, algSize); // copy the array of initPart to ans 
-    SimpleList pairs = SimpleList.EMPTY_LIST;
+    // each pair pushed joins two blocks, so there are never more than algSize - 1
+    final int[] pairs = new int[2 * algSize];
+    int top = 0;
     int[][] blocks = initPart.getBlocks();
     final int numBlocks = blocks.length;
-    //if (report != null) report.setPass(numBlocks - 1);
     for (int i = 0; i < numBlocks; i++) {
-      //if (report != null) report.setPassSize(i);
       int[] blk = blocks[i];
       int r = blk[0];
       for (int j = 1; j < blk.length; j++) {
-        //if (report != null) report.setSize(j);
-        pairs = pairs.cons(new int[] {r, blk[j]});
+        pairs[top++] = r;
+        pairs[top++] = blk[j];
       }
     }
-    return makeCgAux(ans, pairs, report);
+    return makeCgAux(ans, pairs, top, report, Thread.currentThread());
   }
   
-  private Partition makeCgAux(int[] ans, SimpleList pairs, final ProgressReport report) {
-    while (!pairs.isEmpty()) {
-      if (report != null) report.setSize(pairs.size());
-      if (Thread.currentThread().isInterrupted()) {
-        if (report != null) report.addEndingLine("cancelled ...");
+  /**
+   * The largest table <code>makeCgAux</code> makes for an operation
+   * which does not have one.
+   */
+  private static final int CG_TABLE_LIMIT = 1 << 22;
+  
+  /**
+   * The tables of the operations, fetched or made once, for 
+   * <code>makeCgAux</code>; the entry for an operation whose table
+   * would be too big is null.
+   */
+  private int[][] cgTables;
+  private Operation[] cgOps;
+  
+  private synchronized int[][] cgTables() {
+    if (cgTables == null) {
+      final List<Operation> ops = alg.operations();
+      final int[][] tables = new int[ops.size()][];
+      cgOps = ops.toArray(new Operation[ops.size()]);
+      for (int i = 0; i < tables.length; i++) {
+        final Operation op = cgOps[i];
+        if (op instanceof OperationWithDefaultValue) {
+          tables[i] = ((OperationWithDefaultValue)op).getTotalTable();
+        }
+        else tables[i] = op.getTable();
+        if (tables[i] == null) tables[i] = makeCgTable(op);
+      }
+      cgTables = tables;
+    }
+    return cgTables;
+  }
+  
+  /**
+   * The most <code>int</code>s the translation cache may hold.
+   */
+  private static final int TRANSLATION_CACHE_LIMIT = 1 << 23;
+  
+  /**
+   * The distinct basic translations other than the identity and the 
+   * constants, the <code>t</code>th one in 
+   * <code>translations[t * algSize], ..., translations[t * algSize + algSize - 1]</code>,
+   * or null if they have not been found.
+   */
+  private int[] translations;
+  private boolean tooManyTranslations = false;
+  
+  /**
+   * The cache of basic translations, made if necessary, or null if 
+   * there are too many of them.
+   */
+  private synchronized int[] translations() {
+    if (translations != null || tooManyTranslations) return translations;
+    final int[][] tables = cgTables();
+    final int n = algSize;
+    final IntTupleSet set = new IntTupleSet();
+    final int[] trans = new int[n];
+    for (int i = 0; i < tables.length; i++) {
+      final int[] table = tables[i];
+      if (table == null) {
+        tooManyTranslations = true;
         return null;
       }
-      int x = ((int[])pairs.first())[0];
-      int y = ((int[])pairs.first())[1];
-      pairs = pairs.rest();
-      for (Operation f : alg.operations()) {
-        int arity = f.arity();
-        int[] arg = new int[arity];
-        int[] arg2 = arg;
-        for (int index = 0; index < arity; index++) {
-          arg = arg2;
-          for (int k = 0; k < arity; k++ ) {
-            arg[k] = 0;
+      int stride = 1;
+      for (int index = 0; index < cgOps[i].arity(); index++) {
+        final int block = stride * n;
+        final int hiMax = table.length / block;
+        for (int hi = 0; hi < hiMax; hi++) {
+          final int base = hi * block;
+          for (int b = base; b < base + stride; b++) {
+            boolean constant = true;
+            boolean identity = true;
+            for (int x = 0; x < n; x++) {
+              final int v = table[b + x * stride];
+              trans[x] = v;
+              if (v != x) identity = false;
+              if (v != trans[0]) constant = false;
+            }
+            if (constant || identity) continue;
+            if (set.addCopy(trans, 0, n) >= 0 
+                  && (long)set.size() * n > TRANSLATION_CACHE_LIMIT) {
+              tooManyTranslations = true;
+              return null;
+            }
           }
-          while (arg != null) {
-            arg[index] = x;
-            int r = BasicPartition.root(f.intValueAt(arg), ans);
-            arg[index] = y;
-            int s = BasicPartition.root(f.intValueAt(arg), ans);
-            if (r != s) {
-              BasicPartition.joinBlocks(r, s, ans);
-              pairs = pairs.cons(new int[] {r, s});
+        }
+        stride = block;
+      }
+    }
+    final int[] ans = new int[set.size() * n];
+    for (int t = 0; t < set.size(); t++) {
+      System.arraycopy(set.get(t), 0, ans, t * n, n);
+    }
+    translations = ans;
+    return translations;
+  }
+  
+  /**
+   * The number of distinct basic translations, not counting the identity
+   * and the constants, or -1 if there are too many to cache.
+   */
+  public int numberOfDistinctTranslations() {
+    final int[] trans = translations();
+    return trans == null ? -1 : trans.length / algSize;
+  }
+  
+  /**
+   * The table of <code>op</code>, in Horner order, evaluated with 
+   * <code>intValueAt</code>; or null if it would have more than 
+   * <code>CG_TABLE_LIMIT</code> entries. Finding all the principal 
+   * congruences evaluates every translation many times over, so this
+   * is cheap by comparison.
+   */
+  private int[] makeCgTable(Operation op) {
+    final int arity = op.arity();
+    long size = 1;
+    for (int i = 0; i < arity; i++) {
+      size = size * algSize;
+      if (size > CG_TABLE_LIMIT) return null;
+    }
+    final int[] table = new int[(int)size];
+    final int[] arg = new int[arity];
+    for (int k = 0; k < table.length; k++) {
+      table[k] = op.intValueAt(arg);
+      for (int i = 0; i < arity; i++) {
+        if (arg[i] < algSize - 1) {
+          arg[i]++;
+          break;
+        }
+        arg[i] = 0;
+      }
+    }
+    return table;
+  }
+  
+  /**
+   * Close <code>ans</code> under the unary polynomials, starting with the
+   * pairs in <code>pairs[0], ..., pairs[top - 1]</code>, which are used as
+   * a stack. The translations of a table operation in the 
+   * <code>index</code>th place are done with the stride 
+   * <code>algSize^index</code> of that place in the table: the other 
+   * arguments run through the offsets <code>hi * block + lo</code>, with
+   * <code>block = stride * algSize</code> and <code>lo &lt; stride</code>,
+   * in the order <code>incrementArg</code> gives, so a translation
+   * is one table lookup and nothing is allocated for it. With the 
+   * translation cache the cached translations are used instead.
+   */
+  private Partition makeCgAux(final int[] ans, final int[] pairs, int top, 
+                              final ProgressReport report, final Thread thread) {
+    final int[][] tables = cgTables();
+    final Operation[] ops = cgOps;
+    final int n = algSize;
+    final int[] trans = useTranslationCache ? translations() : null;
+    int[][] args = null;  // for the operations without tables
+    int count = 0;
+    while (top > 0) {
+      if ((count++ & 0xFF) == 0) {
+        if (report != null) report.setSize(top / 2);
+        if (thread.isInterrupted()) {
+          if (report != null) report.addEndingLine("cancelled ...");
+          return null;
+        }
+      }
+      final int y = pairs[--top];
+      final int x = pairs[--top];
+      if (trans != null) {
+        for (int t = 0; t < trans.length; t += n) {
+          final int r = BasicPartition.root(trans[t + x], ans);
+          final int s = BasicPartition.root(trans[t + y], ans);
+          if (r != s) {
+            BasicPartition.joinBlocks(r, s, ans);
+            pairs[top++] = r;
+            pairs[top++] = s;
+          }
+        }
+        continue;
+      }
+      for (int i = 0; i < tables.length; i++) {
+        final int[] table = tables[i];
+        final int arity = ops[i].arity();
+        if (table == null) {
+          if (args == null) args = new int[tables.length][];
+          if (args[i] == null) args[i] = new int[arity];
+          top = translateAll(ops[i], args[i], x, y, ans, pairs, top);
+          continue;
+        }
+        int stride = 1;
+        for (int index = 0; index < arity; index++) {
+          final int block = stride * n;
+          final int hiMax = table.length / block;
+          final int xs = x * stride;
+          final int ys = y * stride;
+          for (int hi = 0; hi < hiMax; hi++) {
+            final int base = hi * block;
+            final int loMax = base + stride;
+            for (int b = base; b < loMax; b++) {
+              final int r = BasicPartition.root(table[b + xs], ans);
+              final int s = BasicPartition.root(table[b + ys], ans);
+              if (r != s) {
+                BasicPartition.joinBlocks(r, s, ans);
+                pairs[top++] = r;
+                pairs[top++] = s;
+              }
             }
-            arg = incrementArg(arg, index);
           }
+          stride = block;
         }
       }
     }
     return new BasicPartition(ans);
   }
+  
+  /**
+   * The translations of <code>f</code>, which has no table, for 
+   * <code>makeCgAux</code>, evaluated with <code>intValueAt</code>.
+   * 
+   * @return the new top of the stack of pairs
+   */
+  private int translateAll(final Operation f, int[] arg, final int x, final int y,
+                           final int[] ans, final int[] pairs, int top) {
+    final int arity = arg.length;
+    final int[] arg2 = arg;
+    for (int index = 0; index < arity; index++) {
+      arg = arg2;
+      Arrays.fill(arg, 0);
+      while (arg != null) {
+        arg[index] = x;
+        int r = BasicPartition.root(f.intValueAt(arg), ans);
+        arg[index] = y;
+        int s = BasicPartition.root(f.intValueAt(arg), ans);
+        if (r != s) {
+          BasicPartition.joinBlocks(r, s, ans);
+          pairs[top++] = r;
+          pairs[top++] = s;
+        }
+        arg = incrementArg(arg, index);
+      }
+    }
+    return top;
+  }
 
   
   /**
    * This assumes a < b.
    */
   private Partition makeCg(int a, int b, final ProgressReport report) {
+    return makeCg(a, b, report, Thread.currentThread());
+  }
+  
+  /**
+   * This assumes a < b; it gives null if <code>thread</code> is 
+   * interrupted.
+   */
+  private Partition makeCg(int a, int b, final ProgressReport report, 
+                           final Thread thread) {
     //System.out.println("a and b: " + a + ", " + b);
     int[] part = new int[algSize];
     for (int i = 0; i < algSize; i++ ) {
@@ -1052,9 +1625,10 @@ public class CongruenceLattice implements Lattice {
     }
     part[a] = -2;
     part[b] = a;
-    SimpleList pairs = SimpleList.EMPTY_LIST;
-    pairs = pairs.cons(new int[] {a, b});
-    return makeCgAux(part, pairs, report);
+    final int[] pairs = new int[2 * algSize];
+    pairs[0] = a;
+    pairs[1] = b;
+    return makeCgAux(part, pairs, 2, report, thread);
   }
   
   
@@ -1077,7 +1651,171 @@ public class CongruenceLattice implements Lattice {
   public Partition Cg(Partition part, final ProgressReport report) {
     return makeCg(part, report);
   }
-  
+
+  /**
+   * The number of lookups of <code>principalCongruencesLookup</code>
+   * made by the last call to <code>Cg(List)</code> which hit, and
+   * which missed.
+   */
+  private int cgBatchHits;
+  private int cgBatchMisses;
+
+  /**
+   * The number of generating pairs whose principal congruence was found
+   * in the principal congruence cache by the last <code>Cg(List)</code>.
+   */
+  public int getCgBatchHits() { return cgBatchHits; }
+
+  /**
+   * The number of generating pairs looked up in the principal congruence
+   * cache by the last <code>Cg(List)</code> which were not there.
+   */
+  public int getCgBatchMisses() { return cgBatchMisses; }
+
+  /**
+   * The smallest congruences containing the partitions in
+   * <code>parts</code>, in the same order.
+   *
+   * @see #Cg(List, ProgressReport)
+   */
+  public List<Partition> Cg(List<? extends Partition> parts) {
+    return Cg(parts, null);
+  }
+
+  /**
+   * The smallest congruences containing the partitions in
+   * <code>parts</code>, in the same order. Equal partitions are closed
+   * once. If the principal congruences have been found, the one of each
+   * pair <code>(r, i)</code>, <code>r</code> the least element of the
+   * block of <code>i</code>, is looked up, and the congruence is the
+   * join of these; only the pairs which are not there are closed,
+   * starting from this join. The closures left are done in parallel if
+   * <code>isParallel()</code>. The number of pairs found and not found
+   * is given by <code>getCgBatchHits</code> and
+   * <code>getCgBatchMisses</code>.
+   *
+   * @return the congruences, or null if cancelled
+   */
+  public List<Partition> Cg(List<? extends Partition> parts, final ProgressReport report) {
+    final int k = parts.size();
+    if (report != null) report.addStartLine("finding " + k + " congruences of "
+                                                        + getAlgebra().getName());
+    final Partition[] ans = new Partition[k];
+    final int[] sameAs = new int[k];  // the index of the first equal partition
+    final HashMap<Partition,Integer> firstIndex = new HashMap<Partition,Integer>();
+    // the closures still to do: the index, the start and the pairs to push
+    final List<Integer> toClose = new ArrayList<Integer>();
+    final List<int[]> starts = new ArrayList<int[]>();
+    final List<int[]> pairLists = new ArrayList<int[]>();
+    final List<Integer> tops = new ArrayList<Integer>();
+    final IntArray key = new IntArray(2);
+    int hits = 0;
+    int misses = 0;
+    final int[] roots = new int[algSize];
+    final int[] missed = new int[2 * algSize];  // the pairs not in the cache
+    for (int i = 0; i < k; i++) {
+      final Partition part = parts.get(i);
+      final Integer first = firstIndex.get(part);
+      if (first != null) {
+        sameAs[i] = first.intValue();
+        continue;
+      }
+      sameAs[i] = i;
+      firstIndex.put(part, i);
+      System.arraycopy(part.toArray(), 0, roots, 0, algSize);
+      Partition join = zero();
+      int numMissed = 0;
+      for (int j = 0; j < algSize; j++) {
+        final int r = BasicPartition.root(j, roots);
+        if (r == j) continue;
+        if (principalCongruencesLookup != null) {
+          key.set(0, Math.min(r, j));
+          key.set(1, Math.max(r, j));
+          final Partition pc = principalCongruencesLookup.get(key);
+          if (pc != null) {
+            hits++;
+            if (!pc.leq(join)) join = join.join(pc);
+            continue;
+          }
+          misses++;
+        }
+        missed[numMissed++] = r;
+        missed[numMissed++] = j;
+      }
+      if (numMissed == 0) {
+        ans[i] = join;
+        continue;
+      }
+      final int[] start = new int[algSize];
+      System.arraycopy(join.toArray(), 0, start, 0, algSize);
+      final int[] pairs = new int[2 * algSize];
+      int top = 0;
+      for (int m = 0; m < numMissed; m += 2) {
+        final int r = BasicPartition.root(missed[m], start);
+        final int s = BasicPartition.root(missed[m + 1], start);
+        if (r != s) {
+          BasicPartition.joinBlocks(r, s, start);
+          pairs[top++] = r;
+          pairs[top++] = s;
+        }
+      }
+      if (top == 0) {
+        ans[i] = join;
+        continue;
+      }
+      toClose.add(i);
+      starts.add(start);
+      pairLists.add(pairs);
+      tops.add(top);
+    }
+    cgBatchHits = hits;
+    cgBatchMisses = misses;
+    final Thread callingThread = Thread.currentThread();
+    final int numToClose = toClose.size();
+    if (worthDoingInParallel() && numToClose > 1) {
+      final int nChunks = Math.min(8 * nCPUs, numToClose);
+      final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(nChunks);
+      for (int c = 0; c < nChunks; c++) {
+        final int lo = (int)((long)numToClose * c / nChunks);
+        final int hi = (int)((long)numToClose * (c + 1) / nChunks);
+        tasks.add(new RecursiveAction() {
+          protected void compute() {
+            for (int t = lo; t < hi; t++) {
+              ans[toClose.get(t)] = makeCgAux(starts.get(t), pairLists.get(t),
+                                              tops.get(t), null, callingThread);
+              if (callingThread.isInterrupted()) return;
+            }
+          }
+        });
+      }
+      Pool.getPool().invoke(new RecursiveAction() {
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    }
+    else {
+      for (int t = 0; t < numToClose; t++) {
+        if (report != null) report.setSize(t);
+        ans[toClose.get(t)] = makeCgAux(starts.get(t), pairLists.get(t),
+                                        tops.get(t), null, callingThread);
+        if (callingThread.isInterrupted()) break;
+      }
+    }
+    if (callingThread.isInterrupted()) {
+      if (report != null) report.addEndingLine("cancelled ...");
+      return null;
+    }
+    final List<Partition> lst = new ArrayList<Partition>(k);
+    for (int i = 0; i < k; i++) {
+      lst.add(ans[sameAs[i]]);
+    }
+    if (report != null) report.addEndingLine("closed " + numToClose
+        + " of " + firstIndex.size() + " distinct partitions; principal congruence cache: "
+        + hits + " hits, " + misses + " misses");
+    return lst;
+  }
+
   
   
   public Partition Cg_Old(Partition part, final ProgressReport report) {
@@ -1126,7 +1864,7 @@ public class CongruenceLattice implements Lattice {
    * 
    * @param S  a tolerance or congruence
    * @param T  a tolerance or congruence
-   * @return   a congruence
+   * @return   a congruence, or null if cancelled
    */
   public Partition strongRectangularityCommutator(BinaryRelation S, BinaryRelation T) {
     return strongRectangularityCommutator(S, T, null, null);
@@ -1135,6 +1873,7 @@ public class CongruenceLattice implements Lattice {
   public Partition strongRectangularityCommutator(BinaryRelation S, BinaryRelation T, 
       List<CentralityData> centralityList, ProgressReport report) {
     if (centralityList == null) centralityList = calcCentrality(S, T, report);
+    if (centralityList == null) return null;  // cancelled
     Partition ans = one();
     for (CentralityData cd : centralityList) {
       if (cd.getStrongRectangularityFailure() == null) ans = ans.meet(cd.getDelta());
@@ -1148,7 +1887,7 @@ public class CongruenceLattice implements Lattice {
    * 
    * @param S  a tolerance or congruence
    * @param T  a tolerance or congruence
-   * @return   a congruence
+   * @return   a congruence, or null if cancelled
    */
   public Partition weakCommutator(BinaryRelation S, BinaryRelation T) {
     return weakCommutator(S, T, null, null);
@@ -1157,6 +1896,7 @@ public class CongruenceLattice implements Lattice {
   public Partition weakCommutator(BinaryRelation S, BinaryRelation T, 
                       List<CentralityData> centralityList, ProgressReport report) {
     if (centralityList == null) centralityList = calcCentrality(S, T, report);
+    if (centralityList == null) return null;  // cancelled
     Partition ans = one();
     for (CentralityData cd : centralityList) {
       if (cd.getWeakCentralityFailure() == null) ans = ans.meet(cd.getDelta());
@@ -1170,7 +1910,7 @@ public class CongruenceLattice implements Lattice {
    * 
    * @param S  a tolerance or congruence
    * @param T  a tolerance or congruence
-   * @return   a congruence
+   * @return   a congruence, or null if cancelled
    */
   public Partition commutator(BinaryRelation S, BinaryRelation T) {
     return commutator(S, T, null, null);
@@ -1179,6 +1919,7 @@ public class CongruenceLattice implements Lattice {
   public Partition commutator(BinaryRelation S, BinaryRelation T, 
                           List<CentralityData> centralityList, ProgressReport report) {
     if (centralityList == null) centralityList = calcCentrality(S, T, report);
+    if (centralityList == null) return null;  // cancelled
     Partition ans = one();
     for (CentralityData cd : centralityList) {
       if (cd.getCentralityFailure() == null) ans = ans.meet(cd.getDelta());
@@ -1253,20 +1994,94 @@ public class CongruenceLattice implements Lattice {
     return calcCentrality(S, T, null);
   }
   
+  /**
+   * The three tests for each delta are done in one pass over M(S,T),
+   * and the deltas are split among tasks in the shared pool if
+   * <code>isParallel()</code> and there is enough work.
+   * 
+   * @return a list of CentralityData, or null if cancelled
+   */
   public List<CentralityData> calcCentrality(BinaryRelation S, BinaryRelation T, ProgressReport report) {
-    Set<Partition> univ = universe(report);
-    List<CentralityData> ans = new ArrayList<CentralityData>(univ.size());
-    SubProductAlgebra mats = matrices(S, T, report);
-    for (Partition par : univ) {
-      final CentralityData cd = new CentralityData(S, T, par);
-      cd.setCentralityFailure(centralityFailure(S, T, par, mats));
-      cd.setWeakCentralityFailure(weakCentralityFailure(S, T, par, mats));
-      cd.setStrongRectangularityFailure(strongRectangularityFailure(S, T, par, mats));
-      ans.add(cd);
+    final Set<Partition> all = universe(report);
+    final SubProductAlgebra mats = all == null ? null : matrices(S, T, report);
+    if (mats == null) {
+      if (report != null) report.addEndingLine("cancelled ...");
+      return null;
+    }
+    final List<Partition> univ = new ArrayList<Partition>(all);
+    final int n = univ.size();
+    final CentralityData[] data = new CentralityData[n];
+    final Thread callingThread = Thread.currentThread();
+    if (parallel && nCPUs > 1 && n > 1 
+          && (long)n * mats.cardinality() >= MIN_PARALLEL_CENTRALITY_WORK) {
+      final int nChunks = Math.min(8 * nCPUs, n);
+      final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(nChunks);
+      for (int c = 0; c < nChunks; c++) {
+        final int lo = (int)((long)n * c / nChunks);
+        final int hi = (int)((long)n * (c + 1) / nChunks);
+        tasks.add(new RecursiveAction() {
+          protected void compute() {
+            for (int i = lo; i < hi; i++) {
+              if (callingThread.isInterrupted()) return;
+              data[i] = centralityData(S, T, univ.get(i), mats);
+            }
+          }
+        });
+      }
+      Pool.getPool().invoke(new RecursiveAction() {
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    }
+    else {
+      for (int i = 0; i < n; i++) {
+        if (callingThread.isInterrupted()) break;
+        data[i] = centralityData(S, T, univ.get(i), mats);
+      }
     }
+    if (callingThread.isInterrupted()) {
+      if (report != null) report.addEndingLine("cancelled ...");
+      return null;
+    }
+    final List<CentralityData> ans = new ArrayList<CentralityData>(Arrays.asList(data));
     Collections.sort(ans);
     return ans;
   }
+
+  /**
+   * The least value of <code>|Con A| * |M(S,T)|</code> for which 
+   * <code>calcCentrality</code> is done in parallel.
+   */
+  private static final long MIN_PARALLEL_CENTRALITY_WORK = 1 << 14;
+
+  /**
+   * The centrality, weak centrality and strong rectangularity failures
+   * for <code>delta</code>, found in one pass over <code>mats</code>; 
+   * each is the first in the list of matrices, as the separate methods
+   * give. 
+   */
+  private CentralityData centralityData(BinaryRelation S, BinaryRelation T, 
+                                        Partition delta, SubProductAlgebra mats) {
+    final CentralityData cd = new CentralityData(S, T, delta);
+    IntArray central = null;
+    IntArray weak = null;
+    IntArray strong = null;
+    for (IntArray mat : mats.getUniverseList()) {
+      final boolean r23 = delta.isRelated(mat.get(2), mat.get(3));
+      if (r23) continue;
+      final boolean r01 = delta.isRelated(mat.get(0), mat.get(1));
+      final boolean r12 = delta.isRelated(mat.get(1), mat.get(2));
+      if (central == null && r01) central = mat;
+      if (weak == null && r01 && r12) weak = mat;
+      if (strong == null && r12) strong = mat;
+      if (central != null && weak != null && strong != null) break;
+    }
+    if (central != null) cd.setCentralityFailure(new SubProductElement(central, mats));
+    if (weak != null) cd.setWeakCentralityFailure(new SubProductElement(weak, mats));
+    if (strong != null) cd.setStrongRectangularityFailure(new SubProductElement(strong, mats));
+    return cd;
+  }
   
   /**
    * Find a witness to the failure of strong rectangularity, or null
@@ -1359,9 +2174,21 @@ public class CongruenceLattice implements Lattice {
    * 
    * @param S    a binary relation but usually a tolerance or congruence
    * @param T
-   * @return     M(S,T)
+   * @return     M(S,T), or null if cancelled
    */
   public SubProductAlgebra matrices(BinaryRelation S, BinaryRelation T, ProgressReport report) {
+    // only partitions have equals and hashCode, so tolerances are not cached
+    final List<BinaryRelation> key = 
+        S instanceof Partition && T instanceof Partition ? Arrays.asList(S, T) : null;
+    if (key != null) {
+      synchronized (matricesCache) {
+        final SubProductAlgebra cached = matricesCache.get(key);
+        if (cached != null) {
+          if (report != null) report.addLine("using the cached M(S,T), S = " + S + ", T = " + T);
+          return cached;
+        }
+      }
+    }
     if (report != null) report.addStartLine("Finding M(S,T), S = " + S + ", T = " + T);
     List<IntArray> gens = new ArrayList<IntArray>();
     for (int i = 0; i < algSize; i++) {
@@ -1379,10 +2206,70 @@ public class CongruenceLattice implements Lattice {
     }
     if (report != null) report.addLine("M(S,T) has " + gens.size() + " generators");
     final BigProductAlgebra prod = new BigProductAlgebra(getAlgebra(), 4);
-    final SubProductAlgebra alg4 = new SubProductAlgebra("", prod, gens, true, report);
+    final SubProductAlgebra alg4;
+    try {
+      alg4 = new SubProductAlgebra("", prod, gens, true, false, parallel && nCPUs > 1, report);
+    }
+    catch (CancellationException e) {
+      return null;
+    }
     if (report != null) report.addEndingLine("done. |M(S,T)| = " + alg4.cardinality());
+    if (key != null) cacheMatrices(key, alg4);
     return alg4;
   }
+
+  /**
+   * The most matrices, the sum of <code>|M(S,T)|</code>, kept in the
+   * cache of <code>matrices</code>.
+   */
+  private int matricesCacheLimit = 1 << 20;
+  private int matricesCacheSize = 0;
+
+  /**
+   * The cache of <code>matrices</code>, keyed by <code>[S, T]</code>
+   * for congruences S and T, in access order, so the least recently
+   * used are evicted first.
+   */
+  private final LinkedHashMap<List<BinaryRelation>,SubProductAlgebra> matricesCache = 
+    new LinkedHashMap<List<BinaryRelation>,SubProductAlgebra>(16, 0.75f, true);
+
+  private void cacheMatrices(List<BinaryRelation> key, SubProductAlgebra mats) {
+    synchronized (matricesCache) {
+      if (mats.cardinality() > matricesCacheLimit || matricesCache.containsKey(key)) return;
+      matricesCache.put(key, mats);
+      matricesCacheSize += mats.cardinality();
+      evictMatrices();
+    }
+  }
+
+  /**
+   * Drop the least recently used M(S,T)'s until the cache is within
+   * its limit.
+   */
+  private void evictMatrices() {
+    final Iterator<SubProductAlgebra> it = matricesCache.values().iterator();
+    while (matricesCacheSize > matricesCacheLimit) {
+      matricesCacheSize -= it.next().cardinality();
+      it.remove();
+    }
+  }
+
+  public int getMatricesCacheLimit() { return matricesCacheLimit; }
+
+  /**
+   * Set the most matrices, counted over all the cached M(S,T)'s, that
+   * <code>matrices</code> keeps; the least recently used are dropped
+   * first. 0 turns the cache off.
+   * 
+   * @param limit  the default is 2^20
+   */
+  public void setMatricesCacheLimit(int limit) {
+    if (limit < 0) throw new IllegalArgumentException("the limit must be nonnegative");
+    synchronized (matricesCache) {
+      matricesCacheLimit = limit;
+      evictMatrices();
+    }
+  }
   
   public Set<Integer> typeSet() {
     return typeSet(null);
@@ -0,0 +1,325 @@
+/* CongruenceOrderIndex.java */
+
+package org.uacalc.alg.conlat;
+
+import java.util.*;
+
+/**
+ * An index of the order of a computed congruence lattice. Each
+ * congruence gets an id, its index in the list given, and is
+ * represented by the bitset of the join irreducibles below it, so
+ * <code>leq</code> is a subset test of <code>|JI| / 64</code> words and
+ * <code>meet</code> is an intersection, looked up in a hash table of
+ * the bitsets, rather than operations on partitions of
+ * <code>|A|</code> elements. Dually each element is the meet of the
+ * meet irreducibles above it, so the join irreducibles below a join
+ * are those below every meet irreducible containing the union of the
+ * bitsets. The meet irreducibles are found from the bitsets: they are
+ * the maximal elements not above some join irreducible.
+ * <p>
+ * The upper covers of each element are found, as in
+ * <code>CongruenceLattice.upperCoversMap</code>, as the minimal ones
+ * of its joins with the join irreducibles, all with bitset operations.
+ */
+public class CongruenceOrderIndex {
+
+  private static final int EMPTY = -1;
+
+  private final List<Partition> elems;
+  private final List<Partition> jis;
+  private final HashMap<Partition,Integer> ids;
+  private final int words;
+  private final long[] downSets;  // the bitset of the element with id a at a * words
+  private final int[] table;      // ids, hashed by their bitsets
+  private final int mask;
+  private int[] meetIrreducibles;
+  private int[][] upperCovers;
+  private int[][] lowerCovers;
+
+  /**
+   * @param univ  all the congruences, without duplicates
+   * @param jis   the join irreducible congruences
+   */
+  public CongruenceOrderIndex(List<Partition> univ, List<Partition> jis) {
+    final int n = univ.size();
+    this.elems = new ArrayList<Partition>(univ);
+    this.jis = new ArrayList<Partition>(jis);
+    this.ids = new HashMap<Partition,Integer>(2 * n);
+    this.words = Math.max(1, (jis.size() + 63) >>> 6);
+    this.downSets = new long[n * words];
+    final int cap = Integer.highestOneBit(Math.max(8, 2 * n - 1)) << 1;
+    this.table = new int[cap];
+    Arrays.fill(table, EMPTY);
+    this.mask = cap - 1;
+    for (int a = 0; a < n; a++) {
+      final Partition elem = elems.get(a);
+      if (ids.put(elem, a) != null) {
+        throw new IllegalArgumentException("duplicate congruence " + elem);
+      }
+      for (int k = 0; k < jis.size(); k++) {
+        if (jis.get(k).leq(elem)) downSets[a * words + (k >>> 6)] |= 1L << k;
+      }
+      int slot = hash(downSets, a * words) & mask;
+      while (table[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = a;
+    }
+  }
+
+  private int hash(final long[] bits, final int off) {
+    long h = 1;
+    for (int w = 0; w < words; w++) {
+      h = 31 * h + bits[off + w];
+    }
+    final int x = (int)(h ^ (h >>> 32)) * 0x9E3779B9;
+    return x ^ (x >>> 16);
+  }
+
+  public int size() { return elems.size(); }
+
+  /**
+   * The congruence with id <code>a</code>.
+   */
+  public Partition get(int a) { return elems.get(a); }
+
+  /**
+   * The id of <code>part</code>, or -1 if it is not in the index.
+   */
+  public int idOf(Partition part) {
+    final Integer a = ids.get(part);
+    return a == null ? -1 : a.intValue();
+  }
+
+  /**
+   * The id of the congruence whose set of join irreducibles below it
+   * is <code>bits</code>, starting at <code>off</code>, or -1.
+   */
+  private int idOfDownSet(final long[] bits, final int off) {
+    int slot = hash(bits, off) & mask;
+    while (true) {
+      final int a = table[slot];
+      if (a == EMPTY) return -1;
+      if (equalDownSets(a, bits, off)) return a;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean equalDownSets(final int a, final long[] bits, final int off) {
+    final int aOff = a * words;
+    for (int w = 0; w < words; w++) {
+      if (downSets[aOff + w] != bits[off + w]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * The indices, in the list of join irreducibles, of those below the
+   * congruence with id <code>a</code>, as a <code>BitSet</code>.
+   */
+  public BitSet downSet(int a) {
+    return BitSet.valueOf(Arrays.copyOfRange(downSets, a * words, (a + 1) * words));
+  }
+
+  public boolean leq(int a, int b) {
+    final int aOff = a * words;
+    final int bOff = b * words;
+    for (int w = 0; w < words; w++) {
+      if ((downSets[aOff + w] & ~downSets[bOff + w]) != 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * The id of the meet of the congruences with ids <code>a</code> and
+   * <code>b</code>: the join irreducibles below it are those below both.
+   */
+  public int meet(int a, int b) {
+    final long[] bits = new long[words];
+    final int aOff = a * words;
+    final int bOff = b * words;
+    for (int w = 0; w < words; w++) {
+      bits[w] = downSets[aOff + w] & downSets[bOff + w];
+    }
+    return idOfDownSet(bits, 0);
+  }
+
+  /**
+   * The id of the join of the congruences with ids <code>a</code> and
+   * <code>b</code>.
+   */
+  public int join(int a, int b) {
+    if (leq(a, b)) return b;
+    if (leq(b, a)) return a;
+    final long[] bits = new long[words];
+    final int aOff = a * words;
+    final int bOff = b * words;
+    for (int w = 0; w < words; w++) {
+      bits[w] = downSets[aOff + w] | downSets[bOff + w];
+    }
+    return idOfJoin(bits, meetIrreducibles());
+  }
+
+  /**
+   * The id of the least congruence whose set of join irreducibles
+   * below it contains <code>bits</code>: the meet of the meet
+   * irreducibles in <code>candidates</code> above <code>bits</code>,
+   * which must include all of them.
+   */
+  private int idOfJoin(final long[] bits, final int[] candidates) {
+    final long[] ans = new long[words];
+    final int m = jis.size();
+    for (int w = 0; w < words; w++) {
+      // the top, above every join irreducible
+      ans[w] = m >= 64 * (w + 1) ? -1L : (1L << (m & 63)) - 1;
+    }
+    for (int mi : candidates) {
+      final int off = mi * words;
+      int w = 0;
+      while (w < words && (bits[w] & ~downSets[off + w]) == 0) w++;
+      if (w < words) continue;
+      for (w = 0; w < words; w++) {
+        ans[w] &= downSets[off + w];
+      }
+    }
+    final int id = idOfDownSet(ans, 0);
+    if (id < 0) throw new IllegalStateException("the congruences are not closed under join");
+    return id;
+  }
+
+  /**
+   * The ids of the meet irreducible congruences. For each join
+   * irreducible the maximal elements not above it are meet
+   * irreducible, and each meet irreducible is one of these for a join
+   * irreducible below its upper cover but not below it. The elements
+   * are taken by decreasing numbers of join irreducibles below them,
+   * so one is maximal if it is not below a maximal one found before.
+   */
+  private int[] meetIrreducibles() {
+    if (meetIrreducibles != null) return meetIrreducibles;
+    final int n = elems.size();
+    final int m = jis.size();
+    final int[] counts = new int[m + 2];
+    final int[] bitCounts = new int[n];
+    for (int a = 0; a < n; a++) {
+      for (int w = 0; w < words; w++) {
+        bitCounts[a] += Long.bitCount(downSets[a * words + w]);
+      }
+      counts[m - bitCounts[a] + 1]++;
+    }
+    for (int c = 1; c <= m + 1; c++) {
+      counts[c] += counts[c - 1];
+    }
+    final int[] order = new int[n];
+    for (int a = 0; a < n; a++) {
+      order[counts[m - bitCounts[a]]++] = a;
+    }
+    final boolean[] isMeetIrreducible = new boolean[n];
+    final int[] maximal = new int[n];
+    int total = 0;
+    for (int k = 0; k < m; k++) {
+      int count = 0;
+      for (int a : order) {
+        if ((downSets[a * words + (k >>> 6)] & (1L << k)) != 0) continue;
+        boolean below = false;
+        for (int c = 0; c < count && !below; c++) {
+          below = leq(a, maximal[c]);
+        }
+        if (!below) maximal[count++] = a;
+      }
+      for (int c = 0; c < count; c++) {
+        if (!isMeetIrreducible[maximal[c]]) {
+          isMeetIrreducible[maximal[c]] = true;
+          total++;
+        }
+      }
+    }
+    final int[] ans = new int[total];
+    int i = 0;
+    for (int a = 0; a < n; a++) {
+      if (isMeetIrreducible[a]) ans[i++] = a;
+    }
+    meetIrreducibles = ans;
+    return ans;
+  }
+
+  /**
+   * The ids of the upper covers of the congruence with id
+   * <code>a</code>, in the order
+   * <code>CongruenceLattice.upperCoversMap</code> gives them.
+   */
+  public int[] upperCovers(int a) {
+    if (upperCovers == null) makeCovers();
+    return upperCovers[a];
+  }
+
+  /**
+   * The ids of the lower covers of the congruence with id
+   * <code>a</code>, in increasing order.
+   */
+  public int[] lowerCovers(int a) {
+    if (upperCovers == null) makeCovers();
+    return lowerCovers[a];
+  }
+
+  private void makeCovers() {
+    final int n = elems.size();
+    final int m = jis.size();
+    final int[][] ucs = new int[n][];
+    final int[] lowerCount = new int[n];
+    final int[] covs = new int[m];
+    final int[] seen = new int[n];
+    Arrays.fill(seen, -1);
+    final int[] mis = meetIrreducibles();
+    final int[] misAbove = new int[mis.length];
+    final long[] bits = new long[words];
+    for (int a = 0; a < n; a++) {
+      // only the meet irreducibles above a can be above its joins
+      int nAbove = 0;
+      for (int mi : mis) {
+        if (leq(a, mi)) misAbove[nAbove++] = mi;
+      }
+      final int[] candidates = Arrays.copyOf(misAbove, nAbove);
+      int count = 0;
+      for (int k = 0; k < m; k++) {
+        if ((downSets[a * words + (k >>> 6)] & (1L << k)) != 0) continue;
+        System.arraycopy(downSets, a * words, bits, 0, words);
+        bits[k >>> 6] |= 1L << k;
+        final int join = idOfJoin(bits, candidates);
+        if (seen[join] == a) continue;
+        seen[join] = a;
+        boolean above = false;
+        int kept = 0;
+        for (int c = 0; c < count; c++) {
+          final int cov = covs[c];
+          if (leq(cov, join)) {
+            above = true;
+            // keep the rest as they are
+            while (c < count) covs[kept++] = covs[c++];
+            break;
+          }
+          if (!leq(join, cov)) covs[kept++] = cov;
+        }
+        count = kept;
+        if (!above) covs[count++] = join;
+      }
+      ucs[a] = Arrays.copyOf(covs, count);
+      for (int c = 0; c < count; c++) {
+        lowerCount[covs[c]]++;
+      }
+    }
+    final int[][] lcs = new int[n][];
+    for (int b = 0; b < n; b++) {
+      lcs[b] = new int[lowerCount[b]];
+      lowerCount[b] = 0;
+    }
+    for (int a = 0; a < n; a++) {
+      for (int b : ucs[a]) {
+        lcs[b][lowerCount[b]++] = a;
+      }
+    }
+    upperCovers = ucs;
+    lowerCovers = lcs;
+  }
+
+}
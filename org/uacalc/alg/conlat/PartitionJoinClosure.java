@@ -0,0 +1,191 @@
+/* PartitionJoinClosure.java */
+
+package org.uacalc.alg.conlat;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.uacalc.util.PackedTupleStore;
+
+/**
+ * The join closure of a list of partitions, the join irreducible
+ * congruences, for <code>CongruenceLattice.makeUniverse</code>, kept
+ * in a packed form. A partition is stored as its array of roots, the
+ * least element of the block of each element, which is canonical, in a
+ * <code>PackedTupleStore</code>, so it takes
+ * <code>ceil(log2 n)</code> bits per element and there are no
+ * <code>Partition</code> objects, nor a <code>HashSet</code> of them,
+ * until <code>toList</code> is called.
+ * <p>
+ * Each pass joins one of the partitions with a range of those found
+ * so far. The range is split among <code>JoinTask</code>'s, which only
+ * read the store, so they can be run in parallel; the new partitions
+ * each finds are then added in the order of the tasks with
+ * <code>add</code>, so the partitions are in the same order as
+ * joining them serially gives.
+ */
+final class PartitionJoinClosure {
+
+  private final int algSize;
+  private final PackedTupleStore store;
+  private volatile boolean stopped = false;
+
+  /**
+   * @param generators  the partitions to close, distinct and not zero
+   */
+  PartitionJoinClosure(int algSize, List<Partition> generators) {
+    this.algSize = algSize;
+    this.store = new PackedTupleStore(algSize, algSize);
+    final int[] buf = new int[algSize];
+    for (Partition part : generators) {
+      store.add(roots(part, buf));
+    }
+  }
+
+  /**
+   * The number of partitions, not counting zero.
+   */
+  int size() { return store.size(); }
+
+  /**
+   * Stop the tasks running.
+   */
+  void stop() { stopped = true; }
+
+  /**
+   * Add the partition with roots <code>roots</code> if it is new.
+   *
+   * @return true if it was added
+   */
+  boolean add(int[] roots) {
+    return store.add(roots) >= 0;
+  }
+
+  /**
+   * The partitions, zero first, as normalized
+   * <code>BasicPartition</code>'s.
+   */
+  List<Partition> toList() {
+    final List<Partition> ans = new ArrayList<Partition>(store.size() + 1);
+    ans.add(BasicPartition.zero(algSize));
+    final int[] buf = new int[algSize];
+    for (int k = 0; k < store.size(); k++) {
+      ans.add(toPartition(store.get(k, buf)));
+    }
+    return ans;
+  }
+
+  /**
+   * The roots of <code>part</code>: the least element of the block
+   * of each element.
+   */
+  static int[] roots(Partition part, int[] buf) {
+    final int[] arr = part.toArray();
+    for (int i = 0; i < arr.length; i++) {
+      buf[i] = arr[i] < 0 ? i : arr[i];
+    }
+    return buf;
+  }
+
+  /**
+   * The normalized partition with roots <code>roots</code>.
+   */
+  static BasicPartition toPartition(int[] roots) {
+    final int n = roots.length;
+    final int[] arr = new int[n];
+    for (int i = 0; i < n; i++) {
+      if (roots[i] != i) {
+        arr[i] = roots[i];
+        arr[roots[i]]--;
+      }
+      else arr[i]--;
+    }
+    return new BasicPartition(arr);
+  }
+
+  /**
+   * Put the roots of the join of the partitions with roots
+   * <code>a</code> and <code>b</code> into <code>out</code>, using
+   * <code>parent</code> for the union find. Blocks are linked to the
+   * smaller root so the root of each block is its least element.
+   */
+  static void joinRoots(final int[] a, final int[] b, final int[] parent, final int[] out) {
+    final int n = a.length;
+    System.arraycopy(a, 0, parent, 0, n);
+    for (int i = 0; i < n; i++) {
+      final int j = b[i];
+      if (j == i) continue;
+      final int r = find(i, parent);
+      final int s = find(j, parent);
+      if (r < s) parent[s] = r;
+      else if (s < r) parent[r] = s;
+    }
+    for (int i = 0; i < n; i++) {
+      out[i] = find(i, parent);
+    }
+  }
+
+  private static int find(int i, final int[] parent) {
+    int r = i;
+    while (parent[r] != r) r = parent[r];
+    while (parent[i] != r) {
+      final int next = parent[i];
+      parent[i] = r;
+      i = next;
+    }
+    return r;
+  }
+
+  /**
+   * Joins the partition with roots <code>elemRoots</code> with the
+   * partitions with indices in <code>[min, max)</code>, keeping the
+   * new ones, in the order they are first found, in <code>found</code>.
+   * The store must not change while this runs.
+   */
+  @SuppressWarnings("serial")
+  final class JoinTask extends RecursiveAction {
+
+    final int[] elemRoots;
+    final int min;
+    final int max;
+    final Thread callingThread;
+    final PackedTupleStore found;
+
+    JoinTask(int[] elemRoots, int min, int max, Thread callingThread) {
+      this.elemRoots = elemRoots;
+      this.min = min;
+      this.max = max;
+      this.callingThread = callingThread;
+      this.found = new PackedTupleStore(algSize, algSize);
+    }
+
+    protected void compute() {
+      final int[] buf = new int[algSize];
+      final int[] parent = new int[algSize];
+      final int[] join = new int[algSize];
+      final long[] packed = new long[store.wordsPerTuple()];
+      for (int i = min; i < max; i++) {
+        if ((i & 0xFF) == 0 && (stopped || callingThread.isInterrupted())) return;
+        joinRoots(elemRoots, store.get(i, buf), parent, join);
+        if (store.indexOf(join, packed) < 0) found.add(join);
+      }
+    }
+  }
+
+  /**
+   * The tasks for joining the <code>jiIndex</code>th partition with
+   * those with indices in <code>[min, max)</code>, in contiguous ranges.
+   */
+  List<JoinTask> makeTasks(int jiIndex, int min, int max, int nTasks,
+                           Thread callingThread) {
+    final int[] elemRoots = store.get(jiIndex, null);
+    final List<JoinTask> tasks = new ArrayList<JoinTask>(nTasks);
+    for (int c = 0; c < nTasks; c++) {
+      final int lo = min + (int)((long)(max - min) * c / nTasks);
+      final int hi = min + (int)((long)(max - min) * (c + 1) / nTasks);
+      if (lo < hi) tasks.add(new JoinTask(elemRoots, lo, hi, callingThread));
+    }
+    return tasks;
+  }
+
+}
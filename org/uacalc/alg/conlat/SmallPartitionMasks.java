@@ -0,0 +1,152 @@
+/* SmallPartitionMasks.java */
+
+package org.uacalc.alg.conlat;
+
+/**
+ * Partitions of a set with at most 16 elements as their equivalence
+ * relations, bit matrices packed into <code>long</code>'s, which
+ * <code>BasicPartition</code> keeps for its join, meet and leq. Row
+ * <code>i</code> of the matrix is the block of <code>i</code>. For at
+ * most 8 elements the matrix is one <code>long</code>, row
+ * <code>i</code> being byte <code>i</code>; for at most 16 it is four,
+ * row <code>i</code> being the <code>(i % 4)</code>th 16 bits of word
+ * <code>i / 4</code>.
+ * <p>
+ * Leq is a mask test and meet an and, rather than following roots and
+ * hashing pairs of them. Join is the transitive closure of the or: for
+ * 8 elements by repeated squaring of the matrix, with no loops over the
+ * elements, and for 16 by growing each block, a row at a time, until
+ * it is closed.
+ */
+final class SmallPartitionMasks {
+
+  /**
+   * The largest universe handled here.
+   */
+  static final int MAX_SIZE = 16;
+
+  private static final long LOW_BITS = 0x0101010101010101L;
+
+  private SmallPartitionMasks() {}
+
+  /**
+   * The relation of the partition <code>part</code>, which has at most
+   * <code>MAX_SIZE</code> elements.
+   */
+  static long[] mask(int[] part) {
+    final int n = part.length;
+    if (n <= 8) {
+      long blocks = 0;  // byte r is the block with root r
+      for (int i = 0; i < n; i++) {
+        blocks |= 1L << ((BasicPartition.root(i, part) << 3) + i);
+      }
+      long ans = 0;
+      for (int i = 0; i < n; i++) {
+        ans |= ((blocks >>> (BasicPartition.root(i, part) << 3)) & 0xFFL) << (i << 3);
+      }
+      return new long[] {ans};
+    }
+    final long[] blocks = new long[4];
+    for (int i = 0; i < n; i++) {
+      final int r = BasicPartition.root(i, part);
+      blocks[r >>> 2] |= 1L << (((r & 3) << 4) + i);
+    }
+    final long[] ans = new long[4];
+    for (int i = 0; i < n; i++) {
+      ans[i >>> 2] |= ((long)row16(blocks, BasicPartition.root(i, part))) << ((i & 3) << 4);
+    }
+    return ans;
+  }
+
+  private static int row16(long[] m, int i) {
+    return (int)((m[i >>> 2] >>> ((i & 3) << 4)) & 0xFFFF);
+  }
+
+  private static int row(long[] m, int i) {
+    if (m.length == 1) return (int)((m[0] >>> (i << 3)) & 0xFF);
+    return row16(m, i);
+  }
+
+  static boolean leq(long[] u, long[] v) {
+    for (int w = 0; w < u.length; w++) {
+      if ((u[w] & ~v[w]) != 0) return false;
+    }
+    return true;
+  }
+
+  static long[] meet(long[] u, long[] v) {
+    final long[] ans = new long[u.length];
+    for (int w = 0; w < u.length; w++) {
+      ans[w] = u[w] & v[w];
+    }
+    return ans;
+  }
+
+  /**
+   * The relation of the join of the partitions of <code>n</code>
+   * elements with relations <code>u</code> and <code>v</code>.
+   */
+  static long[] join(long[] u, long[] v, int n) {
+    if (u.length == 1) return new long[] {closure8(u[0] | v[0])};
+    final long[] r = new long[4];
+    for (int w = 0; w < 4; w++) {
+      r[w] = u[w] | v[w];
+    }
+    final long[] ans = new long[4];
+    int done = 0;
+    for (int i = 0; i < n; i++) {
+      if ((done & (1 << i)) != 0) continue;
+      int block = row16(r, i);
+      while (true) {
+        int grown = block;
+        for (int rest = block; rest != 0; rest &= rest - 1) {
+          grown |= row16(r, Integer.numberOfTrailingZeros(rest));
+        }
+        if (grown == block) break;
+        block = grown;
+      }
+      done |= block;
+      for (int rest = block; rest != 0; rest &= rest - 1) {
+        final int k = Integer.numberOfTrailingZeros(rest);
+        ans[k >>> 2] |= ((long)block) << ((k & 3) << 4);
+      }
+    }
+    return ans;
+  }
+
+  /**
+   * The transitive closure of the reflexive, symmetric relation
+   * <code>r</code> on at most 8 elements. The square of a bit matrix is
+   * the or, over <code>k</code>, of column <code>k</code> spread across
+   * the rows and masked with row <code>k</code> copied to every row;
+   * three squarings give paths of length 8.
+   */
+  static long closure8(long r) {
+    while (true) {
+      long sq = 0;
+      for (int k = 0; k < 8; k++) {
+        final long col = ((r >>> k) & LOW_BITS) * 0xFFL;
+        final long row = ((r >>> (k << 3)) & 0xFFL) * LOW_BITS;
+        sq |= col & row;
+      }
+      if (sq == r) return r;
+      r = sq;
+    }
+  }
+
+  /**
+   * The normalized partition array of the equivalence relation
+   * <code>m</code> on <code>n</code> elements: the root of each block
+   * is its least element, the lowest bit of its row.
+   */
+  static int[] toArray(long[] m, int n) {
+    final int[] ans = new int[n];
+    for (int i = 0; i < n; i++) {
+      final int row = row(m, i);
+      final int root = Integer.numberOfTrailingZeros(row);
+      ans[i] = root == i ? -Integer.bitCount(row) : root;
+    }
+    return ans;
+  }
+
+}
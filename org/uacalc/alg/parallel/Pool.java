@@ -12,4 +12,6 @@ import java.util.*;
  */
 public class Pool {
   static ForkJoinPool fjPool = new ForkJoinPool();
+  
+  public static ForkJoinPool getPool() { return fjPool; }
 }
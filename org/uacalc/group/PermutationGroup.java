@@ -89,6 +89,29 @@ public class PermutationGroup extends GeneralAlgebra {
     }
     return new IntArray(arr);
   }
+
+  /**
+   * All the elements of the group generated by <code>gens</code>,
+   * permutations of {0, ..., setSize - 1}, starting with the identity.
+   */
+  public static List<IntArray> groupElements(final List<IntArray> gens, final int setSize) {
+    final List<IntArray> ans = new ArrayList<IntArray>();
+    final Set<IntArray> hs = new HashSet<IntArray>();
+    final IntArray one = id(setSize);
+    ans.add(one);
+    hs.add(one);
+    for (int k = 0; k < ans.size(); k++) {
+      final IntArray p = ans.get(k);
+      for (IntArray g : gens) {
+        if (g.universeSize() != setSize) {
+          throw new IllegalArgumentException("" + g + " is not a permutation of " + setSize + " points");
+        }
+        final IntArray q = prod(p, g);
+        if (hs.add(q)) ans.add(q);
+      }
+    }
+    return ans;
+  }
  
 }
 
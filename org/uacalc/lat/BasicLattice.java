@@ -110,6 +110,30 @@ public class  BasicLattice extends GeneralAlgebra
   }
 
 
+  /**
+   * Make a org.latdraw.orderedset.OrderedSet from a CongruenceLattice,
+   * using the upper covers from its order index.
+   *
+   * @param lat    A CongruenceLattice.
+   */
+  public org.latdraw.orderedset.OrderedSet makeOrderedSet (CongruenceLattice lat) {
+    List<Partition> univ = new ArrayList<Partition>(lat.universe());
+    Map<Partition,List<Partition>> ucMap = lat.upperCoversMap();
+    List<List<Partition>> ucs = new ArrayList<List<Partition>>(univ.size());
+    for (Partition par : univ) {
+      ucs.add(new ArrayList<Partition>(ucMap.get(par)));
+    }
+    org.latdraw.orderedset.OrderedSet poset = null;
+    try {
+      poset = new org.latdraw.orderedset.OrderedSet(null, univ, ucs);
+    }
+    catch(org.latdraw.orderedset.NonOrderedSetException e) {
+      System.err.println(e.toString());
+      e.printStackTrace();
+    }
+    return poset;
+  }
+
   /**
    * Make a org.latdraw.orderedset.OrderedSet from a Lattice.
    *
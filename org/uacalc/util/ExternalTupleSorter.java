@@ -0,0 +1,315 @@
+/* ExternalTupleSorter.java */
+
+package org.uacalc.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts and removes duplicates from a stream of <code>int[]</code>
+ * tuples which may be much larger than the heap, as in the external
+ * breadth first search used for state space search. The tuples are
+ * bit packed as in <code>PackedTupleStore</code> into a buffer of
+ * <code>bufferTuples</code> tuples; when it is full it is sorted and
+ * written, without duplicates, to a run file. <code>merge</code> then
+ * merges the runs with a sorted file of the tuples seen before, writing
+ * the merged file and reporting the tuples which are new.
+ * All the file access is sequential.
+ * <p>
+ * The order is the lexicographic order of the packed words, compared
+ * as signed <code>long</code>'s; the sorted files are just the packed
+ * words with no header. This class is not thread safe.
+ */
+public class ExternalTupleSorter implements Closeable {
+
+  /**
+   * The most files merged at once; more runs are first merged in
+   * groups of this size.
+   */
+  public static final int MAX_FAN_IN = 64;
+
+  private static final int BUFFER_BYTES = 1 << 16;
+
+  /**
+   * Receives the new tuples found by <code>merge</code>.
+   */
+  public interface Sink {
+    /**
+     * Called with each new tuple, in sorted order. The array is
+     * reused.
+     *
+     * @return false to stop the merge
+     */
+    boolean accept(int[] tuple) throws IOException;
+  }
+
+  private final File dir;
+  private final PackedTupleStore packer;  // only used to pack and unpack
+  private final int length;
+  private final int words;
+  private final int bufferTuples;
+  private final long[] buffer;
+  private int[] order;  // used to sort buffer when words > 1
+  private int count;    // the number of tuples in buffer
+  private final List<File> runs = new ArrayList<File>();
+  private long added;
+
+  /**
+   * Construct a sorter for tuples of length <code>length</code>
+   * with entries less than <code>base</code>.
+   *
+   * @param dir           the directory for the run files
+   * @param bufferTuples  the number of tuples held in the heap
+   */
+  public ExternalTupleSorter(File dir, int length, int base, int bufferTuples) {
+    if (bufferTuples < 1) {
+      throw new IllegalArgumentException("bufferTuples: " + bufferTuples);
+    }
+    this.dir = dir;
+    this.packer = new PackedTupleStore(length, base);
+    this.length = length;
+    this.words = packer.wordsPerTuple();
+    this.bufferTuples = bufferTuples;
+    this.buffer = new long[bufferTuples * words];
+  }
+
+  public int wordsPerTuple() { return words; }
+
+  /**
+   * The number of run files written so far.
+   */
+  public int runCount() { return runs.size(); }
+
+  /**
+   * The number of tuples added since the last merge, counting
+   * duplicates.
+   */
+  public long added() { return added; }
+
+  /**
+   * Add a tuple, writing a run if the buffer is full.
+   */
+  public void add(final int[] tuple) throws IOException {
+    packer.pack(tuple, buffer, count * words);
+    added++;
+    if (++count == bufferTuples) spill();
+  }
+
+  /**
+   * Sort the buffer and write it to a new run.
+   */
+  private void spill() throws IOException {
+    if (count == 0) return;
+    final File run = newFile("run");
+    try (DataOutputStream out = openOut(run)) {
+      if (words == 1) {
+        Arrays.sort(buffer, 0, count);
+        for (int k = 0; k < count; k++) {
+          if (k == 0 || buffer[k] != buffer[k - 1]) out.writeLong(buffer[k]);
+        }
+      }
+      else {
+        if (order == null) order = new int[bufferTuples];
+        for (int k = 0; k < count; k++) {
+          order[k] = k * words;
+        }
+        sort(0, count - 1);
+        for (int k = 0; k < count; k++) {
+          if (k > 0 && compare(buffer, order[k], buffer, order[k - 1]) == 0) continue;
+          for (int w = 0; w < words; w++) {
+            out.writeLong(buffer[order[k] + w]);
+          }
+        }
+      }
+    }
+    runs.add(run);
+    count = 0;
+  }
+
+  /**
+   * Merge the tuples added since the last merge with the sorted file
+   * <code>sorted</code>, writing the merged, sorted file without
+   * duplicates to <code>out</code>. Each tuple not in
+   * <code>sorted</code> is passed to <code>sink</code>, if it is not
+   * null; if the sink returns false the merge stops and
+   * <code>out</code> is incomplete. The runs are deleted.
+   *
+   * @param sorted  a sorted file written by this class, or null
+   *                for none
+   * @return the number of new tuples
+   */
+  public long merge(File sorted, File out, Sink sink) throws IOException {
+    spill();
+    while (runs.size() > MAX_FAN_IN) {
+      final List<File> group = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+      runs.subList(0, MAX_FAN_IN).clear();
+      final File run = newFile("run");
+      mergeFiles(group, -1, run, null);
+      runs.add(run);
+    }
+    final List<File> files = new ArrayList<File>(runs);
+    runs.clear();
+    int old = -1;
+    if (sorted != null) {
+      old = files.size();
+      files.add(sorted);
+    }
+    added = 0;
+    return mergeFiles(files, old, out, sink);
+  }
+
+  /**
+   * Merge the sorted files, deleting all of them except the
+   * <code>old</code>th one, which holds the tuples seen before.
+   */
+  private long mergeFiles(List<File> files, int old, File dest, Sink sink) throws IOException {
+    final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, files.size()));
+    final List<RunReader> readers = new ArrayList<RunReader>(files.size());
+    final int[] tuple = new int[length];
+    final long[] current = new long[words];
+    long newCount = 0;
+    try (DataOutputStream out = openOut(dest)) {
+      for (int i = 0; i < files.size(); i++) {
+        final RunReader r = new RunReader(files.get(i), i == old);
+        readers.add(r);
+        if (r.advance()) queue.add(r);
+      }
+      while (!queue.isEmpty()) {
+        RunReader r = queue.poll();
+        System.arraycopy(r.current, 0, current, 0, words);
+        boolean seen = r.old;
+        if (r.advance()) queue.add(r);
+        while (!queue.isEmpty() && compare(queue.peek().current, 0, current, 0) == 0) {
+          r = queue.poll();
+          seen |= r.old;
+          if (r.advance()) queue.add(r);
+        }
+        for (int w = 0; w < words; w++) {
+          out.writeLong(current[w]);
+        }
+        if (!seen) {
+          newCount++;
+          if (sink != null && !sink.accept(packer.unpack(current, 0, tuple))) break;
+        }
+      }
+    }
+    finally {
+      for (RunReader r : readers) {
+        r.in.close();
+      }
+      for (int i = 0; i < files.size(); i++) {
+        if (i != old) files.get(i).delete();
+      }
+    }
+    return newCount;
+  }
+
+  /**
+   * Reads a sorted file one tuple at a time.
+   */
+  private final class RunReader implements Comparable<RunReader> {
+    final DataInputStream in;
+    final boolean old;
+    final long[] current = new long[words];
+
+    RunReader(File file, boolean old) throws IOException {
+      this.in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES));
+      this.old = old;
+    }
+
+    boolean advance() throws IOException {
+      try {
+        current[0] = in.readLong();
+      }
+      catch (EOFException e) {
+        return false;
+      }
+      for (int w = 1; w < words; w++) {
+        current[w] = in.readLong();
+      }
+      return true;
+    }
+
+    public int compareTo(RunReader o) {
+      return compare(current, 0, o.current, 0);
+    }
+  }
+
+  private int compare(final long[] a, final int aOff, final long[] b, final int bOff) {
+    for (int w = 0; w < words; w++) {
+      final int c = Long.compare(a[aOff + w], b[bOff + w]);
+      if (c != 0) return c;
+    }
+    return 0;
+  }
+
+  // quicksort of order[lo..hi] by the tuples in buffer they point to.
+  private void sort(int lo, int hi) {
+    while (hi - lo > 16) {
+      final int mid = (lo + hi) >>> 1;
+      if (compare(buffer, order[mid], buffer, order[lo]) < 0) swap(lo, mid);
+      if (compare(buffer, order[hi], buffer, order[lo]) < 0) swap(lo, hi);
+      if (compare(buffer, order[hi], buffer, order[mid]) < 0) swap(mid, hi);
+      final int pivot = order[mid];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (compare(buffer, order[i], buffer, pivot) < 0) i++;
+        while (compare(buffer, order[j], buffer, pivot) > 0) j--;
+        if (i <= j) swap(i++, j--);
+      }
+      // recurse on the smaller part so the stack stays small
+      if (j - lo < hi - i) {
+        sort(lo, j);
+        lo = i;
+      }
+      else {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      final int t = order[i];
+      int j = i - 1;
+      while (j >= lo && compare(buffer, order[j], buffer, t) > 0) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = t;
+    }
+  }
+
+  private void swap(int i, int j) {
+    final int t = order[i];
+    order[i] = order[j];
+    order[j] = t;
+  }
+
+  /**
+   * A new temporary file in the directory of this sorter, deleted
+   * when the JVM exits if it is still there.
+   */
+  public File newFile(String prefix) throws IOException {
+    final File file = File.createTempFile(prefix, ".tup", dir);
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static DataOutputStream openOut(File file) throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES));
+  }
+
+  /**
+   * Delete the runs not yet merged.
+   */
+  public void close() {
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+    count = 0;
+  }
+
+}
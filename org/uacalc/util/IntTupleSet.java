@@ -0,0 +1,247 @@
+/* IntTupleSet.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * A hash set of <code>int[]</code> tuples using open addressing.
+ * <p>
+ * This is meant to replace a <code>HashSet&lt;IntArray&gt;</code> when
+ * closing subpowers. There are no entry objects and no
+ * <code>IntArray</code> wrappers: the table is a primitive
+ * <code>int[]</code> of indices into the list of tuples (kept in
+ * the order they were added) and the hash code of each tuple is
+ * computed once and cached, so growing the table never rehashes
+ * the tuples themselves. Probing is linear.
+ * <p>
+ * The tuples are stored by reference, so they must not be modified
+ * after they are added. Since the tuples are kept in insertion order,
+ * <code>get(i)</code> can be used in place of a separate list of
+ * the raw arrays.
+ */
+public class IntTupleSet {
+
+  private static final int EMPTY = -1;
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final double LOAD_FACTOR = 0.6;
+
+  private int[][] tuples;  // in insertion order
+  private int[] hashes;    // hashes[i] is the hash of tuples[i]
+  private int[] table;     // indices into tuples or EMPTY
+  private int mask;
+  private int threshold;
+  private int size;
+
+  public IntTupleSet() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Construct a set with room for <code>expectedSize</code> tuples
+   * before it has to grow.
+   *
+   * @param expectedSize  the expected number of tuples
+   */
+  public IntTupleSet(int expectedSize) {
+    final int n = Math.max(expectedSize, DEFAULT_CAPACITY);
+    tuples = new int[n][];
+    hashes = new int[n];
+    int cap = Integer.highestOneBit((int)Math.min(n / LOAD_FACTOR, 1 << 30)) << 1;
+    makeTable(cap);
+  }
+
+  /**
+   * Construct a set containing the tuples of <code>lst</code>, in order,
+   * ignoring duplicates.
+   */
+  public IntTupleSet(List<int[]> lst) {
+    this(lst.size());
+    for (int[] tuple : lst) {
+      add(tuple);
+    }
+  }
+
+  private void makeTable(int cap) {
+    table = new int[cap];
+    Arrays.fill(table, EMPTY);
+    mask = cap - 1;
+    threshold = (int)(cap * LOAD_FACTOR);
+  }
+
+  /**
+   * The hash code of a tuple; it agrees with <code>IntArray.hashCode</code>
+   * before the bits are spread.
+   */
+  public static int hash(final int[] tuple) {
+    int h = 1;
+    final int n = tuple.length;
+    for (int i = 0; i < n; i++) {
+      h = 31 * h + tuple[i];
+    }
+    return spread(h);
+  }
+
+  /**
+   * The hash code of the tuple in <code>buf[off], ..., buf[off + len - 1]</code>;
+   * the same as <code>hash</code> of a copy of it.
+   */
+  public static int hash(final int[] buf, final int off, final int len) {
+    int h = 1;
+    final int end = off + len;
+    for (int i = off; i < end; i++) {
+      h = 31 * h + buf[i];
+    }
+    return spread(h);
+  }
+
+  private static int spread(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Add <code>tuple</code> if it is not already in the set.
+   *
+   * @param tuple  the tuple; it is stored, not copied
+   * @return       the index of <code>tuple</code> if it was added,
+   *               and <code>-(index + 1)</code> if it was already
+   *               in the set at <code>index</code>
+   */
+  public int add(final int[] tuple) {
+    final int h = hash(tuple);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) break;
+      if (hashes[k] == h && IntArray.equalIntArrays(tuples[k], tuple)) return -(k + 1);
+      slot = (slot + 1) & mask;
+    }
+    return insert(tuple, h, slot);
+  }
+
+  /**
+   * Add a copy of the tuple in <code>buf[off], ..., buf[off + len - 1]</code>
+   * if it is not already in the set. Nothing is allocated unless it
+   * is new, so <code>buf</code> can be a reused buffer.
+   *
+   * @return the index of the copy if it was added, and 
+   *         <code>-(index + 1)</code> if the tuple was already in the
+   *         set at <code>index</code>
+   */
+  public int addCopy(final int[] buf, final int off, final int len) {
+    final int h = hash(buf, off, len);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) break;
+      if (hashes[k] == h && equalRange(tuples[k], buf, off, len)) return -(k + 1);
+      slot = (slot + 1) & mask;
+    }
+    return insert(Arrays.copyOfRange(buf, off, off + len), h, slot);
+  }
+
+  private static boolean equalRange(final int[] tuple, final int[] buf, final int off, final int len) {
+    if (tuple.length != len) return false;
+    for (int i = 0; i < len; i++) {
+      if (tuple[i] != buf[off + i]) return false;
+    }
+    return true;
+  }
+
+  private int insert(final int[] tuple, final int h, final int slot) {
+    if (size == tuples.length) {
+      final int n = tuples.length + (tuples.length >> 1) + 1;
+      tuples = Arrays.copyOf(tuples, n);
+      hashes = Arrays.copyOf(hashes, n);
+    }
+    final int index = size++;
+    tuples[index] = tuple;
+    hashes[index] = h;
+    table[slot] = index;
+    if (size > threshold) rehash();
+    return index;
+  }
+
+  /**
+   * The index of <code>tuple</code>, or -1 if it is not in the set.
+   */
+  public int indexOf(final int[] tuple) {
+    final int h = hash(tuple);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) return -1;
+      if (hashes[k] == h && IntArray.equalIntArrays(tuples[k], tuple)) return k;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public boolean contains(final int[] tuple) {
+    return indexOf(tuple) >= 0;
+  }
+
+  /**
+   * The <code>index</code>th tuple added.
+   */
+  public int[] get(int index) {
+    if (index >= size) throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    return tuples[index];
+  }
+
+  public int size() { return size; }
+
+  /**
+   * The fraction of the slots of the table in use.
+   */
+  public double load() {
+    return (double)size / table.length;
+  }
+
+  /**
+   * The average number of slots past its home slot a stored tuple
+   * is; 0 means every tuple is found in one probe.
+   * This scans the table.
+   */
+  public double averageProbeLength() {
+    if (size == 0) return 0;
+    long total = 0;
+    for (int slot = 0; slot < table.length; slot++) {
+      final int k = table[slot];
+      if (k != EMPTY) total += (slot - (hashes[k] & mask)) & mask;
+    }
+    return (double)total / size;
+  }
+
+  /**
+   * The largest number of slots past its home slot a stored tuple is.
+   * This scans the table.
+   */
+  public int maxProbeLength() {
+    int max = 0;
+    for (int slot = 0; slot < table.length; slot++) {
+      final int k = table[slot];
+      if (k != EMPTY) max = Math.max(max, (slot - (hashes[k] & mask)) & mask);
+    }
+    return max;
+  }
+
+  /**
+   * Double the table and reinsert the indices using the cached hashes.
+   */
+  private void rehash() {
+    if (table.length == 1 << 30) {
+      threshold = Integer.MAX_VALUE;
+      return;
+    }
+    makeTable(table.length << 1);
+    for (int k = 0; k < size; k++) {
+      int slot = hashes[k] & mask;
+      while (table[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = k;
+    }
+  }
+
+}
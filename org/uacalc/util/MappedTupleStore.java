@@ -0,0 +1,326 @@
+/* MappedTupleStore.java */
+
+package org.uacalc.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A <code>TupleStore</code> whose tuples and hash index live in memory
+ * mapped files, so it can hold far more than fits in the heap. The
+ * tuples are bit packed exactly as in <code>PackedTupleStore</code>
+ * and appended to a tuple file; the index is an open addressing table
+ * of <code>int</code>'s (the tuple index plus one, 0 meaning empty) in
+ * a second file, using about 8 bytes per tuple. When the index gets too
+ * full a new one, twice the size, is built by streaming over the tuple
+ * file once.
+ * <p>
+ * The files are mapped in segments of <code>SEGMENT_BYTES</code>, so
+ * only the segments being used need to be resident; the operating
+ * system's page cache is the only cache. The only heap used is the list
+ * of mapped segments. Closing the store deletes its files.
+ * This class is not thread safe.
+ */
+public class MappedTupleStore implements TupleStore, Closeable {
+
+  /**
+   * The size of each mapped segment; a multiple of 8.
+   */
+  public static final int SEGMENT_BYTES = 1 << 28;
+  private static final double LOAD_FACTOR = 0.5;
+  private static final long MIN_INDEX_SLOTS = 1 << 16;
+
+  private final File dir;
+  private final int length;
+  private final int base;
+  private final int bits;
+  private final int perWord;
+  private final int words;
+  private final long entryMask;
+
+  private final MappedFile data;
+  private MappedFile index;
+  private int indexGeneration = 0;
+  private long slots;      // the number of slots in the index
+  private long slotMask;
+  private long threshold;
+  private int size;
+
+  private final long[] scratch;
+
+  /**
+   * Construct an empty store with its files in <code>dir</code>.
+   *
+   * @param dir     a directory for the files; it is created if necessary
+   * @param length  the length of the tuples
+   * @param base    the entries will be less than this
+   */
+  public MappedTupleStore(File dir, int length, int base) throws IOException {
+    if (length < 0 || base < 1) {
+      throw new IllegalArgumentException("length: " + length + ", base: " + base);
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("cannot make the directory " + dir);
+    }
+    this.dir = dir;
+    this.length = length;
+    this.base = base;
+    this.bits = PackedTupleStore.bitsNeeded(base);
+    this.perWord = 64 / bits;
+    this.words = Math.max(1, (length + perWord - 1) / perWord);
+    this.entryMask = (1L << bits) - 1;
+    this.scratch = new long[words];
+    data = new MappedFile(File.createTempFile("tuples", ".dat", dir));
+    newIndex(MIN_INDEX_SLOTS);
+  }
+
+  public int size() { return size; }
+
+  public int tupleLength() { return length; }
+
+  public int base() { return base; }
+
+  public File getDirectory() { return dir; }
+
+  /**
+   * The number of bytes in the tuple file, not counting the unused
+   * part of the last segment.
+   */
+  public long dataBytes() { return 8L * words * size; }
+
+  /**
+   * The number of bytes in the index file.
+   */
+  public long indexBytes() { return 4L * slots; }
+
+  /**
+   * The heap used; the mapped files are not counted.
+   */
+  public long memoryUsage() {
+    return 64L * (data.segments.size() + index.segments.size()) + 8L * words;
+  }
+
+  public int append(final int[] tuple) {
+    pack(tuple);
+    final int h = PackedTupleStore.hashPacked(scratch);
+    long slot = h & slotMask;
+    while (index.getInt(4 * slot) != 0) {
+      slot = (slot + 1) & slotMask;
+    }
+    return appendScratch(slot);
+  }
+
+  public int add(final int[] tuple) {
+    pack(tuple);
+    final int h = PackedTupleStore.hashPacked(scratch);
+    long slot = h & slotMask;
+    while (true) {
+      final int k = index.getInt(4 * slot) - 1;
+      if (k < 0) break;
+      if (equalsScratch(k)) return -(k + 1);
+      slot = (slot + 1) & slotMask;
+    }
+    return appendScratch(slot);
+  }
+
+  public int indexOf(final int[] tuple) {
+    pack(tuple);
+    final int h = PackedTupleStore.hashPacked(scratch);
+    long slot = h & slotMask;
+    while (true) {
+      final int k = index.getInt(4 * slot) - 1;
+      if (k < 0) return -1;
+      if (equalsScratch(k)) return k;
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  public int[] get(final int index, int[] buf) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+    if (buf == null) buf = new int[length];
+    long off = 8L * words * index;
+    int k = 0;
+    for (int w = 0; w < words; w++, off += 8) {
+      long word = data.getLong(off);
+      final int end = Math.min(length, k + perWord);
+      for ( ; k < end; k++) {
+        buf[k] = (int)(word & entryMask);
+        word >>>= bits;
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * Unmap and delete the files. The store cannot be used after this.
+   */
+  public void close() throws IOException {
+    data.delete();
+    index.delete();
+  }
+
+  private void pack(final int[] tuple) {
+    if (tuple.length != length) {
+      throw new IllegalArgumentException("the tuple has length " + tuple.length
+                                         + ", not " + length);
+    }
+    int k = 0;
+    for (int w = 0; w < words; w++) {
+      long word = 0;
+      final int end = Math.min(length, k + perWord);
+      for (int shift = 0; k < end; k++, shift += bits) {
+        final int v = tuple[k];
+        if (v < 0 || v >= base) {
+          throw new IllegalArgumentException("entry " + v + " at " + k + " is not less than " + base);
+        }
+        word |= ((long)v) << shift;
+      }
+      scratch[w] = word;
+    }
+  }
+
+  private boolean equalsScratch(final int k) {
+    long off = 8L * words * k;
+    for (int w = 0; w < words; w++, off += 8) {
+      if (data.getLong(off) != scratch[w]) return false;
+    }
+    return true;
+  }
+
+  private int appendScratch(final long slot) {
+    if (size == Integer.MAX_VALUE - 1) {
+      throw new IllegalStateException("the store is full");
+    }
+    final int k = size;
+    long off = 8L * words * k;
+    data.ensureCapacity(off + 8L * words);
+    for (int w = 0; w < words; w++, off += 8) {
+      data.putLong(off, scratch[w]);
+    }
+    index.putInt(4 * slot, k + 1);
+    size++;
+    if (size > threshold) rehash();
+    return k;
+  }
+
+  private void newIndex(long n) throws IOException {
+    index = new MappedFile(new File(dir, data.file.getName() + ".idx" + indexGeneration++));
+    index.ensureCapacity(4 * n);  // a newly mapped region is all 0's
+    slots = n;
+    slotMask = n - 1;
+    threshold = (long)(n * LOAD_FACTOR);
+  }
+
+  /**
+   * Double the index, streaming once over the tuple file to
+   * recompute the hashes.
+   */
+  private void rehash() {
+    final MappedFile old = index;
+    try {
+      newIndex(2 * slots);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    long off = 0;
+    for (int k = 0; k < size; k++) {
+      int h = 1;
+      for (int w = 0; w < words; w++, off += 8) {
+        final long word = data.getLong(off);
+        h = 31 * h + (int)(word ^ (word >>> 32));
+      }
+      long slot = PackedTupleStore.spread(h) & slotMask;
+      while (index.getInt(4 * slot) != 0) {
+        slot = (slot + 1) & slotMask;
+      }
+      index.putInt(4 * slot, k + 1);
+    }
+    try {
+      old.delete();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A growing file mapped in segments of <code>SEGMENT_BYTES</code>.
+   */
+  private static final class MappedFile {
+
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    long mapped = 0;
+
+    MappedFile(File file) throws IOException {
+      this.file = file;
+      file.deleteOnExit();
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+    }
+
+    void ensureCapacity(long bytes) {
+      if (bytes <= mapped) return;
+      if (bytes <= SEGMENT_BYTES) {
+        // a single segment which grows by doubling
+        long len = 1 << 16;
+        while (len < bytes) len <<= 1;
+        segments.clear();
+        segments.add(map(0, len));
+        mapped = len;
+        return;
+      }
+      if (mapped < SEGMENT_BYTES) {
+        segments.clear();
+        segments.add(map(0, SEGMENT_BYTES));
+        mapped = SEGMENT_BYTES;
+      }
+      while (mapped < bytes) {
+        segments.add(map(mapped, SEGMENT_BYTES));
+        mapped += SEGMENT_BYTES;
+      }
+    }
+
+    private MappedByteBuffer map(long pos, long len) {
+      try {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, pos, len);
+        buf.order(ByteOrder.nativeOrder());
+        return buf;
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    long getLong(long off) {
+      return segments.get((int)(off / SEGMENT_BYTES)).getLong((int)(off % SEGMENT_BYTES));
+    }
+
+    void putLong(long off, long v) {
+      segments.get((int)(off / SEGMENT_BYTES)).putLong((int)(off % SEGMENT_BYTES), v);
+    }
+
+    int getInt(long off) {
+      return segments.get((int)(off / SEGMENT_BYTES)).getInt((int)(off % SEGMENT_BYTES));
+    }
+
+    void putInt(long off, int v) {
+      segments.get((int)(off / SEGMENT_BYTES)).putInt((int)(off % SEGMENT_BYTES), v);
+    }
+
+    void delete() throws IOException {
+      segments.clear();
+      channel.close();
+      raf.close();
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+/* PackedTupleFile.java */
+
+package org.uacalc.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append only file of <code>int[]</code> tuples, bit packed as in
+ * <code>PackedTupleStore</code>, meant to be written and read
+ * sequentially. It has no index: the heap used is just the buffers,
+ * so <code>indexOf</code> and <code>add</code> scan the file. Reading
+ * a range of tuples with <code>read</code> is sequential;
+ * <code>get</code> reads just the one tuple.
+ * <p>
+ * Closing the file deletes it. This class is not thread safe.
+ */
+public class PackedTupleFile implements TupleStore, Closeable {
+
+  private static final int BUFFER_BYTES = 1 << 16;
+
+  private final File file;
+  private final PackedTupleStore packer;  // only used to pack and unpack
+  private final int length;
+  private final int words;
+  private final long[] scratch;
+  private DataOutputStream out;
+  private FileChannel in;  // for reading; opened when needed
+  private final ByteBuffer readBuffer;
+  private int size;
+
+  /**
+   * Make an empty file, replacing <code>file</code> if it exists,
+   * for tuples of length <code>length</code> with entries less
+   * than <code>base</code>.
+   */
+  public PackedTupleFile(File file, int length, int base) throws IOException {
+    this.file = file;
+    this.packer = new PackedTupleStore(length, base);
+    this.length = length;
+    this.words = packer.wordsPerTuple();
+    this.scratch = new long[words];
+    this.readBuffer = ByteBuffer.allocate(Math.max(BUFFER_BYTES, 8 * words));
+    this.out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES));
+  }
+
+  public File getFile() { return file; }
+
+  public int size() { return size; }
+
+  public int tupleLength() { return length; }
+
+  public int base() { return packer.base(); }
+
+  public int wordsPerTuple() { return words; }
+
+  public long memoryUsage() { return 2L * BUFFER_BYTES; }
+
+  public int append(final int[] tuple) {
+    packer.pack(tuple, scratch);
+    return appendPacked(scratch, 0);
+  }
+
+  /**
+   * Append a tuple already packed in <code>src</code> starting at
+   * <code>off</code>.
+   *
+   * @return the index of the new tuple
+   */
+  public int appendPacked(final long[] src, final int off) {
+    try {
+      for (int w = 0; w < words; w++) {
+        out.writeLong(src[off + w]);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return size++;
+  }
+
+  /**
+   * Add <code>tuple</code> if it is not already here. This scans the
+   * file.
+   *
+   * @return the index of the new tuple or <code>-(k + 1)</code> if
+   *         it is already here at <code>k</code>
+   */
+  public int add(final int[] tuple) {
+    final int k = indexOf(tuple);
+    if (k >= 0) return -(k + 1);
+    return append(tuple);
+  }
+
+  /**
+   * The index of <code>tuple</code> or -1. This scans the file.
+   */
+  public int indexOf(final int[] tuple) {
+    final long[] packed = new long[words];
+    packer.pack(tuple, packed);
+    try {
+      flush();
+      final int perRead = readBuffer.capacity() / (8 * words);
+      for (int from = 0; from < size; from += perRead) {
+        final int to = (int)Math.min(size, (long)from + perRead);
+        fill(from, to);
+        for (int k = from; k < to; k++) {
+          boolean equal = true;
+          for (int w = 0; w < words; w++) {
+            if (readBuffer.getLong() != packed[w]) equal = false;
+          }
+          if (equal) return k;
+        }
+      }
+      return -1;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public int[] get(final int index, int[] buf) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+    if (buf == null) buf = new int[length];
+    try {
+      flush();
+      fill(index, index + 1);
+      for (int w = 0; w < words; w++) {
+        scratch[w] = readBuffer.getLong();
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return packer.unpack(scratch, 0, buf);
+  }
+
+  /**
+   * Read the tuples with indices <code>from, ..., to - 1</code>, in
+   * order, into <code>dest[0], ..., dest[to - from - 1]</code>, which
+   * must have length at least <code>tupleLength()</code>.
+   */
+  public void read(int from, int to, int[][] dest) throws IOException {
+    if (from < 0 || to > size || from > to) {
+      throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", size: " + size);
+    }
+    flush();
+    final int perRead = readBuffer.capacity() / (8 * words);
+    for (int start = from; start < to; start += perRead) {
+      final int end = Math.min(to, start + perRead);
+      fill(start, end);
+      for (int k = start; k < end; k++) {
+        for (int w = 0; w < words; w++) {
+          scratch[w] = readBuffer.getLong();
+        }
+        packer.unpack(scratch, 0, dest[k - from]);
+      }
+    }
+  }
+
+  /**
+   * Write out the buffered tuples.
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Read the tuples with indices <code>from, ..., to - 1</code>, which
+   * must fit, into <code>readBuffer</code> and flip it.
+   */
+  private void fill(int from, int to) throws IOException {
+    if (in == null) in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    readBuffer.clear();
+    readBuffer.limit(8 * words * (to - from));
+    long pos = 8L * words * from;
+    while (readBuffer.hasRemaining()) {
+      final int n = in.read(readBuffer, pos);
+      if (n < 0) throw new EOFException(file.toString());
+      pos += n;
+    }
+    readBuffer.flip();
+  }
+
+  /**
+   * Close and delete the file. It cannot be used after this.
+   */
+  public void close() throws IOException {
+    out.close();
+    if (in != null) in.close();
+    file.delete();
+  }
+
+}
@@ -0,0 +1,375 @@
+/* PackedTupleStore.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * An append only store of <code>int[]</code> tuples of a fixed length
+ * whose entries lie in <code>0, ..., base - 1</code>. Each entry is
+ * packed into <code>ceil(log2(base))</code> bits of a <code>long</code>
+ * (entries never straddle two words), so, for example, a tuple over a
+ * 4 element algebra uses 2 bits per coordinate rather than 32.
+ * <p>
+ * Tuples are referred to by their index, in the order they were added.
+ * They can be unpacked into a reusable buffer with
+ * <code>get(index, buf)</code> and hashed and compared in their packed
+ * form. The first call to <code>add</code> builds an open addressing
+ * index (with cached hashes) so <code>add</code> can be used to
+ * ignore duplicates, as in <code>IntTupleSet</code>.
+ * <p>
+ * The words are kept in pages so the store is not limited by the
+ * maximum size of a single array. This class is not thread safe.
+ */
+public class PackedTupleStore implements TupleStore {
+
+  private static final int EMPTY = -1;
+  private static final double LOAD_FACTOR = 0.6;
+  private static final int PAGE_WORDS = 1 << 20;
+
+  private final int length;      // the length of the tuples
+  private final int base;
+  private final int bits;        // bits per entry
+  private final int perWord;     // entries per long
+  private final int words;       // longs per tuple
+  private final long entryMask;
+  private final int pageShift;   // tuples per page is 2^pageShift
+  private final int pageMask;
+
+  private long[][] pages = new long[0][];
+  private int size;
+
+  // the index; null until add or indexOf is first called.
+  private int[] hashes;
+  private int[] table;
+  private int mask;
+  private int threshold;
+
+  private final long[] scratch;
+
+  /**
+   * Construct an empty store for tuples of length <code>length</code>
+   * with entries less than <code>base</code>.
+   */
+  public PackedTupleStore(int length, int base) {
+    if (length < 0 || base < 1) {
+      throw new IllegalArgumentException("length: " + length + ", base: " + base);
+    }
+    this.length = length;
+    this.base = base;
+    this.bits = bitsNeeded(base);
+    this.perWord = 64 / bits;
+    this.words = Math.max(1, (length + perWord - 1) / perWord);
+    this.entryMask = (1L << bits) - 1;
+    this.pageShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, PAGE_WORDS / words));
+    this.pageMask = (1 << pageShift) - 1;
+    this.scratch = new long[words];
+  }
+
+  /**
+   * The number of bits needed to hold <code>0, ..., base - 1</code>;
+   * at least 1.
+   */
+  public static int bitsNeeded(int base) {
+    return Math.max(1, 32 - Integer.numberOfLeadingZeros(base - 1));
+  }
+
+  public int size() { return size; }
+
+  public int tupleLength() { return length; }
+
+  public int base() { return base; }
+
+  public int bitsPerEntry() { return bits; }
+
+  /**
+   * The number of <code>long</code>'s used for each tuple.
+   */
+  public int wordsPerTuple() { return words; }
+
+  /**
+   * Pack <code>tuple</code> into <code>dest</code>, which should have
+   * length at least <code>wordsPerTuple()</code>.
+   */
+  public void pack(final int[] tuple, final long[] dest) {
+    pack(tuple, dest, 0);
+  }
+
+  /**
+   * Pack <code>tuple</code> into <code>dest</code> starting at
+   * <code>off</code>.
+   */
+  public void pack(final int[] tuple, final long[] dest, final int off) {
+    if (tuple.length != length) {
+      throw new IllegalArgumentException("the tuple has length " + tuple.length
+                                         + ", not " + length);
+    }
+    int k = 0;
+    for (int w = 0; w < words; w++) {
+      long word = 0;
+      final int end = Math.min(length, k + perWord);
+      for (int shift = 0; k < end; k++, shift += bits) {
+        final int v = tuple[k];
+        if (v < 0 || v >= base) {
+          throw new IllegalArgumentException("entry " + v + " at " + k + " is not less than " + base);
+        }
+        word |= ((long)v) << shift;
+      }
+      dest[off + w] = word;
+    }
+  }
+
+  /**
+   * Unpack the tuple in <code>src</code> starting at <code>off</code>,
+   * packed as by <code>pack</code>, into <code>dest</code>.
+   *
+   * @return <code>dest</code>
+   */
+  public int[] unpack(final long[] src, final int off, final int[] dest) {
+    int k = 0;
+    for (int w = 0; w < words; w++) {
+      long word = src[off + w];
+      final int end = Math.min(length, k + perWord);
+      for ( ; k < end; k++) {
+        dest[k] = (int)(word & entryMask);
+        word >>>= bits;
+      }
+    }
+    return dest;
+  }
+
+  /**
+   * Append <code>tuple</code> without checking if it is already here.
+   *
+   * @return the index of the new tuple
+   */
+  public int append(final int[] tuple) {
+    pack(tuple, scratch);
+    final int index = appendPacked(scratch);
+    if (table != null) insertIndex(index, hashPacked(scratch));
+    return index;
+  }
+
+  /**
+   * Add <code>tuple</code> if it is not already in the store.
+   *
+   * @return the index of <code>tuple</code> if it was added, and
+   *         <code>-(index + 1)</code> if it was already here at
+   *         <code>index</code>
+   */
+  public int add(final int[] tuple) {
+    ensureIndex();
+    pack(tuple, scratch);
+    final int h = hashPacked(scratch);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) break;
+      if (hashes[k] == h && equalsPacked(k, scratch)) return -(k + 1);
+      slot = (slot + 1) & mask;
+    }
+    final int index = appendPacked(scratch);
+    if (index == hashes.length) hashes = Arrays.copyOf(hashes, index + (index >> 1) + 1);
+    hashes[index] = h;
+    table[slot] = index;
+    if (size > threshold) rehash();
+    return index;
+  }
+
+  /**
+   * The index of <code>tuple</code> or -1 if it is not in the store.
+   */
+  public int indexOf(final int[] tuple) {
+    ensureIndex();
+    pack(tuple, scratch);
+    final int h = hashPacked(scratch);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) return -1;
+      if (hashes[k] == h && equalsPacked(k, scratch)) return k;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * The index of <code>tuple</code> or -1 if it is not in the store,
+   * using <code>packed</code>, of length at least 
+   * <code>wordsPerTuple()</code>, for the packed form. Unlike
+   * <code>indexOf(tuple)</code> this can be called from several threads
+   * at once, each with its own <code>packed</code>, as long as nothing
+   * is being added and the index has been built (by <code>add</code> or
+   * <code>indexOf</code>).
+   */
+  public int indexOf(final int[] tuple, final long[] packed) {
+    if (table == null) throw new IllegalStateException("the index has not been built");
+    pack(tuple, packed);
+    final int h = hashPacked(packed, words);
+    int slot = h & mask;
+    while (true) {
+      final int k = table[slot];
+      if (k == EMPTY) return -1;
+      if (hashes[k] == h && equalsPacked(k, packed)) return k;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Unpack the <code>index</code>th tuple into <code>buf</code>.
+   *
+   * @param buf  an array of length <code>tupleLength()</code>; if
+   *             <code>null</code> a new one is made
+   * @return     <code>buf</code>
+   */
+  public int[] get(final int index, int[] buf) {
+    checkIndex(index);
+    if (buf == null) buf = new int[length];
+    final long[] page = pages[index >>> pageShift];
+    int off = (index & pageMask) * words;
+    int k = 0;
+    for (int w = 0; w < words; w++) {
+      long word = page[off + w];
+      final int end = Math.min(length, k + perWord);
+      for ( ; k < end; k++) {
+        buf[k] = (int)(word & entryMask);
+        word >>>= bits;
+      }
+    }
+    return buf;
+  }
+
+  /**
+   * The <code>coord</code>th entry of the <code>index</code>th tuple.
+   */
+  public int get(final int index, final int coord) {
+    checkIndex(index);
+    final long word = pages[index >>> pageShift][(index & pageMask) * words + coord / perWord];
+    return (int)((word >>> ((coord % perWord) * bits)) & entryMask);
+  }
+
+  /**
+   * The hash code of the <code>index</code>th tuple, computed from
+   * the packed words.
+   */
+  public int hashCode(final int index) {
+    checkIndex(index);
+    final long[] page = pages[index >>> pageShift];
+    final int off = (index & pageMask) * words;
+    int h = 1;
+    for (int w = 0; w < words; w++) {
+      final long word = page[off + w];
+      h = 31 * h + (int)(word ^ (word >>> 32));
+    }
+    return spread(h);
+  }
+
+  /**
+   * The approximate number of bytes used by the tuples and the index.
+   */
+  public long memoryUsage() {
+    long ans = 0;
+    for (long[] page : pages) {
+      ans += 8L * page.length;
+    }
+    if (table != null) ans += 4L * (table.length + hashes.length);
+    return ans;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+  }
+
+  private int appendPacked(final long[] packed) {
+    final int index = size;
+    final int p = index >>> pageShift;
+    final int off = (index & pageMask) * words;
+    if (p == pages.length) {
+      pages = Arrays.copyOf(pages, p + 1);
+      pages[p] = new long[Math.min(16 * words, words << pageShift)];
+    }
+    else if (off + words > pages[p].length) {
+      // the last page grows until it is full
+      pages[p] = Arrays.copyOf(pages[p], Math.min(2 * pages[p].length, words << pageShift));
+    }
+    System.arraycopy(packed, 0, pages[p], off, words);
+    size++;
+    return index;
+  }
+
+  private boolean equalsPacked(final int index, final long[] packed) {
+    final long[] page = pages[index >>> pageShift];
+    final int off = (index & pageMask) * words;
+    for (int w = 0; w < words; w++) {
+      if (page[off + w] != packed[w]) return false;
+    }
+    return true;
+  }
+
+  static int hashPacked(final long[] packed) {
+    return hashPacked(packed, packed.length);
+  }
+
+  static int hashPacked(final long[] packed, final int words) {
+    int h = 1;
+    for (int w = 0; w < words; w++) {
+      final long word = packed[w];
+      h = 31 * h + (int)(word ^ (word >>> 32));
+    }
+    return spread(h);
+  }
+
+  static int spread(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private void ensureIndex() {
+    if (table != null) return;
+    hashes = new int[Math.max(16, size)];
+    for (int k = 0; k < size; k++) {
+      hashes[k] = hashCode(k);
+    }
+    int cap = 16;
+    while (cap * LOAD_FACTOR < size + 1 && cap < 1 << 30) cap <<= 1;
+    makeTable(cap);
+    for (int k = 0; k < size; k++) {
+      insertSlot(k, hashes[k]);
+    }
+  }
+
+  private void insertIndex(int index, int h) {
+    if (index == hashes.length) hashes = Arrays.copyOf(hashes, index + (index >> 1) + 1);
+    hashes[index] = h;
+    insertSlot(index, h);
+    if (size > threshold) rehash();
+  }
+
+  private void insertSlot(int index, int h) {
+    int slot = h & mask;
+    while (table[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = index;
+  }
+
+  private void makeTable(int cap) {
+    table = new int[cap];
+    Arrays.fill(table, EMPTY);
+    mask = cap - 1;
+    threshold = (int)(cap * LOAD_FACTOR);
+  }
+
+  private void rehash() {
+    if (table.length == 1 << 30) {
+      threshold = Integer.MAX_VALUE;
+      return;
+    }
+    makeTable(table.length << 1);
+    for (int k = 0; k < size; k++) {
+      insertSlot(k, hashes[k]);
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/* TupleStore.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * A store of <code>int[]</code> tuples of a fixed length with entries
+ * less than <code>base</code>, referred to by their index in the order
+ * they were added. Implementations keep the tuples in a compact form
+ * and unpack them on demand.
+ *
+ * @see PackedTupleStore
+ * @see MappedTupleStore
+ */
+public interface TupleStore {
+
+  public int size();
+
+  public int tupleLength();
+
+  public int base();
+
+  /**
+   * Append <code>tuple</code> without checking if it is already here.
+   *
+   * @return the index of the new tuple
+   */
+  public int append(int[] tuple);
+
+  /**
+   * Add <code>tuple</code> if it is not already in the store.
+   *
+   * @return the index of <code>tuple</code> if it was added, and
+   *         <code>-(index + 1)</code> if it was already here at
+   *         <code>index</code>
+   */
+  public int add(int[] tuple);
+
+  /**
+   * The index of <code>tuple</code> or -1 if it is not in the store.
+   */
+  public int indexOf(int[] tuple);
+
+  /**
+   * Unpack the <code>index</code>th tuple into <code>buf</code>.
+   *
+   * @param buf  an array of length <code>tupleLength()</code>; if
+   *             <code>null</code> a new one is made
+   * @return     <code>buf</code>
+   */
+  public int[] get(int index, int[] buf);
+
+  /**
+   * The approximate number of bytes of heap used.
+   */
+  public long memoryUsage();
+
+  /**
+   * A read only view as a list of <code>IntArray</code>'s. Each
+   * <code>get</code> unpacks a new <code>IntArray</code>.
+   */
+  default public List<IntArray> asList() {
+    final TupleStore store = this;
+    return new AbstractList<IntArray>() {
+
+      public IntArray get(int index) {
+        return new IntArray(store.get(index, null));
+      }
+
+      public int size() {
+        return store.size();
+      }
+
+      public boolean contains(Object obj) {
+        return indexOf(obj) >= 0;
+      }
+
+      public int indexOf(Object obj) {
+        if (!(obj instanceof IntArray)) return -1;
+        final int[] arr = ((IntArray)obj).getArray();
+        if (arr.length != store.tupleLength()) return -1;
+        for (int i = 0; i < arr.length; i++) {
+          if (arr[i] < 0 || arr[i] >= store.base()) return -1;
+        }
+        return store.indexOf(arr);
+      }
+    };
+  }
+
+}
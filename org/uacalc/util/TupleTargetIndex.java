@@ -0,0 +1,170 @@
+/* TupleTargetIndex.java */
+
+package org.uacalc.util;
+
+import java.util.*;
+
+/**
+ * An index of a fixed list of <code>int[]</code> tuples, the targets,
+ * all of the same length, for testing a long stream of tuples against
+ * them, as <code>Closer</code> does with the elements to find. Most of
+ * the tuples tested are not targets, so they are rejected first by a
+ * Bloom filter of the entries of the targets at a few fixed coordinates,
+ * which takes constant time whatever the length of the tuples. Only
+ * the tuples it passes are hashed and looked up in an open addressing
+ * table of the targets' indices. The index also records where each
+ * target was found and how many are left.
+ */
+public class TupleTargetIndex {
+
+  private static final int EMPTY = -1;
+  // the most coordinates used by the Bloom filter
+  private static final int SAMPLES = 8;
+  // bits of the Bloom filter for each target
+  private static final int BITS_PER_TARGET = 16;
+
+  private final int[][] targets;
+  private final int length;
+  private final int[] samples;   // the coordinates used by the Bloom filter
+  private final long[] bloom;
+  private final int bloomMask;
+  private final int[] hashes;    // hashes[t] is IntTupleSet.hash(targets[t])
+  private final int[] table;     // indices into targets or EMPTY
+  private final int mask;
+  private final int[] foundAt;   // where each target was found or -1
+  private int remaining;
+
+  /**
+   * @param targets  the targets, distinct and of the same length; they
+   *                 are not copied
+   */
+  public TupleTargetIndex(List<int[]> targets) {
+    final int n = targets.size();
+    this.targets = targets.toArray(new int[n][]);
+    this.length = n == 0 ? 0 : this.targets[0].length;
+    final int k = Math.min(SAMPLES, length);
+    samples = new int[k];
+    for (int i = 0; i < k; i++) {
+      samples[i] = (int)((long)i * length / k);
+    }
+    final int bits = Integer.highestOneBit(Math.max(64, n * BITS_PER_TARGET - 1)) << 1;
+    bloom = new long[bits >>> 6];
+    bloomMask = bits - 1;
+    final int cap = Integer.highestOneBit(Math.max(8, 2 * n - 1)) << 1;
+    table = new int[cap];
+    Arrays.fill(table, EMPTY);
+    mask = cap - 1;
+    hashes = new int[n];
+    foundAt = new int[n];
+    Arrays.fill(foundAt, -1);
+    remaining = n;
+    for (int t = 0; t < n; t++) {
+      final int[] target = this.targets[t];
+      if (target.length != length) {
+        throw new IllegalArgumentException("the targets must have the same length");
+      }
+      final int s = sampleHash(target, 0);
+      final int step = step(s);
+      bloom[(s & bloomMask) >>> 6] |= 1L << s;
+      bloom[((s + step) & bloomMask) >>> 6] |= 1L << (s + step);
+      bloom[((s + 2 * step) & bloomMask) >>> 6] |= 1L << (s + 2 * step);
+      if (indexOf(target) >= 0) throw new IllegalArgumentException("duplicate target");
+      final int h = IntTupleSet.hash(target);
+      hashes[t] = h;
+      int slot = h & mask;
+      while (table[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = t;
+    }
+  }
+
+  private int sampleHash(final int[] buf, final int off) {
+    int h = 1;
+    for (int i = 0; i < samples.length; i++) {
+      h = 31 * h + buf[off + samples[i]];
+    }
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 15);
+  }
+
+  private static int step(int s) {
+    return (Integer.rotateLeft(s, 16) * 0x85EBCA6B) | 1;
+  }
+
+  /**
+   * False if the tuple at <code>off</code> is certainly not a target.
+   */
+  private boolean mightBeTarget(final int[] buf, final int off) {
+    final int s = sampleHash(buf, off);
+    if ((bloom[(s & bloomMask) >>> 6] & (1L << s)) == 0) return false;
+    final int step = step(s);
+    if ((bloom[((s + step) & bloomMask) >>> 6] & (1L << (s + step))) == 0) return false;
+    return (bloom[((s + 2 * step) & bloomMask) >>> 6] & (1L << (s + 2 * step))) != 0;
+  }
+
+  public int size() { return targets.length; }
+
+  /**
+   * The <code>t</code>th target.
+   */
+  public int[] get(int t) { return targets[t]; }
+
+  /**
+   * The number of targets not yet found.
+   */
+  public int remaining() { return remaining; }
+
+  /**
+   * Where the <code>t</code>th target was found, as given to
+   * <code>markFound</code>, or -1.
+   */
+  public int foundAt(int t) { return foundAt[t]; }
+
+  /**
+   * The index of <code>tuple</code> among the targets, or -1.
+   */
+  public int indexOf(final int[] tuple) {
+    return indexOf(tuple, 0, tuple.length);
+  }
+
+  /**
+   * The index among the targets of the tuple in
+   * <code>buf[off], ..., buf[off + len - 1]</code>, or -1.
+   */
+  public int indexOf(final int[] buf, final int off, final int len) {
+    if (len != length || targets.length == 0 || !mightBeTarget(buf, off)) return -1;
+    final int h = IntTupleSet.hash(buf, off, len);
+    int slot = h & mask;
+    while (true) {
+      final int t = table[slot];
+      if (t == EMPTY) return -1;
+      if (hashes[t] == h && equalRange(targets[t], buf, off)) return t;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static boolean equalRange(final int[] target, final int[] buf, final int off) {
+    for (int i = 0; i < target.length; i++) {
+      if (target[i] != buf[off + i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * If <code>tuple</code> is a target not found before, record that it
+   * was found at <code>index</code>.
+   *
+   * @return the index of the target, or -1 if <code>tuple</code> is
+   *         not a target or was found before
+   */
+  public int markFound(final int[] tuple, final int index) {
+    if (remaining == 0) return -1;
+    final int t = indexOf(tuple);
+    if (t < 0 || foundAt[t] >= 0) return -1;
+    foundAt[t] = index;
+    remaining--;
+    return t;
+  }
+
+}